@@ -0,0 +1,47 @@
+package android.location;
+
+// Desktop stand-in for Android's Location, with the few methods the
+// detection code uses. distanceTo uses the haversine formula on a
+// spherical earth, which is within a fraction of a percent of Android's
+// ellipsoidal result at the distances the detector cares about.
+public class Location {
+	private static final double EARTH_RADIUS = 6371009;
+	
+	private final String provider;
+	private double latitude;
+	private double longitude;
+	
+	public Location(String provider){
+		this.provider = provider;
+	}
+	
+	public String getProvider(){
+		return provider;
+	}
+	
+	public double getLatitude(){
+		return latitude;
+	}
+	
+	public void setLatitude(double latitude){
+		this.latitude = latitude;
+	}
+	
+	public double getLongitude(){
+		return longitude;
+	}
+	
+	public void setLongitude(double longitude){
+		this.longitude = longitude;
+	}
+	
+	public float distanceTo(Location dest){
+		double lat1 = Math.toRadians(latitude);
+		double lat2 = Math.toRadians(dest.latitude);
+		double dlat = lat2 - lat1;
+		double dlon = Math.toRadians(dest.longitude - longitude);
+		double a = Math.sin(dlat / 2) * Math.sin(dlat / 2)
+				+ Math.cos(lat1) * Math.cos(lat2) * Math.sin(dlon / 2) * Math.sin(dlon / 2);
+		return (float) (2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a))));
+	}
+}
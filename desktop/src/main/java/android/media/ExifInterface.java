@@ -0,0 +1,20 @@
+package android.media;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+// Desktop stand-in for Android's ExifInterface. It doesn't parse EXIF,
+// so images never report a location on the desktop.
+public class ExifInterface {
+	
+	public ExifInterface(String filename) throws IOException {
+		if (!new File(filename).isFile()) {
+			throw new FileNotFoundException(filename);
+		}
+	}
+	
+	public boolean getLatLong(float[] output){
+		return false;
+	}
+}
@@ -0,0 +1,35 @@
+package android.util;
+
+// Desktop stand-in for Android's Log. Messages are dropped unless the
+// system property photodetector.log is set, so benchmarks and evaluation
+// runs aren't slowed down by console output.
+public final class Log {
+	private static final boolean ENABLED = System.getProperty("photodetector.log") != null;
+	
+	private Log(){}
+	
+	public static int d(String tag, String msg){
+		return print("D", tag, msg);
+	}
+	
+	public static int i(String tag, String msg){
+		return print("I", tag, msg);
+	}
+	
+	public static int w(String tag, String msg){
+		return print("W", tag, msg);
+	}
+	
+	public static int e(String tag, String msg){
+		// errors are always shown
+		System.err.println("E/" + tag + ": " + msg);
+		return 0;
+	}
+	
+	private static int print(String level, String tag, String msg){
+		if (ENABLED) {
+			System.err.println(level + "/" + tag + ": " + msg);
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,241 @@
+package com.thanh.photodetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.location.Location;
+import nu.pattern.OpenCV;
+
+// JMH benchmarks of the detection hot path of ImageDetector.
+//
+// The training library is synthetic: 'library_size' images with random
+// ORB-shaped descriptors and locations, written once to a library index 
+// in java.io.tmpdir and loaded through ImageDetector.loadLibrary.
+// The query is either a synthetic camera-sized image or one of the
+// bundled photos, relative to the repository root given by the system
+// property photodetector.root (".." by default, i.e. run from desktop/).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class DetectionBenchmark {
+	
+	@Param({"10", "1000", "10000"})
+	public int library_size;
+	
+	@Param({"synthetic", "training/suit.jpg"})
+	public String query_image;
+	
+	@Param({"300"})
+	public int descriptors_per_image;
+	
+	// number of matches drawn by drawMatches in runExperiment
+	private static final int MATCHES_TO_DRAW = 20;
+	// synthetic camera frame size
+	private static final int FRAME_WIDTH = 1280;
+	private static final int FRAME_HEIGHT = 960;
+	
+	private ImageDetector detector;
+	private Mat full_image;
+	private Mat scratch_image = new Mat();
+	private TrainingImage query;
+	private Mat query_descriptors;
+	private LibraryMatcher opencv_matcher;
+	private LibraryMatcher hamming_matcher;
+	private MatchBuffer matches = new MatchBuffer();
+	private MatOfDMatch match_mat;
+	private VoteAccumulator tally = new VoteAccumulator();
+	private Location query_location;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		OpenCV.loadShared();
+		detector = new ImageDetector(FeatureDetector.ORB, DescriptorExtractor.ORB, 
+				DescriptorMatcher.BRUTEFORCE_HAMMINGLUT);
+		
+		List<TrainingImage> library = syntheticLibrary(library_size, descriptors_per_image);
+		File index = new File(System.getProperty("java.io.tmpdir"), "bench_library_" 
+				+ library_size + "_" + descriptors_per_image + "_" + detector.configHash() + ".idx");
+		if (!index.isFile()) {
+			LibraryIndex.save(index, detector.configHash(), library);
+		}
+		if (!detector.loadLibrary(index.getPath())) {
+			throw new IllegalStateException("Can't load " + index);
+		}
+		
+		opencv_matcher = new OpenCvMatcher(DescriptorMatcher.BRUTEFORCE_HAMMINGLUT);
+		hamming_matcher = new HammingMatcher();
+		for (TrainingImage img: library) {
+			opencv_matcher.add(img.descriptors());
+			hamming_matcher.add(img.descriptors());
+		}
+		opencv_matcher.train();
+		hamming_matcher.train();
+		
+		full_image = loadQueryImage();
+		Mat small = new Mat();
+		full_image.copyTo(small);
+		query = new TrainingImage();
+		query.setPathID(query_image);
+		query.setImage(detector.resize(small));
+		query_descriptors = detector.imgDescriptor(query);
+		query_location = library.get(0).location();
+		
+		// inputs of the later stages
+		hamming_matcher.match(query_descriptors, matches);
+		match_mat = matches.toMat();
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		detector.clearLibrary();
+	}
+	
+	// resize() works in place, so every call gets a fresh full-size copy
+	@Setup(Level.Invocation)
+	public void copyFullImage()
+	{
+		full_image.copyTo(scratch_image);
+	}
+	
+	@Benchmark
+	public Mat resize()
+	{
+		return detector.resize(scratch_image);
+	}
+	
+	@Benchmark
+	public Mat imgDescriptor()
+	{
+		return detector.imgDescriptor(query);
+	}
+	
+	@Benchmark
+	public Mat imgDescriptor_rgb()
+	{
+		return detector.imgDescriptor_rgb(query);
+	}
+	
+	@Benchmark
+	public MatchBuffer match_opencv()
+	{
+		opencv_matcher.match(query_descriptors, matches);
+		return matches;
+	}
+	
+	@Benchmark
+	public MatchBuffer match_hamming()
+	{
+		hamming_matcher.match(query_descriptors, matches);
+		return matches;
+	}
+	
+	@Benchmark
+	public TrainingImage findBestMatch()
+	{
+		return detector.findBestMatch(matches, query);
+	}
+	
+	// counting the votes with the location filter, as findBestMatch does
+	@Benchmark
+	public VoteAccumulator locationFilter()
+	{
+		LibrarySnapshot snapshot = detector.librarySnapshot();
+		tally.reset(snapshot.size());
+		tally.count(matches, snapshot, query_location, detector.location_radius);
+		return tally;
+	}
+	
+	@Benchmark
+	public MatOfDMatch sortedKMatches()
+	{
+		return detector.sortedKMatches(match_mat, 0, MATCHES_TO_DRAW);
+	}
+	
+	// Method that returns the query image, synthetic or from the repository
+	private Mat loadQueryImage()
+	{
+		if ("synthetic".equals(query_image)) {
+			Mat img = new Mat(FRAME_HEIGHT, FRAME_WIDTH, CvType.CV_8UC3);
+			Core.randu(img, 0, 256);
+			return img;
+		}
+		File root = new File(System.getProperty("photodetector.root", ".."));
+		String path = new File(root, query_image).getPath();
+		Mat img = Imgcodecs.imread(path);
+		if (img.empty()) {
+			throw new IllegalStateException("Can't read " + path);
+		}
+		return img;
+	}
+	
+	// Method that builds 'size' training images with random descriptors,
+	// key points and locations scattered over about 1 km
+	static List<TrainingImage> syntheticLibrary(int size, int descriptors_per_image)
+	{
+		Random random = new Random(size);
+		List<TrainingImage> library = new ArrayList<TrainingImage>(size);
+		float[] key_points = new float[descriptors_per_image * 7];
+		for (int i = 0; i < size; i++) {
+			TrainingImage img = new TrainingImage();
+			img.setPathID("synthetic/" + i + ".jpg");
+			img.setTourID(i / 5);
+			
+			Mat descriptors = new Mat(descriptors_per_image, 32, CvType.CV_8UC1);
+			Core.randu(descriptors, 0, 256);
+			img.setDescriptors(descriptors);
+			
+			for (int k = 0; k < descriptors_per_image; k++) {
+				key_points[7 * k] = random.nextFloat() * 300;      // x
+				key_points[7 * k + 1] = random.nextFloat() * 225;  // y
+				key_points[7 * k + 2] = 31;                        // size
+				key_points[7 * k + 3] = random.nextFloat() * 360;  // angle
+				key_points[7 * k + 4] = random.nextFloat() / 1000; // response
+				key_points[7 * k + 5] = 0;                         // octave
+				key_points[7 * k + 6] = -1;                        // class_id
+			}
+			MatOfKeyPoint kp = new MatOfKeyPoint();
+			kp.alloc(descriptors_per_image);
+			kp.put(0, 0, key_points);
+			img.setKeyPoints(kp);
+			
+			Location loc = new Location("synthetic");
+			loc.setLatitude(43.0 + random.nextDouble() * 0.01);
+			loc.setLongitude(-76.0 + random.nextDouble() * 0.01);
+			img.setLocation(loc);
+			library.add(img);
+		}
+		return library;
+	}
+}
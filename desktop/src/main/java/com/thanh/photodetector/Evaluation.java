@@ -0,0 +1,186 @@
+package com.thanh.photodetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+// Headless replacement for MainActivity.runExperiment: evaluates a set of
+// EvaluationConfigs over the queries of a dataset on a plain JVM.
+//
+// Every config's library is built once (or reused) as a library index in
+// 'work_directory'. The queries of all configs then go to one pool of
+// 'number_of_threads' workers, which share one detector per config loaded
+// from its index. Configs therefore run concurrently and no core idles
+// while a slow config finishes.
+public class Evaluation {
+	protected static final String TAG = "Evaluation";
+	protected static final String ERROR = "Error in Evaluation";
+
+	public static final String RESULTS_HEADER = "config,path,tour_id,angle,distance,"
+			+ "predicted_tour_id,latency_ms";
+
+	private final EvaluationManifest manifest;
+	private final File work_directory;
+	private final int number_of_threads;
+
+	public Evaluation(EvaluationManifest manifest, File work_directory, int number_of_threads)
+	{
+		this.manifest = manifest;
+		this.work_directory = work_directory;
+		this.number_of_threads = number_of_threads;
+	}
+
+	// Method that evaluates every config and returns their reports, in the
+	// order of 'configs'. If 'results' isn't null, one line per query is
+	// written to it.
+	public List<EvaluationReport> run(final List<EvaluationConfig> configs, Writer results)
+			throws IOException, InterruptedException, ExecutionException
+	{
+		if (!work_directory.isDirectory() && !work_directory.mkdirs()) {
+			throw new IOException("Failed to create "+work_directory);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(number_of_threads);
+		try {
+			final String[] index_paths = buildIndexes(configs, pool);
+
+			final ImageDetector[] detectors = new ImageDetector[configs.size()];
+			for (int c = 0; c < configs.size(); c++) {
+				detectors[c] = loadDetector(configs.get(c), index_paths[c]);
+				detectors[c].setMetrics(new DetectionMetrics());
+			}
+			List<List<Future<EvaluationReport.Result>>> futures =
+					new ArrayList<List<Future<EvaluationReport.Result>>>();
+			for (int c = 0; c < configs.size(); c++) {
+				List<Future<EvaluationReport.Result>> config_futures =
+						new ArrayList<Future<EvaluationReport.Result>>();
+				for (final EvaluationManifest.Entry query: manifest.queries()) {
+					final ImageDetector detector = detectors[c];
+					config_futures.add(pool.submit(new Callable<EvaluationReport.Result>() {
+						@Override public EvaluationReport.Result call() {
+							return detect(detector, query);
+						}
+					}));
+				}
+				futures.add(config_futures);
+			}
+
+			List<EvaluationReport> reports = new ArrayList<EvaluationReport>();
+			for (int c = 0; c < configs.size(); c++) {
+				EvaluationReport report = new EvaluationReport(configs.get(c));
+				for (Future<EvaluationReport.Result> f: futures.get(c)) {
+					EvaluationReport.Result r = f.get();
+					report.add(r);
+					if (results != null) {
+						writeResult(results, report.config(), r);
+					}
+				}
+				Log.i(TAG, report.toString());
+				Log.i(TAG, detectors[c].metrics().toString());
+				Log.i(TAG, detectors[c].nativeMemory().toString());
+				reports.add(report);
+			}
+			return reports;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// Method that makes sure a library index exists for every config, building
+	// the missing ones concurrently, and returns their paths by config
+	private String[] buildIndexes(List<EvaluationConfig> configs, ExecutorService pool)
+			throws InterruptedException, ExecutionException
+	{
+		long training_hash = manifest.trainingHash();
+		String[] index_paths = new String[configs.size()];
+		// configs sharing an index name need only one build
+		Map<String, EvaluationConfig> distinct = new LinkedHashMap<String, EvaluationConfig>();
+		for (int c = 0; c < configs.size(); c++) {
+			String name = configs.get(c).indexName(training_hash);
+			index_paths[c] = new File(work_directory, name).getPath();
+			if (!distinct.containsKey(index_paths[c])) {
+				distinct.put(index_paths[c], configs.get(c));
+			}
+		}
+		final int threads_per_build = Math.max(1, number_of_threads / distinct.size());
+		List<Future<?>> builds = new ArrayList<Future<?>>();
+		for (final Map.Entry<String, EvaluationConfig> e: distinct.entrySet()) {
+			builds.add(pool.submit(new Callable<Void>() {
+				@Override public Void call() {
+					buildIndex(e.getValue(), e.getKey(), threads_per_build);
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f: builds) {
+			f.get();
+		}
+		return index_paths;
+	}
+
+	private void buildIndex(EvaluationConfig config, String index_path, int threads)
+	{
+		ImageDetector detector = config.newDetector();
+		if (detector.loadLibrary(index_path)) {
+			return;
+		}
+		List<LibraryItem> items = new ArrayList<LibraryItem>();
+		for (EvaluationManifest.Entry e: manifest.training()) {
+			items.add(new LibraryItem(manifest.absolutePath(e), e.tour_id));
+		}
+		IngestStats stats = detector.addAllToLibrary(items, threads, 4 * threads);
+		Log.i(TAG, "Built library for "+config+"\n"+stats);
+		if (!detector.saveLibrary(index_path)) {
+			throw new IllegalStateException("Failed to save library index "+index_path);
+		}
+	}
+
+	private ImageDetector loadDetector(EvaluationConfig config, String index_path)
+	{
+		ImageDetector detector = config.newDetector();
+		// the evaluation never draws matches, so don't keep the pixels
+		detector.setKeepImages(false);
+		if (!detector.loadLibrary(index_path)) {
+			throw new IllegalStateException("Failed to load library index "+index_path);
+		}
+		return detector;
+	}
+
+	private EvaluationReport.Result detect(ImageDetector detector, EvaluationManifest.Entry query)
+	{
+		String path = manifest.absolutePath(query);
+		long start = System.nanoTime();
+		try {
+			DetectionResult detection = detector.detectPhoto(path);
+			long latency = System.nanoTime() - start;
+			TrainingImage result = detection.match();
+			detection.release();
+			return new EvaluationReport.Result(query,
+					result == null ? null : Long.valueOf(result.tourID()), false, latency);
+		} catch (RuntimeException e) {
+			// one unreadable image shouldn't end a whole sweep
+			Log.e(ERROR, "Failed to detect "+path+": "+e);
+			return new EvaluationReport.Result(query, null, true, System.nanoTime() - start);
+		}
+	}
+
+	private static void writeResult(Writer out, EvaluationConfig config,
+			EvaluationReport.Result r) throws IOException
+	{
+		out.append(String.format(Locale.US, "%s,%s,%d,%d,%d,%s,%.3f\n",
+				config, r.query.path, r.query.tour_id, r.query.angle, r.query.distance,
+				r.failed ? "failed" : (r.predicted_tour_id == null ? "" : r.predicted_tour_id),
+				r.latency_nanos / 1e6));
+	}
+}
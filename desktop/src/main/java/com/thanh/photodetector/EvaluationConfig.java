@@ -0,0 +1,103 @@
+package com.thanh.photodetector;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+
+// One point of a parameter sweep: the ImageDetector settings a query
+// set is evaluated with. The extractor and matcher are fixed to the ones
+// of runExperiment (ORB, BRUTEFORCE_HAMMINGLUT); with a match ratio, the
+// matcher finds the two nearest neighbours for the ratio test.
+public class EvaluationConfig {
+	// feature detectors that can be named on the command line
+	public static final Map<String, Integer> DETECTORS = new LinkedHashMap<String, Integer>();
+	static {
+		DETECTORS.put("FAST", FeatureDetector.FAST);
+		DETECTORS.put("ORB", FeatureDetector.ORB);
+		DETECTORS.put("BRISK", FeatureDetector.BRISK);
+		DETECTORS.put("STAR", FeatureDetector.STAR);
+		DETECTORS.put("GFTT", FeatureDetector.GFTT);
+		DETECTORS.put("HARRIS", FeatureDetector.HARRIS);
+	}
+
+	public final String detector_name;
+	public final int detector_type;
+	public final int max_side;
+	public final int max_key_points;
+	public final double filter_ratio;
+	// settings of ImageDetector.setMatchFilter
+	public final double match_ratio;
+	public final boolean cross_check;
+
+	public EvaluationConfig(String detector_name, int max_side, int max_key_points,
+			double filter_ratio, double match_ratio, boolean cross_check)
+	{
+		Integer type = DETECTORS.get(detector_name.toUpperCase());
+		if (type == null) {
+			throw new IllegalArgumentException("Unknown detector "+detector_name
+					+", expected one of "+DETECTORS.keySet());
+		}
+		this.detector_name = detector_name.toUpperCase();
+		this.detector_type = type;
+		this.max_side = max_side;
+		this.max_key_points = max_key_points;
+		this.filter_ratio = filter_ratio;
+		this.match_ratio = match_ratio;
+		this.cross_check = cross_check;
+	}
+
+	// Method that returns every combination of the given values
+	public static List<EvaluationConfig> grid(List<String> detectors,
+			List<Integer> max_sides, List<Integer> max_key_points, List<Double> filter_ratios,
+			List<Double> match_ratios, List<Boolean> cross_checks)
+	{
+		List<EvaluationConfig> configs = new ArrayList<EvaluationConfig>();
+		for (String d: detectors) {
+			for (int m: max_sides) {
+				for (int k: max_key_points) {
+					for (double f: filter_ratios) {
+						for (double r: match_ratios) {
+							for (boolean c: cross_checks) {
+								configs.add(new EvaluationConfig(d, m, k, f, r, c));
+							}
+						}
+					}
+				}
+			}
+		}
+		return configs;
+	}
+
+	// Method that creates a detector with these settings and an empty library
+	public ImageDetector newDetector()
+	{
+		ImageDetector detector = new ImageDetector(detector_type, DescriptorExtractor.ORB, 
+				new OpenCvMatcher(DescriptorMatcher.BRUTEFORCE_HAMMINGLUT, match_ratio > 0));
+		detector.setMaxSide(max_side);
+		detector.setFilterRatio(filter_ratio);
+		detector.setMaxKeyPoints(max_key_points);
+		detector.setMatchFilter(match_ratio, cross_check);
+		return detector;
+	}
+
+	// Name of the library index for this config; the ratios and the cross
+	// check only affect matching, so configs differing only in them share
+	// an index
+	public String indexName(long training_hash)
+	{
+		return "library_"+detector_name+"_"+max_side+"_"+max_key_points+"_"
+				+Long.toHexString(training_hash)+".idx";
+	}
+
+	@Override
+	public String toString()
+	{
+		return detector_name+"/"+max_side+"/"+max_key_points+"/"+filter_ratio
+				+"/"+match_ratio+(cross_check ? "/cross-check" : "");
+	}
+}
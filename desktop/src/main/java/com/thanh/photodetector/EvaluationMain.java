@@ -0,0 +1,133 @@
+package com.thanh.photodetector;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nu.pattern.OpenCV;
+
+// Command line entry point of the evaluation harness:
+//
+//   java -cp target/benchmarks.jar com.thanh.photodetector.EvaluationMain \
+//       <dataset directory> [--out <directory>] [--threads <n>]
+//       [--detectors FAST,ORB] [--max-side 200,300] [--max-key-points 500,1000]
+//       [--filter-ratio 3,5] [--match-ratio 0,0.8] [--cross-check false,true]
+//
+// Every combination of detector, max_side, key point cap, filter_ratio,
+// match ratio (0 for no ratio test) and cross check is evaluated, so that
+// the accuracy and latency of e.g. smaller images with filtered matches
+// can be compared with those of larger ones without.
+// Writes results.csv (one line per query and config) and summary.csv
+// (one line per config and (angle, distance) bucket) to the output
+// directory, and prints the overall summary of every config.
+public class EvaluationMain {
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length == 0 || args[0].startsWith("--")) {
+			usage();
+			return;
+		}
+		File dataset = new File(args[0]);
+		File out = new File("evaluation");
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<String> detectors = Arrays.asList("FAST");
+		List<Integer> max_sides = Arrays.asList(300);
+		List<Integer> max_key_points = Arrays.asList(1000);
+		List<Double> filter_ratios = Arrays.asList(5.0);
+		List<Double> match_ratios = Arrays.asList(0.0);
+		List<Boolean> cross_checks = Arrays.asList(false);
+		for (int i = 1; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+				return;
+			}
+			String value = args[i + 1];
+			if (args[i].equals("--out")) {
+				out = new File(value);
+			} else if (args[i].equals("--threads")) {
+				threads = Integer.parseInt(value);
+			} else if (args[i].equals("--detectors")) {
+				detectors = Arrays.asList(value.split(","));
+			} else if (args[i].equals("--max-side")) {
+				max_sides = new ArrayList<Integer>();
+				for (String s: value.split(",")) {
+					max_sides.add(Integer.parseInt(s));
+				}
+			} else if (args[i].equals("--max-key-points")) {
+				max_key_points = new ArrayList<Integer>();
+				for (String s: value.split(",")) {
+					max_key_points.add(Integer.parseInt(s));
+				}
+			} else if (args[i].equals("--filter-ratio")) {
+				filter_ratios = new ArrayList<Double>();
+				for (String s: value.split(",")) {
+					filter_ratios.add(Double.parseDouble(s));
+				}
+			} else if (args[i].equals("--match-ratio")) {
+				match_ratios = new ArrayList<Double>();
+				for (String s: value.split(",")) {
+					match_ratios.add(Double.parseDouble(s));
+				}
+			} else if (args[i].equals("--cross-check")) {
+				cross_checks = new ArrayList<Boolean>();
+				for (String s: value.split(",")) {
+					cross_checks.add(Boolean.parseBoolean(s));
+				}
+			} else {
+				usage();
+				return;
+			}
+		}
+
+		OpenCV.loadShared();
+		EvaluationManifest manifest = EvaluationManifest.read(dataset);
+		List<EvaluationConfig> configs = EvaluationConfig.grid(detectors, max_sides, 
+				max_key_points, filter_ratios, match_ratios, cross_checks);
+		System.out.println("Evaluating "+configs.size()+" configs on "+manifest.queries().size()
+				+" queries of "+dataset+" with "+threads+" threads");
+
+		if (!out.isDirectory() && !out.mkdirs()) {
+			System.err.println("Failed to create "+out);
+			return;
+		}
+		Evaluation evaluation = new Evaluation(manifest, new File(out, "indexes"), threads);
+		long start = System.currentTimeMillis();
+		Writer results = new BufferedWriter(new FileWriter(new File(out, "results.csv")));
+		List<EvaluationReport> reports;
+		try {
+			results.append(Evaluation.RESULTS_HEADER).append('\n');
+			reports = evaluation.run(configs, results);
+		} finally {
+			results.close();
+		}
+		Writer summary = new BufferedWriter(new FileWriter(new File(out, "summary.csv")));
+		try {
+			summary.append(EvaluationReport.SUMMARY_HEADER).append('\n');
+			for (EvaluationReport report: reports) {
+				report.writeSummary(summary);
+			}
+		} finally {
+			summary.close();
+		}
+
+		for (EvaluationReport report: reports) {
+			System.out.println(report);
+		}
+		System.out.println("Done in "+(System.currentTimeMillis() - start)/1000.0+" s, "
+				+ "results in "+out.getAbsolutePath());
+	}
+
+	private static void usage()
+	{
+		System.err.println("usage: EvaluationMain <dataset directory> [--out <directory>] "
+				+ "[--threads <n>] [--detectors FAST,ORB,...] [--max-side 300,...] "
+				+ "[--max-key-points 1000,...] [--filter-ratio 5,...] [--match-ratio 0,0.8,...] "
+				+ "[--cross-check false,true]");
+		System.err.println("detectors: "+EvaluationConfig.DETECTORS.keySet());
+	}
+}
@@ -0,0 +1,177 @@
+package com.thanh.photodetector;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+// The images of an evaluation dataset: which ones make up the training
+// library and which ones are queries, with the tour item each one shows
+// and the angle / distance it was taken from.
+//
+// A dataset directory may contain a manifest.csv with one image per line:
+//   path, tour_id, role, angle, distance
+// where 'path' is relative to the directory, 'role' is "train" or "query",
+// and lines starting with '#' are comments. Without a manifest, the
+// naming scheme of runExperiment is assumed: <building>_<angle>_<distance>.jpg,
+// with <building>_0_1.jpg as the training image of every building and
+// every image as a query.
+public class EvaluationManifest {
+	protected static final String TAG = "EvaluationManifest";
+	protected static final String ERROR = "Error in EvaluationManifest";
+
+	public static final String MANIFEST_NAME = "manifest.csv";
+
+	private static final Pattern DEFAULT_NAME = Pattern.compile("(\\d+)_(\\d+)_(\\d+)\\.jpg");
+
+	public static class Entry {
+		public final String path;
+		public final long tour_id;
+		public final int angle;
+		public final int distance;
+
+		public Entry(String path, long tour_id, int angle, int distance)
+		{
+			this.path = path;
+			this.tour_id = tour_id;
+			this.angle = angle;
+			this.distance = distance;
+		}
+	}
+
+	private final File directory;
+	private final List<Entry> training = new ArrayList<Entry>();
+	private final List<Entry> queries = new ArrayList<Entry>();
+
+	private EvaluationManifest(File directory)
+	{
+		this.directory = directory;
+	}
+
+	// Method that reads the manifest of 'directory', or lists it by
+	// the default naming scheme if it has none
+	public static EvaluationManifest read(File directory) throws IOException
+	{
+		if (!directory.isDirectory()) {
+			throw new IOException(directory + " is not a directory");
+		}
+		EvaluationManifest manifest = new EvaluationManifest(directory);
+		File csv = new File(directory, MANIFEST_NAME);
+		if (csv.isFile()) {
+			manifest.readCsv(csv);
+		} else {
+			manifest.listDefault();
+		}
+		Log.i(TAG, "Dataset "+directory+": "+manifest.training.size()+" training images, "
+				+manifest.queries.size()+" queries");
+		return manifest;
+	}
+
+	private void readCsv(File csv) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(csv));
+		try {
+			String line;
+			int line_number = 0;
+			while ((line = in.readLine()) != null) {
+				line_number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#") || line.startsWith("path,")) {
+					continue;
+				}
+				String[] fields = line.split("\\s*,\\s*");
+				if (fields.length < 5) {
+					throw new IOException(csv+":"+line_number+": expected "
+							+ "path, tour_id, role, angle, distance");
+				}
+				Entry entry;
+				try {
+					entry = new Entry(fields[0], Long.parseLong(fields[1]),
+							Integer.parseInt(fields[3]), Integer.parseInt(fields[4]));
+				} catch (NumberFormatException e) {
+					throw new IOException(csv+":"+line_number+": "+e.getMessage());
+				}
+				if (!new File(directory, entry.path).isFile()) {
+					Log.e(ERROR, csv+":"+line_number+": "+entry.path+" doesn't exist, skipped");
+					continue;
+				}
+				if (fields[2].equalsIgnoreCase("train")) {
+					training.add(entry);
+				} else if (fields[2].equalsIgnoreCase("query")) {
+					queries.add(entry);
+				} else {
+					throw new IOException(csv+":"+line_number+": unknown role "+fields[2]);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void listDefault()
+	{
+		String[] names = directory.list();
+		if (names == null) {
+			return;
+		}
+		for (String name: names) {
+			Matcher m = DEFAULT_NAME.matcher(name);
+			if (!m.matches()) {
+				continue;
+			}
+			Entry entry = new Entry(name, Long.parseLong(m.group(1)),
+					Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+			if (entry.angle == 0 && entry.distance == 1) {
+				training.add(entry);
+			}
+			queries.add(entry);
+		}
+		// directory listings come in no particular order
+		Collections.sort(training, BY_PATH);
+		Collections.sort(queries, BY_PATH);
+	}
+
+	private static final Comparator<Entry> BY_PATH = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return a.path.compareTo(b.path);
+		}
+	};
+
+	public File directory(){
+		return directory;
+	}
+
+	public String absolutePath(Entry entry){
+		return new File(directory, entry.path).getPath();
+	}
+
+	public List<Entry> training(){
+		return Collections.unmodifiableList(training);
+	}
+
+	public List<Entry> queries(){
+		return Collections.unmodifiableList(queries);
+	}
+
+	// Hash of the training set, so library indexes built from
+	// another training set are never reused
+	public long trainingHash()
+	{
+		long hash = 17;
+		for (Entry e: training) {
+			hash = 31 * hash + e.path.hashCode();
+			hash = 31 * hash + e.tour_id;
+			hash = 31 * hash + new File(directory, e.path).lastModified();
+		}
+		return hash;
+	}
+}
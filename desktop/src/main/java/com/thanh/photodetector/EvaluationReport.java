@@ -0,0 +1,145 @@
+package com.thanh.photodetector;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Results of one EvaluationConfig over the query set: accuracy,
+// unidentified rate and latency percentiles, overall and for every
+// (angle, distance) bucket of the queries.
+public class EvaluationReport {
+	public static final String SUMMARY_HEADER = "config,angle,distance,queries,correct,"
+			+ "accuracy,unidentified_rate,failed,p50_ms,p90_ms,p99_ms,max_ms";
+
+	// outcome of a single query
+	public static class Result {
+		public final EvaluationManifest.Entry query;
+		// null if detectPhoto didn't identify anything or failed
+		public final Long predicted_tour_id;
+		public final boolean failed;
+		public final long latency_nanos;
+
+		public Result(EvaluationManifest.Entry query, Long predicted_tour_id,
+				boolean failed, long latency_nanos)
+		{
+			this.query = query;
+			this.predicted_tour_id = predicted_tour_id;
+			this.failed = failed;
+			this.latency_nanos = latency_nanos;
+		}
+
+		public boolean correct(){
+			return predicted_tour_id != null && predicted_tour_id == query.tour_id;
+		}
+	}
+
+	private static class Bucket {
+		int queries;
+		int correct;
+		int unidentified;
+		int failed;
+		long[] latencies = new long[16];
+
+		void add(Result r)
+		{
+			if (queries == latencies.length) {
+				latencies = Arrays.copyOf(latencies, 2 * queries);
+			}
+			latencies[queries++] = r.latency_nanos;
+			if (r.failed) {
+				failed++;
+			} else if (r.predicted_tour_id == null) {
+				unidentified++;
+			} else if (r.correct()) {
+				correct++;
+			}
+		}
+
+		// nearest-rank percentile of the latencies, in milliseconds
+		double percentile(long[] sorted, double p)
+		{
+			if (queries == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(p / 100 * queries);
+			return sorted[Math.max(rank, 1) - 1] / 1e6;
+		}
+
+		void write(Writer out, String config, String angle, String distance) throws IOException
+		{
+			long[] sorted = Arrays.copyOf(latencies, queries);
+			Arrays.sort(sorted);
+			out.append(String.format(Locale.US, "%s,%s,%s,%d,%d,%.4f,%.4f,%d,%.2f,%.2f,%.2f,%.2f\n",
+					config, angle, distance, queries, correct,
+					queries == 0 ? 0 : (double) correct / queries,
+					queries == 0 ? 0 : (double) unidentified / queries, failed,
+					percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+					percentile(sorted, 100)));
+		}
+	}
+
+	private final EvaluationConfig config;
+	private final Bucket total = new Bucket();
+	// buckets keyed by angle in the high and distance in the low 32 bits
+	private final TreeMap<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+
+	public EvaluationReport(EvaluationConfig config)
+	{
+		this.config = config;
+	}
+
+	public EvaluationConfig config(){
+		return config;
+	}
+
+	public void add(Result r)
+	{
+		long key = ((long) r.query.angle << 32) | (r.query.distance & 0xFFFFFFFFL);
+		Bucket bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new Bucket();
+			buckets.put(key, bucket);
+		}
+		bucket.add(r);
+		total.add(r);
+	}
+
+	public int numberOfQueries(){
+		return total.queries;
+	}
+
+	public double accuracy(){
+		return total.queries == 0 ? 0 : (double) total.correct / total.queries;
+	}
+
+	public double unidentifiedRate(){
+		return total.queries == 0 ? 0 : (double) total.unidentified / total.queries;
+	}
+
+	// Method that writes one summary line per bucket, then the overall one
+	// with angle and distance "all"
+	public void writeSummary(Writer out) throws IOException
+	{
+		for (Map.Entry<Long, Bucket> e: buckets.entrySet()) {
+			long key = e.getKey();
+			e.getValue().write(out, config.toString(),
+					String.valueOf((int) (key >> 32)), String.valueOf((int) key));
+		}
+		total.write(out, config.toString(), "all", "all");
+	}
+
+	@Override
+	public String toString()
+	{
+		long[] sorted = Arrays.copyOf(total.latencies, total.queries);
+		Arrays.sort(sorted);
+		return String.format(Locale.US, "%-20s queries=%d accuracy=%.3f unidentified=%.3f "
+				+ "failed=%d p50=%.1fms p90=%.1fms p99=%.1fms",
+				config, total.queries, accuracy(), unidentifiedRate(), total.failed,
+				total.percentile(sorted, 50), total.percentile(sorted, 90),
+				total.percentile(sorted, 99));
+	}
+}
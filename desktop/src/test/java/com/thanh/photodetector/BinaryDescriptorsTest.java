@@ -0,0 +1,81 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+public class BinaryDescriptorsTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	@Test
+	public void distancesOfPackedRowsMatchTheBytes()
+	{
+		Random random = new Random(1);
+		Mat a = TestData.descriptors(random, 20);
+		Mat b = TestData.descriptors(random, 20);
+		long[] pa = BinaryDescriptors.pack(a);
+		long[] pb = BinaryDescriptors.pack(b);
+		assertEquals(20 * BinaryDescriptors.LONGS_PER_DESCRIPTOR, pa.length);
+		for (int i = 0; i < 20; i++) {
+			assertEquals(0, BinaryDescriptors.distance(pa, i, pa, i));
+			for (int j = 0; j < 20; j++) {
+				assertEquals(TestData.distance(a, i, b, j), BinaryDescriptors.distance(pa, i, pb, j));
+			}
+		}
+	}
+
+	@Test
+	public void bitsFollowTheByteOrder()
+	{
+		byte[] raw = new byte[BinaryDescriptors.BYTES_PER_DESCRIPTOR];
+		raw[0] = 0x01;
+		raw[9] = (byte) 0x80;
+		raw[31] = 0x40;
+		Mat d = new Mat(1, BinaryDescriptors.BYTES_PER_DESCRIPTOR, CvType.CV_8UC1);
+		d.put(0, 0, raw);
+		long[] packed = BinaryDescriptors.pack(d);
+		for (int bit = 0; bit < BinaryDescriptors.BITS_PER_DESCRIPTOR; bit++) {
+			int expected = bit == 0 || bit == 9 * 8 + 7 || bit == 31 * 8 + 6 ? 1 : 0;
+			assertEquals("bit " + bit, expected, BinaryDescriptors.bit(packed, 0, bit));
+		}
+	}
+
+	@Test
+	public void packerReusesItsArrays()
+	{
+		Random random = new Random(2);
+		Mat big = TestData.descriptors(random, 10);
+		Mat small = TestData.descriptors(random, 3);
+		BinaryDescriptors.Packer packer = new BinaryDescriptors.Packer();
+		long[] first = packer.pack(big);
+		long[] second = packer.pack(small);
+		assertSame(first, second);
+		long[] expected = BinaryDescriptors.pack(small);
+		long[] prefix = new long[expected.length];
+		System.arraycopy(second, 0, prefix, 0, prefix.length);
+		assertArrayEquals(expected, prefix);
+	}
+
+	@Test
+	public void emptyMatsPackToNothing()
+	{
+		assertEquals(0, BinaryDescriptors.pack(new Mat()).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void otherDescriptorsAreRejected()
+	{
+		BinaryDescriptors.pack(new Mat(2, 64, CvType.CV_32FC1));
+	}
+}
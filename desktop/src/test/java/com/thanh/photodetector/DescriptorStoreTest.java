@@ -0,0 +1,120 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+public class DescriptorStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	private static List<TrainingImage> library(Random random)
+	{
+		List<TrainingImage> library = new ArrayList<TrainingImage>();
+		library.add(TestData.image("a.jpg", 1, TestData.descriptors(random, 30)));
+		library.add(TestData.image("b.jpg", 1, TestData.descriptors(random, 0)));
+		library.add(TestData.image("c.jpg", 2, TestData.descriptors(random, 45)));
+		library.add(TestData.image("d.jpg", 3, TestData.descriptors(random, 8)));
+		return library;
+	}
+
+	private static byte[] bytes(Mat m)
+	{
+		byte[] data = new byte[(int) (m.total() * m.elemSize())];
+		if (data.length > 0) {
+			m.get(0, 0, data);
+		}
+		return data;
+	}
+
+	@Test
+	public void roundTrip() throws IOException
+	{
+		List<TrainingImage> library = library(new Random(12));
+		File file = folder.newFile("library.store");
+		DescriptorStore.write(file, library);
+		DescriptorStore store = DescriptorStore.open(file);
+
+		assertEquals(library.size(), store.numberOfImages());
+		assertEquals(30 + 45 + 8, store.numberOfDescriptors());
+		long[] packed = new long[BinaryDescriptors.LONGS_PER_DESCRIPTOR];
+		for (int img = 0; img < library.size(); img++) {
+			Mat expected = library.get(img).descriptors();
+			assertEquals(expected.rows(), store.numberOfDescriptors(img));
+			assertArrayEquals(bytes(expected), bytes(store.descriptors(img)));
+			long[] expected_packed = BinaryDescriptors.pack(expected);
+			for (int row = 0; row < expected.rows(); row++) {
+				store.descriptor(img, row, packed);
+				assertEquals(0, BinaryDescriptors.distance(expected_packed, row, packed, 0));
+			}
+		}
+	}
+
+	@Test
+	public void matchesLikeHammingMatcher() throws IOException
+	{
+		Random random = new Random(13);
+		List<TrainingImage> library = library(random);
+		DescriptorStore store = DescriptorStore.write(folder.newFile("library.store"), library);
+		HammingMatcher matcher = new HammingMatcher();
+		for (TrainingImage img: library) {
+			matcher.add(img);
+		}
+		matcher.train();
+		Mat query = TestData.noisyCopy(library.get(2).descriptors(), random, 30);
+
+		MatchBuffer expected = new MatchBuffer();
+		MatchBuffer actual = new MatchBuffer();
+		matcher.match(query, expected);
+		store.match(query, actual, null);
+		TestData.assertSameMatches(expected, actual);
+
+		BitSet images = new BitSet();
+		images.set(0);
+		images.set(3);
+		matcher.match(query, expected, images);
+		store.match(query, actual, images);
+		TestData.assertSameMatches(expected, actual);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void onlyOrbDescriptorsCanBeStored() throws IOException
+	{
+		List<TrainingImage> library = new ArrayList<TrainingImage>();
+		library.add(TestData.image("a.jpg", 1, new Mat(3, 64, CvType.CV_32FC1)));
+		DescriptorStore.write(folder.newFile("library.store"), library);
+	}
+
+	@Test(expected = IOException.class)
+	public void otherFilesAreNotOpened() throws IOException
+	{
+		File file = folder.newFile("not.store");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[64]);
+		} finally {
+			out.close();
+		}
+		DescriptorStore.open(file);
+	}
+}
@@ -0,0 +1,92 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DetectionMetricsTest {
+	@Test
+	public void smallValuesAreExact()
+	{
+		DetectionMetrics metrics = new DetectionMetrics();
+		DetectionMetrics.Histogram h = metrics.matchesPerQuery();
+		for (int i = 1; i <= 50; i++) {
+			metrics.recordMatches(i);
+		}
+		assertEquals(50, h.count());
+		assertEquals(50 * 51 / 2, h.sum());
+		assertEquals(25.5, h.mean(), 1e-9);
+		assertEquals(50, h.max());
+		assertEquals(25, h.percentile(50));
+		assertEquals(45, h.percentile(90));
+		assertEquals(1, h.percentile(0));
+		assertEquals(50, h.percentile(100));
+	}
+
+	@Test
+	public void percentilesAreWithinTheBucketPrecision()
+	{
+		Random random = new Random(26);
+		DetectionMetrics metrics = new DetectionMetrics();
+		long[] values = new long[10000];
+		for (int i = 0; i < values.length; i++) {
+			// nanoseconds, from a microsecond to about a second
+			values[i] = (long) Math.pow(10, 3 + 6 * random.nextDouble());
+			metrics.recordNanos(DetectionMetrics.MATCH, values[i]);
+		}
+		Arrays.sort(values);
+		DetectionMetrics.Histogram h = metrics.stage(DetectionMetrics.MATCH);
+		assertEquals(values[values.length - 1], h.max());
+		double[] percents = {1, 10, 50, 90, 99, 99.9};
+		for (double percent: percents) {
+			long exact = values[(int) Math.ceil(percent / 100 * values.length) - 1];
+			long estimate = h.percentile(percent);
+			assertTrue(percent + ": " + estimate + " vs " + exact,
+					estimate >= exact && estimate <= exact * 1.04);
+		}
+	}
+
+	@Test
+	public void countsQueriesAndStartsOver()
+	{
+		DetectionMetrics metrics = new DetectionMetrics();
+		metrics.recordResult(true);
+		metrics.recordResult(false);
+		metrics.recordResult(true);
+		metrics.recordKeyPoints(500);
+		metrics.recordNanos(DetectionMetrics.TOTAL, 2000000);
+		assertEquals(3, metrics.queries());
+		assertEquals(1, metrics.unidentified());
+		assertEquals(1, metrics.keyPointsPerImage().count());
+
+		metrics.reset();
+		assertEquals(0, metrics.queries());
+		assertEquals(0, metrics.unidentified());
+		assertEquals(0, metrics.keyPointsPerImage().count());
+		assertEquals(0, metrics.stage(DetectionMetrics.TOTAL).count());
+		assertEquals(0, metrics.stage(DetectionMetrics.TOTAL).percentile(50));
+	}
+
+	@Test
+	public void exportsEveryStage()
+	{
+		DetectionMetrics metrics = new DetectionMetrics();
+		metrics.recordNanos(DetectionMetrics.DETECT, 3000000);
+		metrics.recordResult(false);
+		String prometheus = metrics.toPrometheus();
+		String json = metrics.toJson();
+		for (int stage = DetectionMetrics.IMREAD; stage <= DetectionMetrics.TOTAL; stage++) {
+			String name = DetectionMetrics.stageName(stage);
+			assertTrue(name, prometheus.contains("stage=\"" + name + "\""));
+			assertTrue(name, json.contains("\"" + name + "\":"));
+		}
+		assertTrue(prometheus.contains(
+				"photodetector_stage_seconds_count{stage=\"detect\"} 1\n"));
+		assertTrue(prometheus.contains("photodetector_unidentified_total 1\n"));
+		assertTrue(json.startsWith("{\"queries\":1,\"unidentified\":1,"));
+	}
+}
@@ -0,0 +1,94 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+public class DetectionResultTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	// Method that returns an unidentified result of a 20 x 10 query with
+	// two key points, against an empty library
+	static DetectionResult result(long generation, NativeMemory native_memory, MatPool image_pool)
+	{
+		TrainingImage query = new TrainingImage();
+		query.setImage(new Mat(10, 20, CvType.CV_8UC1));
+		query.setKeyPoints(new MatOfKeyPoint(new KeyPoint(1, 2, 31), new KeyPoint(3, 4, 31)));
+		LibrarySnapshot snapshot = LibrarySnapshot.empty(new HammingMatcher(), 100);
+		VoteAccumulator tally = new VoteAccumulator();
+		tally.reset(snapshot.size());
+		return new DetectionResult(generation, query, null, snapshot, tally, new MatchBuffer(), 0,
+				0, 0, 0, 0, native_memory, image_pool);
+	}
+
+	@Test
+	public void releaseFreesTheQueryOnce()
+	{
+		NativeMemory native_memory = new NativeMemory();
+		DetectionResult result = result(0, native_memory, null);
+		assertFalse(result.identified());
+		assertEquals(1, native_memory.unreleasedResults());
+		// 200 pixels and two key points of 7 floats
+		assertEquals(200 + 2 * 7 * 4, native_memory.resultBytes());
+
+		result.release();
+		assertTrue(result.isReleased());
+		assertNull(result.query().image());
+		assertNull(result.query().keyPoints());
+		assertEquals(0, native_memory.unreleasedResults());
+		assertEquals(0, native_memory.resultBytes());
+
+		result.release();
+		assertEquals(0, native_memory.unreleasedResults());
+		assertEquals(0, native_memory.resultBytes());
+	}
+
+	@Test
+	public void releaseGivesTheImageToThePool()
+	{
+		NativeMemory native_memory = new NativeMemory();
+		MatPool pool = new MatPool(1, native_memory);
+		DetectionResult result = result(0, native_memory, pool);
+		Mat image = result.query().image();
+		result.release();
+		assertEquals(1, pool.size());
+		assertEquals(200, native_memory.pooledBytes());
+		assertSame(image, pool.take());
+		assertEquals(0, native_memory.pooledBytes());
+
+		// a full pool releases what it is given
+		result(0, native_memory, pool).release();
+		result(0, native_memory, pool).release();
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void retainedResultsAreFreedByTheLastHolder()
+	{
+		NativeMemory native_memory = new NativeMemory();
+		DetectionResult result = result(0, native_memory, null);
+		assertTrue(result.retain());
+		result.release();
+		assertFalse(result.isReleased());
+		assertEquals(1, native_memory.unreleasedResults());
+
+		result.release();
+		assertTrue(result.isReleased());
+		assertEquals(0, native_memory.unreleasedResults());
+		// a freed result can't be held again
+		assertFalse(result.retain());
+	}
+}
@@ -0,0 +1,152 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+public class HammingMatcherTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	// images of 40, 0, 25 and 60 descriptors; the empty one must never match
+	private static List<Mat> library(Random random)
+	{
+		List<Mat> library = new ArrayList<Mat>();
+		library.add(TestData.descriptors(random, 40));
+		library.add(TestData.descriptors(random, 0));
+		library.add(TestData.descriptors(random, 25));
+		library.add(TestData.descriptors(random, 60));
+		return library;
+	}
+
+	private static HammingMatcher trained(List<Mat> library)
+	{
+		HammingMatcher matcher = new HammingMatcher();
+		for (Mat d: library) {
+			matcher.add(d);
+		}
+		matcher.train();
+		return matcher;
+	}
+
+	// Method that checks every match of 'matches' against a brute force
+	// search of the images set in 'images' (all if null)
+	private static void assertExact(List<Mat> library, Mat query, MatchBuffer matches, BitSet images)
+	{
+		assertEquals(query.rows(), matches.size());
+		for (int i = 0; i < matches.size(); i++) {
+			int q = matches.queryIdx(i);
+			assertEquals(i, q);
+			int best = Integer.MAX_VALUE;
+			int second = Integer.MAX_VALUE;
+			for (int img = 0; img < library.size(); img++) {
+				if (images != null && !images.get(img)) {
+					continue;
+				}
+				for (int row = 0; row < library.get(img).rows(); row++) {
+					int distance = TestData.distance(query, q, library.get(img), row);
+					if (distance < best) {
+						second = best;
+						best = distance;
+					} else if (distance < second) {
+						second = distance;
+					}
+				}
+			}
+			assertEquals(best, matches.distance(i), 0);
+			assertEquals(second, matches.secondDistance(i), 0);
+			int img = matches.imgIdx(i);
+			assertTrue(images == null || images.get(img));
+			assertEquals(best, TestData.distance(query, q, library.get(img), matches.trainIdx(i)));
+		}
+	}
+
+	@Test
+	public void matchesAreExact()
+	{
+		Random random = new Random(3);
+		List<Mat> library = library(random);
+		Mat query = TestData.descriptors(random, 30);
+		MatchBuffer matches = new MatchBuffer();
+		trained(library).match(query, matches);
+		assertExact(library, query, matches, null);
+	}
+
+	@Test
+	public void subsetsOnlySearchTheirImages()
+	{
+		Random random = new Random(4);
+		List<Mat> library = library(random);
+		Mat query = TestData.descriptors(random, 30);
+		BitSet images = new BitSet();
+		images.set(1);
+		images.set(2);
+		MatchBuffer matches = new MatchBuffer();
+		trained(library).match(query, matches, images);
+		assertExact(library, query, matches, images);
+
+		images.clear();
+		images.set(1);
+		trained(library).match(query, matches, images);
+		assertEquals(0, matches.size());
+	}
+
+	@Test
+	public void secondDistanceIsInfiniteWithoutARunnerUp()
+	{
+		Random random = new Random(5);
+		List<Mat> library = new ArrayList<Mat>();
+		library.add(TestData.descriptors(random, 1));
+		MatchBuffer matches = new MatchBuffer();
+		trained(library).match(TestData.descriptors(random, 2), matches);
+		assertEquals(2, matches.size());
+		assertEquals(Float.POSITIVE_INFINITY, matches.secondDistance(0), 0);
+	}
+
+	@Test
+	public void appendableCopiesMatchLikeFreshMatchers()
+	{
+		Random random = new Random(6);
+		List<Mat> library = library(random);
+		Mat added = TestData.descriptors(random, 30);
+		Mat other = TestData.descriptors(random, 15);
+		Mat query = TestData.descriptors(random, 40);
+		HammingMatcher base = trained(library.subList(0, 3));
+
+		// the first copy appends in place, the second must not overwrite it
+		LibraryMatcher first = base.appendableCopy();
+		first.add(added);
+		first.train();
+		LibraryMatcher second = base.appendableCopy();
+		second.add(other);
+		second.train();
+
+		List<Mat> first_library = new ArrayList<Mat>(library.subList(0, 3));
+		first_library.add(added);
+		List<Mat> second_library = new ArrayList<Mat>(library.subList(0, 3));
+		second_library.add(other);
+		MatchBuffer expected = new MatchBuffer();
+		MatchBuffer actual = new MatchBuffer();
+		trained(first_library).match(query, expected);
+		first.match(query, actual);
+		TestData.assertSameMatches(expected, actual);
+		trained(second_library).match(query, expected);
+		second.match(query, actual);
+		TestData.assertSameMatches(expected, actual);
+		// and the base still sees its own images only
+		trained(library.subList(0, 3)).match(query, expected);
+		base.match(query, actual);
+		TestData.assertSameMatches(expected, actual);
+	}
+}
@@ -0,0 +1,73 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+public class InvertedFileTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	private static InvertedFile built(VocabularyTree tree, List<Mat> library)
+	{
+		InvertedFile file = new InvertedFile(tree);
+		file.build(library);
+		return file;
+	}
+
+	@Test
+	public void shortlistsTheImageAQueryCameFrom()
+	{
+		List<Mat> library = VocabularyTreeTest.library(new Random(21), 8, 60);
+		VocabularyTree tree = VocabularyTree.train(library, 8, 2, 5, 3);
+		InvertedFile file = built(tree, library);
+		assertEquals(8, file.numberOfImages());
+		for (int img = 0; img < library.size(); img++) {
+			BitSet shortlist = file.shortlist(library.get(img), 1, null);
+			assertEquals(1, shortlist.cardinality());
+			assertTrue(shortlist.get(img));
+		}
+		BitSet allowed = new BitSet();
+		allowed.set(1);
+		allowed.set(6);
+		BitSet shortlist = file.shortlist(library.get(3), 8, allowed);
+		assertTrue(shortlist.cardinality() > 0);
+		for (int img = shortlist.nextSetBit(0); img >= 0; img = shortlist.nextSetBit(img + 1)) {
+			assertTrue(allowed.get(img));
+		}
+	}
+
+	@Test
+	public void appendedFilesScoreLikeNewOnes()
+	{
+		Random random = new Random(22);
+		List<Mat> library = VocabularyTreeTest.library(random, 9, 60);
+		VocabularyTree tree = VocabularyTree.train(library, 8, 2, 5, 4);
+		InvertedFile base = built(tree, library.subList(0, 6));
+		InvertedFile appended = base.append(library.subList(6, 9));
+		InvertedFile rebuilt = built(tree, library);
+		InvertedFile base_rebuilt = built(tree, library.subList(0, 6));
+		assertEquals(9, appended.numberOfImages());
+		assertEquals(6, base.numberOfImages());
+
+		for (int q = 0; q < 10; q++) {
+			Mat query = q < library.size()
+					? TestData.noisyCopy(library.get(q), random, 10) : TestData.descriptors(random, 60);
+			// the shortlists are reused per thread, so copy them
+			BitSet expected = (BitSet) rebuilt.shortlist(query, 3, null).clone();
+			assertEquals(expected, appended.shortlist(query, 3, null));
+			expected = (BitSet) base_rebuilt.shortlist(query, 3, null).clone();
+			assertEquals(expected, base.shortlist(query, 3, null));
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.MatOfKeyPoint;
+
+public class KeyPointSelectorTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	// Method that checks indexes[from, to) is a permutation of what it
+	// was, with the 'k' largest responses first, and nothing else moved
+	private static void assertStrongestFirst(float[] responses, int[] before, int[] after,
+			int from, int to, int k)
+	{
+		for (int i = 0; i < before.length; i++) {
+			if (i < from || i >= to) {
+				assertEquals(before[i], after[i]);
+			}
+		}
+		int[] expected_indexes = Arrays.copyOfRange(before, from, to);
+		int[] actual_indexes = Arrays.copyOfRange(after, from, to);
+		Arrays.sort(expected_indexes);
+		Arrays.sort(actual_indexes);
+		assertArrayEquals(expected_indexes, actual_indexes);
+
+		float[] sorted = new float[to - from];
+		for (int i = from; i < to; i++) {
+			sorted[i - from] = responses[before[i]];
+		}
+		Arrays.sort(sorted);
+		float[] strongest = new float[k];
+		for (int i = 0; i < k; i++) {
+			strongest[i] = responses[after[from + i]];
+		}
+		Arrays.sort(strongest);
+		assertArrayEquals(Arrays.copyOfRange(sorted, sorted.length - k, sorted.length), strongest, 0);
+	}
+
+	private static void check(float[] responses, int from, int to, int k)
+	{
+		int[] indexes = new int[responses.length];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = indexes.length - 1 - i;
+		}
+		int[] before = indexes.clone();
+		KeyPointSelector.selectStrongest(responses, indexes, from, to, k);
+		if (k > 0 && k < to - from) {
+			assertStrongestFirst(responses, before, indexes, from, to, k);
+		} else {
+			// nothing to select
+			assertArrayEquals(before, indexes);
+		}
+	}
+
+	@Test
+	public void selectsTheStrongest()
+	{
+		Random random = new Random(14);
+		for (int trial = 0; trial < 200; trial++) {
+			int n = 1 + random.nextInt(200);
+			float[] responses = new float[n];
+			for (int i = 0; i < n; i++) {
+				// few distinct values, so there are plenty of ties
+				responses[i] = random.nextInt(trial % 2 == 0 ? 5 : 1000);
+			}
+			int from = random.nextInt(n);
+			int to = from + random.nextInt(n - from + 1);
+			check(responses, from, to, random.nextInt(to - from + 2));
+		}
+	}
+
+	@Test
+	public void selectsFromSortedAndEqualResponses()
+	{
+		float[] ascending = new float[100];
+		float[] descending = new float[100];
+		float[] equal = new float[100];
+		for (int i = 0; i < 100; i++) {
+			ascending[i] = i;
+			descending[i] = 100 - i;
+			equal[i] = 1;
+		}
+		for (int k = 0; k <= 100; k += 7) {
+			check(ascending, 0, 100, k);
+			check(descending, 0, 100, k);
+			check(equal, 0, 100, k);
+		}
+	}
+
+	@Test
+	public void fewKeyPointsAreKept()
+	{
+		MatOfKeyPoint key_points = new MatOfKeyPoint(new KeyPoint(1, 1, 31), new KeyPoint(2, 2, 31));
+		assertSame(key_points, KeyPointSelector.select(key_points, 2, 100, 100));
+	}
+
+	@Test
+	public void selectionCoversTheWholeImage()
+	{
+		// 200 strong key points crowd into the top left cell, every other
+		// cell of the 4 x 4 grid has 5 weak ones
+		Random random = new Random(15);
+		KeyPoint[] points = new KeyPoint[200 + 15 * 5];
+		int p = 0;
+		for (int i = 0; i < 200; i++) {
+			points[p++] = new KeyPoint(random.nextFloat() * 25, random.nextFloat() * 25, 31, -1,
+					10 + random.nextFloat());
+		}
+		for (int cell = 1; cell < 16; cell++) {
+			for (int i = 0; i < 5; i++) {
+				points[p++] = new KeyPoint((cell % 4) * 25 + random.nextFloat() * 25,
+						(cell / 4) * 25 + random.nextFloat() * 25, 31, -1, random.nextFloat());
+			}
+		}
+		MatOfKeyPoint selected = KeyPointSelector.select(new MatOfKeyPoint(points), 72, 100, 100);
+		KeyPoint[] kept = selected.toArray();
+		assertEquals(72, kept.length);
+
+		// 4 per cell, and the 8 left over go to the strongest anywhere
+		int[] per_cell = new int[16];
+		for (KeyPoint kp: kept) {
+			per_cell[(int) (kp.pt.y / 25) * 4 + (int) (kp.pt.x / 25)]++;
+		}
+		assertEquals(12, per_cell[0]);
+		for (int cell = 1; cell < 16; cell++) {
+			assertEquals(4, per_cell[cell]);
+		}
+		// the strong ones kept are the strongest of their cell
+		float weakest_kept = Float.MAX_VALUE;
+		for (KeyPoint kp: kept) {
+			if (kp.response >= 10) {
+				weakest_kept = Math.min(weakest_kept, kp.response);
+			}
+		}
+		int stronger = 0;
+		for (int i = 0; i < 200; i++) {
+			if (points[i].response >= weakest_kept) {
+				stronger++;
+			}
+		}
+		assertEquals(12, stronger);
+	}
+}
@@ -0,0 +1,148 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+public class LibraryIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	private static List<TrainingImage> library(Random random)
+	{
+		List<TrainingImage> library = new ArrayList<TrainingImage>();
+		TrainingImage located = TestData.image("a.jpg", 7, TestData.descriptors(random, 12));
+		located.setLocation(TestData.location(48.8584, 2.2945));
+		located.setKeyPoints(new MatOfKeyPoint(
+				new KeyPoint(10.5f, 20.25f, 31, 90, 0.003f, 2, -1),
+				new KeyPoint(1, 2, 31, 45, 0.01f, 0, 3)));
+		library.add(located);
+		// no location, no key points, no descriptors
+		library.add(TestData.image("b.jpg", 7, TestData.descriptors(random, 0)));
+		library.add(TestData.image("c.jpg", 8, TestData.descriptors(random, 5)));
+		return library;
+	}
+
+	private static byte[] bytes(Mat m)
+	{
+		byte[] data = new byte[(int) (m.total() * m.elemSize())];
+		if (data.length > 0) {
+			m.get(0, 0, data);
+		}
+		return data;
+	}
+
+	private static float[] fields(MatOfKeyPoint kp)
+	{
+		float[] fields = new float[(int) kp.total() * 7];
+		if (fields.length > 0) {
+			kp.get(0, 0, fields);
+		}
+		return fields;
+	}
+
+	@Test
+	public void roundTrip() throws IOException
+	{
+		List<TrainingImage> library = library(new Random(10));
+		File file = new File(folder.getRoot(), "library.idx");
+		LibraryIndex.save(file, 42, library);
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		List<TrainingImage> loaded = LibraryIndex.load(file, 42);
+		assertEquals(library.size(), loaded.size());
+		for (int i = 0; i < library.size(); i++) {
+			TrainingImage expected = library.get(i);
+			TrainingImage actual = loaded.get(i);
+			assertEquals(expected.pathID(), actual.pathID());
+			assertEquals(expected.tourID(), actual.tourID());
+			if (expected.location() == null) {
+				assertNull(actual.location());
+			} else {
+				assertEquals(expected.location().getLatitude(), actual.location().getLatitude(), 0);
+				assertEquals(expected.location().getLongitude(), actual.location().getLongitude(), 0);
+			}
+			float[] expected_fields = expected.keyPoints() == null
+					? new float[0] : fields(expected.keyPoints());
+			assertArrayEquals(expected_fields, fields(actual.keyPoints()), 0);
+			assertEquals(expected.numberOfDescriptors(), actual.numberOfDescriptors());
+			assertArrayEquals(bytes(expected.descriptors()), bytes(actual.descriptors()));
+		}
+	}
+
+	@Test
+	public void staleIndexesAreNotLoaded() throws IOException
+	{
+		File file = new File(folder.getRoot(), "library.idx");
+		assertNull(LibraryIndex.load(file, 42));
+
+		LibraryIndex.save(file, 42, library(new Random(11)));
+		// built with another configuration
+		assertNull(LibraryIndex.load(file, 43));
+
+		// truncated
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 10);
+		} finally {
+			raf.close();
+		}
+		assertNull(LibraryIndex.load(file, 42));
+	}
+
+	// Method that overwrites the int at 'offset' of 'file' with 'value'
+	private static void corrupt(File file, long offset, int value) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			raf.writeInt(value);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void inconsistentIndexesAreNotLoaded() throws IOException
+	{
+		List<TrainingImage> library = library(new Random(12));
+		File file = new File(folder.getRoot(), "library.idx");
+		// header, then "a.jpg", its tour, location and two key points
+		long images = 4 + 4 + 8;
+		long key_points = images + 4 + 2 + 5 + 8 + 1 + 2 * 8;
+		long rows = key_points + 4 + 2 * 7 * 4;
+		long[] offsets = { images, key_points, rows, rows, rows + 4, rows + 8, rows + 8 };
+		int[] values = { Integer.MAX_VALUE, Integer.MAX_VALUE, -1, 1 << 20, 1 << 20, -1, 7 };
+		for (int i = 0; i < offsets.length; i++) {
+			LibraryIndex.save(file, 42, library);
+			corrupt(file, offsets[i], values[i]);
+			assertNull(LibraryIndex.load(file, 42));
+		}
+		// the offsets above are those of a consistent index
+		LibraryIndex.save(file, 42, library);
+		corrupt(file, rows, 12);
+		assertEquals(library.size(), LibraryIndex.load(file, 42).size());
+	}
+}
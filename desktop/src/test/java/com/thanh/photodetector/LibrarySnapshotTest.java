@@ -0,0 +1,245 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import android.location.Location;
+
+public class LibrarySnapshotTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	// HammingMatcher that records whether it was released, and fails to if
+	// 'failing'; its copies are new matchers, so every generation gets one
+	// of its own
+	private static class ReleaseCountingMatcher extends HammingMatcher {
+		final List<ReleaseCountingMatcher> created;
+		int releases = 0;
+		boolean failing = false;
+
+		ReleaseCountingMatcher(List<ReleaseCountingMatcher> created)
+		{
+			this.created = created;
+			created.add(this);
+		}
+
+		@Override
+		public LibraryMatcher emptyCopy()
+		{
+			return new ReleaseCountingMatcher(created);
+		}
+
+		@Override
+		public LibraryMatcher appendableCopy()
+		{
+			return null;
+		}
+
+		@Override
+		public void release()
+		{
+			releases++;
+			if (failing) {
+				throw new IllegalStateException("Shard failed to release");
+			}
+		}
+	}
+
+	private static List<TrainingImage> images(Random random, int first, int n)
+	{
+		List<TrainingImage> images = new ArrayList<TrainingImage>();
+		for (int i = first; i < first + n; i++) {
+			TrainingImage img = TestData.image("img" + i + ".jpg", i / 2, TestData.descriptors(random, 30));
+			if (i % 3 != 0) {
+				img.setLocation(TestData.location(45 + i * 0.001, 7));
+			}
+			images.add(img);
+		}
+		return images;
+	}
+
+	private static void assertSameLibrary(LibrarySnapshot expected, LibrarySnapshot actual, Mat query)
+	{
+		assertEquals(expected.size(), actual.size());
+		assertEquals(expected.numberOfDescriptors(), actual.numberOfDescriptors());
+		MatchBuffer expected_matches = new MatchBuffer();
+		MatchBuffer actual_matches = new MatchBuffer();
+		expected.match(query, expected_matches, null);
+		actual.match(query, actual_matches, null);
+		TestData.assertSameMatches(expected_matches, actual_matches);
+
+		// the shortlists and near sets are reused per thread, so copy them
+		BitSet shortlist = (BitSet) expected.invertedFile().shortlist(query, 3, null).clone();
+		assertEquals(shortlist, actual.invertedFile().shortlist(query, 3, null));
+		Location center = TestData.location(45.004, 7);
+		BitSet near = (BitSet) expected.spatialIndex().near(center, 300).clone();
+		assertEquals(near, actual.spatialIndex().near(center, 300));
+	}
+
+	@Test
+	public void appendedGenerationsMatchLikeRebuiltOnes()
+	{
+		Random random = new Random(27);
+		List<TrainingImage> first = images(random, 0, 6);
+		List<TrainingImage> added = images(random, 6, 3);
+		List<TrainingImage> all = new ArrayList<TrainingImage>(first);
+		all.addAll(added);
+		List<Mat> descriptors = new ArrayList<Mat>();
+		for (TrainingImage img: all) {
+			descriptors.add(img.descriptors());
+		}
+		VocabularyTree tree = VocabularyTree.train(descriptors, 8, 2, 5, 5);
+		HammingMatcher prototype = new HammingMatcher();
+
+		LibrarySnapshot base = LibrarySnapshot.empty(prototype, 100).edit()
+				.addAll(first).vocabulary(tree).build(prototype, 100);
+		LibrarySnapshot appended = base.edit().addAll(added).build(prototype, 100);
+		LibrarySnapshot rebuilt = LibrarySnapshot.empty(prototype, 100).edit()
+				.addAll(all).vocabulary(tree).build(prototype, 100);
+		assertEquals(base.generation() + 1, appended.generation());
+		Mat query = TestData.noisyCopy(all.get(7).descriptors(), random, 20);
+		assertSameLibrary(rebuilt, appended, query);
+
+		// the base generation is left as it was
+		LibrarySnapshot base_rebuilt = LibrarySnapshot.empty(prototype, 100).edit()
+				.addAll(first).vocabulary(tree).build(prototype, 100);
+		assertSameLibrary(base_rebuilt, base, query);
+
+		// and removing a tour rebuilds what it removed from
+		LibrarySnapshot.Builder builder = appended.edit();
+		assertEquals(2, builder.removeTour(3));
+		LibrarySnapshot removed = builder.build(prototype, 100);
+		List<TrainingImage> rest = new ArrayList<TrainingImage>(all);
+		rest.remove(7);
+		rest.remove(6);
+		assertSameLibrary(LibrarySnapshot.empty(prototype, 100).edit().addAll(rest)
+				.vocabulary(tree).build(prototype, 100), removed, query);
+	}
+
+	@Test
+	public void matchersAreReleasedOnceNothingUsesThem()
+	{
+		Random random = new Random(28);
+		List<ReleaseCountingMatcher> created = new ArrayList<ReleaseCountingMatcher>();
+		ReleaseCountingMatcher prototype = new ReleaseCountingMatcher(created);
+		LibrarySnapshot empty = LibrarySnapshot.empty(prototype, 100);
+
+		LibrarySnapshot first = empty.edit().addAll(images(random, 0, 2)).build(prototype, 100);
+		empty.release();
+		ReleaseCountingMatcher first_matcher = created.get(1);
+
+		// a query on the first generation outlives it
+		assertTrue(first.retain());
+		LibrarySnapshot second = first.edit().addAll(images(random, 2, 2)).build(prototype, 100);
+		ReleaseCountingMatcher second_matcher = created.get(2);
+		first.release();
+		assertEquals(0, first_matcher.releases);
+		first.release();
+		assertEquals(1, first_matcher.releases);
+		assertFalse(first.retain());
+
+		// a generation whose images didn't change shares the matcher
+		LibrarySnapshot third = second.edit().vocabulary(null).build(prototype, 100);
+		assertEquals(3, created.size());
+		second.release();
+		assertEquals(0, second_matcher.releases);
+		third.release();
+		assertEquals(1, second_matcher.releases);
+
+		// the caller keeps owning the prototype
+		assertEquals(0, prototype.releases);
+	}
+
+	@Test
+	public void failedReleasesDontReachTheCaller()
+	{
+		Random random = new Random(29);
+		List<ReleaseCountingMatcher> created = new ArrayList<ReleaseCountingMatcher>();
+		ReleaseCountingMatcher prototype = new ReleaseCountingMatcher(created);
+		LibrarySnapshot first = LibrarySnapshot.empty(prototype, 100)
+				.edit().addAll(images(random, 0, 2)).build(prototype, 100);
+		created.get(1).failing = true;
+
+		// the last query on a retired generation ends normally
+		assertTrue(first.retain());
+		first.release();
+		first.release();
+		assertEquals(1, created.get(1).releases);
+		assertFalse(first.retain());
+	}
+
+	@Test
+	public void droppedImagesStayWithOlderGenerations()
+	{
+		Random random = new Random(33);
+		HammingMatcher prototype = new HammingMatcher();
+		List<TrainingImage> images = images(random, 0, 3);
+		for (TrainingImage img: images) {
+			img.setImage(new Mat(10, 20, CvType.CV_8UC1));
+		}
+		LibrarySnapshot first = LibrarySnapshot.empty(prototype, 100).edit().addAll(images)
+				.build(prototype, 100);
+		LibrarySnapshot.Builder edit = first.edit();
+		assertTrue(edit.dropImages());
+		LibrarySnapshot second = edit.build(prototype, 100);
+
+		for (int i = 0; i < first.size(); i++) {
+			assertNull(second.image(i).image());
+			assertEquals(first.image(i).pathID(), second.image(i).pathID());
+			assertEquals(200, first.image(i).image().total());
+		}
+		Mat query = TestData.noisyCopy(images.get(1).descriptors(), random, 10);
+		MatchBuffer expected = new MatchBuffer();
+		MatchBuffer actual = new MatchBuffer();
+		first.match(query, expected, null);
+		second.match(query, actual, null);
+		TestData.assertSameMatches(expected, actual);
+		assertFalse(second.edit().dropImages());
+	}
+
+	@Test
+	public void storedDescriptorsStayWithOlderGenerations() throws IOException
+	{
+		Random random = new Random(34);
+		HammingMatcher prototype = new HammingMatcher();
+		LibrarySnapshot first = LibrarySnapshot.empty(prototype, 100).edit()
+				.addAll(images(random, 0, 3)).build(prototype, 100);
+		DescriptorStore store = DescriptorStore.write(folder.newFile("library.store"), first.images());
+		LibrarySnapshot second = first.edit().descriptorStore(store).build(prototype, 100);
+
+		assertEquals(first.numberOfDescriptors(), second.numberOfDescriptors());
+		for (int i = 0; i < first.size(); i++) {
+			assertNull(second.image(i).descriptors());
+			assertNotNull(first.image(i).descriptors());
+			assertEquals(first.image(i).numberOfDescriptors(), second.image(i).numberOfDescriptors());
+		}
+		Mat query = TestData.noisyCopy(first.image(2).descriptors(), random, 10);
+		MatchBuffer expected = new MatchBuffer();
+		MatchBuffer actual = new MatchBuffer();
+		first.match(query, expected, null);
+		second.match(query, actual, null);
+		TestData.assertSameMatches(expected, actual);
+	}
+}
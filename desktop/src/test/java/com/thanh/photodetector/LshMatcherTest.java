@@ -0,0 +1,134 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+public class LshMatcherTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	private static LshMatcher trained(List<Mat> library)
+	{
+		LshMatcher matcher = new LshMatcher();
+		for (Mat d: library) {
+			matcher.add(d);
+		}
+		matcher.train();
+		return matcher;
+	}
+
+	@Test
+	public void findsPlantedNeighbours()
+	{
+		Random random = new Random(7);
+		List<Mat> library = new ArrayList<Mat>();
+		for (int img = 0; img < 4; img++) {
+			library.add(TestData.descriptors(random, 100));
+		}
+		// every query is a descriptor of image 2 with 8 of its bits flipped
+		Mat query = TestData.noisyCopy(library.get(2).rowRange(0, 50), random, 8);
+		MatchBuffer matches = new MatchBuffer();
+		trained(library).match(query, matches);
+
+		int found = 0;
+		for (int i = 0; i < matches.size(); i++) {
+			int q = matches.queryIdx(i);
+			int img = matches.imgIdx(i);
+			int row = matches.trainIdx(i);
+			// reported distances are exact, whatever was found
+			assertEquals(TestData.distance(query, q, library.get(img), row), matches.distance(i), 0);
+			assertTrue(matches.secondDistance(i) >= matches.distance(i));
+			if (img == 2 && row == q) {
+				found++;
+			}
+		}
+		assertTrue("found " + found + " of 50", found >= 45);
+	}
+
+	@Test
+	public void subsetsOnlySearchTheirImages()
+	{
+		Random random = new Random(8);
+		List<Mat> library = new ArrayList<Mat>();
+		for (int img = 0; img < 4; img++) {
+			library.add(TestData.descriptors(random, 50));
+		}
+		Mat query = TestData.noisyCopy(library.get(1), random, 4);
+		BitSet images = new BitSet();
+		images.set(0);
+		images.set(3);
+		MatchBuffer matches = new MatchBuffer();
+		trained(library).match(query, matches, images);
+		for (int i = 0; i < matches.size(); i++) {
+			assertTrue(images.get(matches.imgIdx(i)));
+		}
+	}
+
+	@Test
+	public void appendableCopiesMatchLikeFreshMatchers()
+	{
+		Random random = new Random(9);
+		List<Mat> library = new ArrayList<Mat>();
+		for (int img = 0; img < 5; img++) {
+			library.add(TestData.descriptors(random, 40));
+		}
+		Mat query = TestData.noisyCopy(library.get(4), random, 6);
+		LshMatcher base = trained(library.subList(0, 3));
+		LibraryMatcher copy = base.appendableCopy();
+		copy.add(library.get(3));
+		copy.add(library.get(4));
+		copy.train();
+
+		MatchBuffer expected = new MatchBuffer();
+		MatchBuffer actual = new MatchBuffer();
+		trained(library).match(query, expected);
+		copy.match(query, actual);
+		TestData.assertSameMatches(expected, actual);
+		trained(library.subList(0, 3)).match(query, expected);
+		base.match(query, actual);
+		TestData.assertSameMatches(expected, actual);
+	}
+
+	@Test
+	public void emptyMatchersMatchNothing()
+	{
+		MatchBuffer matches = new MatchBuffer();
+		matches.add(0, 1, 2, 3);
+		new LshMatcher().match(TestData.descriptors(new Random(10), 5), matches);
+		assertEquals(0, matches.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void matchingDoesntTrain()
+	{
+		Random random = new Random(11);
+		LshMatcher matcher = trained(Collections.singletonList(TestData.descriptors(random, 20)));
+		matcher.add(TestData.descriptors(random, 20));
+		matcher.match(TestData.descriptors(random, 5), new MatchBuffer());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void keysAreAtMost24Bits()
+	{
+		new LshMatcher(8, 25, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void probeRadiusIsAtMost2()
+	{
+		new LshMatcher(8, 16, 3);
+	}
+}
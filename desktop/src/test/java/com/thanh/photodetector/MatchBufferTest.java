@@ -0,0 +1,75 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MatchBufferTest {
+	private static MatchBuffer random(Random random, int size, int distinct)
+	{
+		MatchBuffer matches = new MatchBuffer(4);
+		for (int q = 0; q < size; q++) {
+			float distance = random.nextInt(distinct);
+			matches.add(q, random.nextInt(500), random.nextInt(10), distance, distance + 1);
+		}
+		return matches;
+	}
+
+	@Test
+	public void closestAreTheSmallestDistancesInOrder()
+	{
+		Random random = new Random(16);
+		for (int trial = 0; trial < 100; trial++) {
+			int size = random.nextInt(300);
+			MatchBuffer matches = random(random, size, trial % 2 == 0 ? 8 : 256);
+			MatchBuffer before = new MatchBuffer();
+			for (int i = 0; i < size; i++) {
+				before.add(matches, i);
+			}
+			int k = random.nextInt(size + 10);
+			MatchBuffer closest = new MatchBuffer();
+			closest.add(0, 0, 0, 0);
+			matches.closest(k, closest);
+
+			float[] sorted = new float[size];
+			for (int i = 0; i < size; i++) {
+				sorted[i] = matches.distance(i);
+			}
+			Arrays.sort(sorted);
+			assertEquals(Math.min(k, size), closest.size());
+			for (int i = 0; i < closest.size(); i++) {
+				assertEquals(sorted[i], closest.distance(i), 0);
+				// the rest of the match comes along with its distance
+				int q = closest.queryIdx(i);
+				assertEquals(matches.trainIdx(q), closest.trainIdx(i));
+				assertEquals(matches.imgIdx(q), closest.imgIdx(i));
+				assertEquals(matches.distance(q), closest.distance(i), 0);
+				assertEquals(matches.secondDistance(q), closest.secondDistance(i), 0);
+			}
+			// and the buffer itself is untouched
+			TestData.assertSameMatches(before, matches);
+		}
+	}
+
+	@Test
+	public void closestOfNothingIsEmpty()
+	{
+		MatchBuffer closest = new MatchBuffer();
+		closest.add(1, 2, 3, 4);
+		new MatchBuffer().closest(5, closest);
+		assertEquals(0, closest.size());
+		random(new Random(17), 10, 5).closest(0, closest);
+		assertEquals(0, closest.size());
+	}
+
+	@Test
+	public void secondDistanceDefaultsToInfinity()
+	{
+		MatchBuffer matches = new MatchBuffer();
+		matches.add(0, 1, 2, 3);
+		assertEquals(Float.POSITIVE_INFINITY, matches.secondDistance(0), 0);
+	}
+}
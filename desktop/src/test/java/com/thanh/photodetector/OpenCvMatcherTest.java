@@ -0,0 +1,90 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+import org.opencv.features2d.DescriptorMatcher;
+
+public class OpenCvMatcherTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	// Method that checks 'actual' finds matches as near as the exact ones
+	// of 'expected', in the images set in 'images'; ties may pick other rows
+	private static void assertAsNear(List<Mat> library, Mat query, MatchBuffer expected,
+			MatchBuffer actual, BitSet images)
+	{
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.queryIdx(i), actual.queryIdx(i));
+			assertEquals(expected.distance(i), actual.distance(i), 0);
+			assertEquals(expected.secondDistance(i), actual.secondDistance(i), 0);
+			int img = actual.imgIdx(i);
+			assertTrue(images.get(img));
+			assertEquals(expected.distance(i),
+					TestData.distance(query, actual.queryIdx(i), library.get(img), actual.trainIdx(i)), 0);
+		}
+	}
+
+	@Test
+	public void subsetsMatchLikeHammingMatcher()
+	{
+		Random random = new Random(40);
+		List<Mat> library = new ArrayList<Mat>();
+		HammingMatcher exact = new HammingMatcher();
+		OpenCvMatcher matcher = new OpenCvMatcher(DescriptorMatcher.BRUTEFORCE_HAMMING, true);
+		for (int img = 0; img < 6; img++) {
+			Mat d = TestData.descriptors(random, img == 2 ? 0 : 20 + 10 * img);
+			library.add(d);
+			exact.add(d);
+			matcher.add(d);
+		}
+		exact.train();
+		matcher.train();
+		Mat query = TestData.descriptors(random, 25);
+		MatchBuffer expected = new MatchBuffer();
+		MatchBuffer actual = new MatchBuffer();
+
+		BitSet images = new BitSet();
+		images.set(1);
+		images.set(2);
+		images.set(4);
+		// the same subset twice, as the batches of one query match it
+		for (int batch = 0; batch < 2; batch++) {
+			exact.match(query, expected, images);
+			matcher.match(query, actual, images);
+			assertAsNear(library, query, expected, actual, images);
+		}
+		// image 6 is added below
+		images.set(5);
+		images.set(6);
+		exact.match(query, expected, images);
+		matcher.match(query, actual, images);
+		assertAsNear(library, query, expected, actual, images);
+
+		// adding it makes the subset stacked before stale
+		Mat added = query.rowRange(0, 10).clone();
+		library.add(added);
+		exact.add(added);
+		matcher.add(added);
+		exact.train();
+		matcher.train();
+		exact.match(query, expected, images);
+		matcher.match(query, actual, images);
+		assertAsNear(library, query, expected, actual, images);
+		matcher.clear();
+		matcher.match(query, actual, images);
+		assertEquals(0, actual.size());
+	}
+}
@@ -0,0 +1,148 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+public class RemoteMatcherTest {
+	private static int port;
+
+	@BeforeClass
+	public static void startServer() throws IOException
+	{
+		TestData.loadOpenCv();
+		ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		final ShardServer server = new ShardServer(port);
+		Thread t = new Thread(new Runnable() {
+			@Override public void run() {
+				try {
+					server.serve();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}, "ShardServer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	// Method that creates a matcher on the test server, which may not be
+	// listening yet
+	static RemoteMatcher connect() throws InterruptedException
+	{
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return new RemoteMatcher("localhost", port);
+			} catch (IllegalStateException e) {
+				if (attempt == 50) {
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	@Test
+	public void matchesLikeALocalMatcher() throws InterruptedException
+	{
+		Random random = new Random(30);
+		HammingMatcher local = new HammingMatcher();
+		RemoteMatcher remote = connect();
+		for (int img = 0; img < 4; img++) {
+			Mat d = TestData.descriptors(random, 30);
+			local.add(d);
+			remote.add(d);
+		}
+		local.train();
+		remote.train();
+		Mat query = TestData.descriptors(random, 20);
+		BitSet images = new BitSet();
+		images.set(1);
+		images.set(3);
+
+		MatchBuffer expected = new MatchBuffer();
+		MatchBuffer actual = new MatchBuffer();
+		local.match(query, expected);
+		remote.match(query, actual);
+		TestData.assertSameMatches(expected, actual);
+		local.match(query, expected, images);
+		remote.match(query, actual, images);
+		TestData.assertSameMatches(expected, actual);
+		remote.release();
+	}
+
+	@Test
+	public void connectionsOutliveFailedRequests() throws InterruptedException
+	{
+		Random random = new Random(31);
+		RemoteMatcher released = connect();
+		released.release();
+		Mat query = TestData.descriptors(random, 5);
+		for (int i = 0; i < 3; i++) {
+			try {
+				released.match(query, new MatchBuffer());
+				fail("Matched a released matcher");
+			} catch (IllegalStateException e) {
+				// the server refused it
+			}
+		}
+
+		// the same server still serves the other matchers
+		RemoteMatcher other = (RemoteMatcher) released.emptyCopy();
+		other.add(query);
+		other.train();
+		MatchBuffer matches = new MatchBuffer();
+		other.match(query, matches);
+		HammingMatcher local = new HammingMatcher();
+		local.add(query);
+		local.train();
+		MatchBuffer expected = new MatchBuffer();
+		local.match(query, expected);
+		TestData.assertSameMatches(expected, matches);
+		other.release();
+	}
+
+	@Test
+	public void queriesDontOverlapChanges() throws InterruptedException
+	{
+		final Random random = new Random(32);
+		final RemoteMatcher remote = connect();
+		remote.add(TestData.descriptors(random, 200));
+		remote.train();
+		final Mat query = TestData.descriptors(random, 50);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread queries = new Thread(new Runnable() {
+			@Override public void run() {
+				try {
+					MatchBuffer matches = new MatchBuffer();
+					for (int i = 0; i < 200; i++) {
+						remote.match(query, matches);
+						assertEquals(query.rows(), matches.size());
+					}
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		});
+		queries.start();
+		for (int i = 0; i < 20; i++) {
+			remote.add(TestData.descriptors(random, 200));
+			remote.train();
+		}
+		queries.join();
+		assertNull(failure.get());
+		remote.release();
+	}
+}
@@ -0,0 +1,184 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import android.location.Location;
+
+public class ResultCacheTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	private static DetectionResult result(long generation, NativeMemory native_memory)
+	{
+		return DetectionResultTest.result(generation, native_memory, null);
+	}
+
+	// Method that caches 'result' and ends the use of the query that
+	// computed it, so that only the cache holds it
+	private static void putReleased(ResultCache cache, long hash, DetectionResult result)
+	{
+		cache.put(hash, null, result);
+		result.release();
+	}
+
+	@Test
+	public void returnsResultsOfTheSameQuery()
+	{
+		ResultCache cache = new ResultCache(4);
+		DetectionResult result = result(1, null);
+		cache.put(0x1234L, null, result);
+		assertSame(result, cache.get(0x1234L, null, 1));
+		assertNull(cache.get(0x1235L, null, 1));
+		assertEquals(1, cache.hits());
+		assertEquals(1, cache.misses());
+
+		// the cache and the caller it was returned to still hold it
+		result.release();
+		assertFalse(result.isReleased());
+		result.release();
+		assertFalse(result.isReleased());
+	}
+
+	@Test
+	public void returnsResultsOfNearDuplicatesTakenNearby()
+	{
+		ResultCache cache = new ResultCache(4, 2, 10);
+		Location here = TestData.location(45, 7);
+		Location next_door = TestData.location(45.00005, 7);
+		Location elsewhere = TestData.location(45.01, 7);
+		DetectionResult result = result(1, null);
+		cache.put(0xF0L, here, result);
+		assertSame(result, cache.get(0xF3L, next_door, 1));
+		assertNull(cache.get(0xF7L, here, 1));
+		assertNull(cache.get(0xF0L, elsewhere, 1));
+		assertNull(cache.get(0xF0L, null, 1));
+	}
+
+	@Test
+	public void evictsAndFreesTheLeastRecentlyUsed()
+	{
+		NativeMemory native_memory = new NativeMemory();
+		ResultCache cache = new ResultCache(2);
+		DetectionResult first = result(1, native_memory);
+		DetectionResult second = result(1, native_memory);
+		DetectionResult third = result(1, native_memory);
+		putReleased(cache, 1, first);
+		putReleased(cache, 2, second);
+		cache.get(1, null, 1).release();
+		putReleased(cache, 3, third);
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.evictions());
+		assertTrue(second.isReleased());
+		assertFalse(first.isReleased());
+		assertNull(cache.get(2, null, 1));
+		assertEquals(2, native_memory.unreleasedResults());
+	}
+
+	@Test
+	public void droppedResultsStayWithTheirCallers()
+	{
+		NativeMemory native_memory = new NativeMemory();
+		ResultCache cache = new ResultCache(1);
+		DetectionResult first = result(1, native_memory);
+		putReleased(cache, 1, first);
+		DetectionResult held = cache.get(1, null, 1);
+		putReleased(cache, 2, result(1, native_memory));
+		assertEquals(1, cache.evictions());
+
+		// evicted, but still drawable by the caller it was returned to
+		assertFalse(held.isReleased());
+		assertEquals(200, held.query().image().total());
+		held.release();
+		assertTrue(first.isReleased());
+		assertEquals(1, native_memory.unreleasedResults());
+	}
+
+	@Test
+	public void replacedResultsAreFreed()
+	{
+		ResultCache cache = new ResultCache(2);
+		DetectionResult old = result(1, null);
+		DetectionResult replacement = result(1, null);
+		putReleased(cache, 1, old);
+		putReleased(cache, 1, replacement);
+		assertTrue(old.isReleased());
+		assertSame(replacement, cache.get(1, null, 1));
+
+		// putting the same result again keeps it
+		cache.put(1, null, replacement);
+		assertFalse(replacement.isReleased());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void newerGenerationsDropEverything()
+	{
+		NativeMemory native_memory = new NativeMemory();
+		ResultCache cache = new ResultCache(4);
+		DetectionResult old = result(1, native_memory);
+		putReleased(cache, 1, old);
+		assertNull(cache.get(1, null, 2));
+		assertTrue(old.isReleased());
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.invalidations());
+
+		// results of older generations are neither cached nor returned
+		DetectionResult late = result(1, native_memory);
+		cache.put(2, null, late);
+		assertEquals(0, cache.size());
+		assertNull(cache.get(2, null, 1));
+		late.release();
+		assertEquals(0, native_memory.unreleasedResults());
+	}
+
+	@Test
+	public void clearFreesEverything()
+	{
+		NativeMemory native_memory = new NativeMemory();
+		ResultCache cache = new ResultCache(4);
+		putReleased(cache, 1, result(1, native_memory));
+		putReleased(cache, 2, result(1, native_memory));
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, native_memory.unreleasedResults());
+	}
+
+	@Test
+	public void hashesTellImagesApart()
+	{
+		Random random = new Random(18);
+		byte[] pixels = new byte[90 * 80];
+		random.nextBytes(pixels);
+		Mat img = new Mat(80, 90, CvType.CV_8UC1);
+		img.put(0, 0, pixels);
+		Mat same = img.clone();
+		random.nextBytes(pixels);
+		Mat other = new Mat(80, 90, CvType.CV_8UC1);
+		other.put(0, 0, pixels);
+
+		assertEquals(ResultCache.hash(img), ResultCache.hash(same));
+		assertNotEquals(ResultCache.hash(img), ResultCache.hash(other));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void needsRoomForAResult()
+	{
+		new ResultCache(0);
+	}
+}
@@ -0,0 +1,83 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.location.Location;
+
+public class SpatialIndexTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	// Method that returns 'n' images within about 2 km of (45, 7), every
+	// tenth without a location
+	private static List<TrainingImage> library(Random random, int n)
+	{
+		List<TrainingImage> library = new ArrayList<TrainingImage>();
+		for (int i = 0; i < n; i++) {
+			TrainingImage img = TestData.image("img" + i + ".jpg", i, null);
+			if (i % 10 != 3) {
+				img.setLocation(TestData.location(45 + (random.nextDouble() - 0.5) * 0.04,
+						7 + (random.nextDouble() - 0.5) * 0.05));
+			}
+			library.add(img);
+		}
+		return library;
+	}
+
+	// the images near() must return, by checking every one of them
+	private static BitSet near(List<TrainingImage> library, Location center, double radius)
+	{
+		BitSet near = new BitSet();
+		for (int i = 0; i < library.size(); i++) {
+			Location location = library.get(i).location();
+			if (location == null || center.distanceTo(location) < radius) {
+				near.set(i);
+			}
+		}
+		return near;
+	}
+
+	@Test
+	public void findsTheImagesInRange()
+	{
+		Random random = new Random(23);
+		List<TrainingImage> library = library(random, 300);
+		SpatialIndex index = new SpatialIndex(library, 100);
+		assertEquals(300, index.numberOfImages());
+		for (int q = 0; q < 50; q++) {
+			Location center = TestData.location(45 + (random.nextDouble() - 0.5) * 0.04,
+					7 + (random.nextDouble() - 0.5) * 0.05);
+			double radius = 20 + random.nextInt(400);
+			assertEquals(near(library, center, radius), index.near(center, radius));
+		}
+	}
+
+	@Test
+	public void appendedIndexesFindLikeNewOnes()
+	{
+		Random random = new Random(24);
+		List<TrainingImage> library = library(random, 200);
+		SpatialIndex base = new SpatialIndex(library.subList(0, 120), 100);
+		SpatialIndex appended = base.append(library);
+		assertEquals(200, appended.numberOfImages());
+		assertEquals(120, base.numberOfImages());
+		for (int q = 0; q < 50; q++) {
+			Location center = TestData.location(45 + (random.nextDouble() - 0.5) * 0.04,
+					7 + (random.nextDouble() - 0.5) * 0.05);
+			double radius = 20 + random.nextInt(400);
+			assertEquals(near(library, center, radius), appended.near(center, radius));
+			assertEquals(near(library.subList(0, 120), center, radius), base.near(center, radius));
+		}
+	}
+}
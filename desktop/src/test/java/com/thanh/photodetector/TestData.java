@@ -0,0 +1,107 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import android.location.Location;
+
+import nu.pattern.OpenCV;
+
+// Random descriptors and training images for the tests, and the OpenCV
+// natives they need
+final class TestData {
+	private static boolean loaded = false;
+
+	private TestData(){}
+
+	// Method that loads the natives bundled with the OpenCV jar once;
+	// loadLocally extracts them to a temporary directory, which works on
+	// JDKs where loadShared can't patch the library path
+	static synchronized void loadOpenCv()
+	{
+		if (!loaded) {
+			OpenCV.loadLocally();
+			loaded = true;
+		}
+	}
+
+	// Method that returns 'rows' random 32-byte binary descriptors
+	static Mat descriptors(Random random, int rows)
+	{
+		Mat d = new Mat(rows, BinaryDescriptors.BYTES_PER_DESCRIPTOR, CvType.CV_8UC1);
+		if (rows > 0) {
+			byte[] raw = new byte[rows * BinaryDescriptors.BYTES_PER_DESCRIPTOR];
+			random.nextBytes(raw);
+			d.put(0, 0, raw);
+		}
+		return d;
+	}
+
+	// Method that returns a copy of 'd' with 'bits' random bits of every
+	// row flipped, i.e. descriptors within 'bits' of the originals
+	static Mat noisyCopy(Mat d, Random random, int bits)
+	{
+		byte[] raw = new byte[d.rows() * BinaryDescriptors.BYTES_PER_DESCRIPTOR];
+		d.get(0, 0, raw);
+		for (int row = 0; row < d.rows(); row++) {
+			for (int i = 0; i < bits; i++) {
+				int bit = random.nextInt(BinaryDescriptors.BITS_PER_DESCRIPTOR);
+				raw[row * BinaryDescriptors.BYTES_PER_DESCRIPTOR + bit / 8] ^= 1 << (bit % 8);
+			}
+		}
+		Mat copy = new Mat(d.rows(), d.cols(), d.type());
+		copy.put(0, 0, raw);
+		return copy;
+	}
+
+	// Method that returns the Hamming distance between row 'i' of 'a' and
+	// row 'j' of 'b', byte by byte
+	static int distance(Mat a, int i, Mat b, int j)
+	{
+		byte[] x = new byte[BinaryDescriptors.BYTES_PER_DESCRIPTOR];
+		byte[] y = new byte[BinaryDescriptors.BYTES_PER_DESCRIPTOR];
+		a.get(i, 0, x);
+		b.get(j, 0, y);
+		int distance = 0;
+		for (int k = 0; k < x.length; k++) {
+			distance += Integer.bitCount((x[k] ^ y[k]) & 0xFF);
+		}
+		return distance;
+	}
+
+	// Method that returns a training image with the given descriptors and
+	// no location; unlike the path constructor it doesn't read EXIF data
+	static TrainingImage image(String path, long tour_id, Mat descriptors)
+	{
+		TrainingImage img = new TrainingImage();
+		img.setPathID(path);
+		img.setTourID(tour_id);
+		img.setDescriptors(descriptors);
+		return img;
+	}
+
+	// Method that checks two matchers returned the same matches, in order
+	static void assertSameMatches(MatchBuffer expected, MatchBuffer actual)
+	{
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.queryIdx(i), actual.queryIdx(i));
+			assertEquals(expected.imgIdx(i), actual.imgIdx(i));
+			assertEquals(expected.trainIdx(i), actual.trainIdx(i));
+			assertEquals(expected.distance(i), actual.distance(i), 0);
+			assertEquals(expected.secondDistance(i), actual.secondDistance(i), 0);
+		}
+	}
+
+	static Location location(double latitude, double longitude)
+	{
+		Location location = new Location("test");
+		location.setLatitude(latitude);
+		location.setLongitude(longitude);
+		return location;
+	}
+}
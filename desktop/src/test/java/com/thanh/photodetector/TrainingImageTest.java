@@ -0,0 +1,40 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.MatOfKeyPoint;
+
+public class TrainingImageTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	@Test
+	public void keyPointCoordinatesAreReadOnce()
+	{
+		TrainingImage img = TestData.image("a.jpg", 1, TestData.descriptors(new Random(50), 2));
+		assertNull(img.keyPointCoordinates());
+		img.setKeyPoints(new MatOfKeyPoint(
+				new KeyPoint(10.5f, 20.25f, 31, 90, 0.003f, 2, -1),
+				new KeyPoint(1, 2, 31, 45, 0.01f, 0, 3)));
+		float[] coordinates = img.keyPointCoordinates();
+		assertArrayEquals(new float[] { 10.5f, 20.25f, 1, 2 }, coordinates, 0);
+		assertSame(coordinates, img.keyPointCoordinates());
+		// copies of the image share them
+		assertSame(coordinates, img.withoutImage().keyPointCoordinates());
+
+		img.setKeyPoints(new MatOfKeyPoint(new KeyPoint(3, 4, 31)));
+		assertArrayEquals(new float[] { 3, 4 }, img.keyPointCoordinates(), 0);
+		img.releaseKeyPoints();
+		assertNull(img.keyPointCoordinates());
+	}
+}
@@ -0,0 +1,92 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Mat;
+
+public class VocabularyTreeTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	static List<Mat> library(Random random, int images, int rows)
+	{
+		List<Mat> library = new ArrayList<Mat>();
+		for (int img = 0; img < images; img++) {
+			library.add(TestData.descriptors(random, rows));
+		}
+		return library;
+	}
+
+	@Test
+	public void wordsAreLeavesOfTheTree()
+	{
+		List<Mat> library = library(new Random(19), 6, 200);
+		VocabularyTree tree = VocabularyTree.train(library, 4, 3, 5, 1);
+		assertEquals(4, tree.branching());
+		assertEquals(3, tree.depth());
+		assertTrue(tree.numberOfWords() > 1);
+		assertTrue(tree.numberOfWords() <= 4 * 4 * 4);
+		boolean[] used = new boolean[tree.numberOfWords()];
+		for (Mat d: library) {
+			long[] packed = BinaryDescriptors.pack(d);
+			for (int i = 0; i < d.rows(); i++) {
+				int word = tree.quantize(packed, i);
+				assertTrue(word >= 0 && word < tree.numberOfWords());
+				used[word] = true;
+			}
+		}
+		// every leaf was made for some of the training descriptors
+		for (boolean u: used) {
+			assertTrue(u);
+		}
+	}
+
+	@Test
+	public void savedTreesQuantizeTheSame() throws IOException
+	{
+		Random random = new Random(20);
+		List<Mat> library = library(random, 4, 150);
+		VocabularyTree tree = VocabularyTree.train(library, 3, 3, 5, 2);
+		File file = folder.newFile("vocabulary.tree");
+		tree.save(file);
+		VocabularyTree loaded = VocabularyTree.load(file);
+		assertEquals(tree.numberOfWords(), loaded.numberOfWords());
+		assertEquals(tree.branching(), loaded.branching());
+		assertEquals(tree.depth(), loaded.depth());
+		long[] packed = BinaryDescriptors.pack(TestData.descriptors(random, 300));
+		for (int i = 0; i < 300; i++) {
+			assertEquals(tree.quantize(packed, i), loaded.quantize(packed, i));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void otherFilesAreNotLoaded() throws IOException
+	{
+		File file = folder.newFile("not.tree");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[64]);
+		} finally {
+			out.close();
+		}
+		VocabularyTree.load(file);
+	}
+}
@@ -0,0 +1,107 @@
+package com.thanh.photodetector;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class VoteAccumulatorTest {
+	@BeforeClass
+	public static void loadOpenCv()
+	{
+		TestData.loadOpenCv();
+	}
+
+	// images 0 and 1 are at (45, 7), 2 is 1 km north, 3 has no location
+	private static LibrarySnapshot snapshot()
+	{
+		Random random = new Random(25);
+		List<TrainingImage> images = new ArrayList<TrainingImage>();
+		for (int i = 0; i < 4; i++) {
+			images.add(TestData.image("img" + i + ".jpg", i, TestData.descriptors(random, 1)));
+		}
+		images.get(0).setLocation(TestData.location(45, 7));
+		images.get(1).setLocation(TestData.location(45, 7));
+		images.get(2).setLocation(TestData.location(45.009, 7));
+		return LibrarySnapshot.empty(new HammingMatcher(), 100).edit().addAll(images)
+				.build(new HammingMatcher(), 100);
+	}
+
+	// one match per query descriptor, for images 'imgs'
+	private static MatchBuffer matches(int... imgs)
+	{
+		MatchBuffer matches = new MatchBuffer();
+		for (int q = 0; q < imgs.length; q++) {
+			matches.add(q, 0, imgs[q], 10);
+		}
+		return matches;
+	}
+
+	@Test
+	public void countsVotesInOrderOfTheFirst()
+	{
+		LibrarySnapshot snapshot = snapshot();
+		VoteAccumulator tally = new VoteAccumulator();
+		tally.reset(snapshot.size());
+		assertEquals(-1, tally.leader());
+		tally.count(matches(2, 0, 2, 3, 0, 0), snapshot, null, 0);
+
+		assertEquals(3, tally.numberVoted());
+		assertEquals(2, tally.voted(0));
+		assertEquals(0, tally.voted(1));
+		assertEquals(3, tally.voted(2));
+		assertEquals(3, tally.votes(0));
+		assertEquals(0, tally.votes(1));
+		assertEquals(2, tally.votes(2));
+		assertEquals(1, tally.votes(3));
+		assertEquals(0, tally.leader());
+	}
+
+	@Test
+	public void leaderIsTheFirstToReachTheMostVotes()
+	{
+		LibrarySnapshot snapshot = snapshot();
+		VoteAccumulator tally = new VoteAccumulator();
+		tally.reset(snapshot.size());
+		tally.count(matches(1, 2, 2, 1), snapshot, null, 0);
+		assertEquals(2, tally.leader());
+	}
+
+	@Test
+	public void locationFilterDropsFarImages()
+	{
+		LibrarySnapshot snapshot = snapshot();
+		VoteAccumulator tally = new VoteAccumulator();
+		tally.reset(snapshot.size());
+		tally.count(matches(2, 2, 2, 0, 3), snapshot, TestData.location(45.0001, 7), 100);
+		assertEquals(0, tally.votes(2));
+		assertEquals(1, tally.votes(0));
+		// without a location, image 3 can't be ruled out
+		assertEquals(1, tally.votes(3));
+		assertEquals(2, tally.numberVoted());
+	}
+
+	@Test
+	public void resetStartsOver()
+	{
+		LibrarySnapshot snapshot = snapshot();
+		VoteAccumulator tally = new VoteAccumulator();
+		tally.reset(snapshot.size());
+		tally.count(matches(2, 2, 2), snapshot, TestData.location(45.009, 7), 100);
+		assertEquals(3, tally.votes(2));
+
+		// nothing of the last query is left, including its location checks
+		tally.reset(snapshot.size());
+		assertEquals(0, tally.numberVoted());
+		assertEquals(-1, tally.leader());
+		assertEquals(0, tally.votes(2));
+		tally.count(matches(2, 1), snapshot, TestData.location(45, 7), 100);
+		assertEquals(0, tally.votes(2));
+		assertEquals(1, tally.votes(1));
+		assertEquals(1, tally.leader());
+	}
+}
@@ -0,0 +1,113 @@
+package com.thanh.photodetector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+// Helpers for 256-bit binary (ORB) descriptors packed into long[] arrays,
+// LONGS_PER_DESCRIPTOR longs per descriptor, in the same little-endian 
+// layout as the records of a DescriptorStore
+public class BinaryDescriptors {
+	public static final int BYTES_PER_DESCRIPTOR = 32;
+	public static final int LONGS_PER_DESCRIPTOR = 4;
+	public static final int BITS_PER_DESCRIPTOR = 256;
+	
+	private BinaryDescriptors(){}
+	
+	// Method that checks a descriptor Mat holds 32-byte binary descriptors
+	public static void check(Mat descriptors)
+	{
+		if (!descriptors.empty() && (descriptors.type() != CvType.CV_8UC1 
+				|| descriptors.cols() != BYTES_PER_DESCRIPTOR)) {
+			throw new IllegalArgumentException("Expected 32-byte binary (ORB) descriptors, got "
+					+ descriptors.cols() + " columns of type " + descriptors.type());
+		}
+	}
+	
+	// Method that packs every row of 'descriptors' into a new long[]
+	public static long[] pack(Mat descriptors)
+	{
+		check(descriptors);
+		int rows = descriptors.rows();
+		long[] packed = new long[rows * LONGS_PER_DESCRIPTOR];
+		if (rows > 0) {
+			byte[] raw = new byte[rows * BYTES_PER_DESCRIPTOR];
+			descriptors.get(0, 0, raw);
+			ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(packed);
+		}
+		return packed;
+	}
+	
+	// Method that packs 'rows' descriptors from 'raw' (as read from a Mat
+	// with get(0, 0, raw)) into 'packed', without allocating
+	public static void pack(byte[] raw, int rows, long[] packed)
+	{
+		int n = rows * LONGS_PER_DESCRIPTOR;
+		for (int i = 0; i < n; i++) {
+			int b = i * 8;
+			packed[i] = (raw[b] & 0xFFL)
+					| (raw[b + 1] & 0xFFL) << 8
+					| (raw[b + 2] & 0xFFL) << 16
+					| (raw[b + 3] & 0xFFL) << 24
+					| (raw[b + 4] & 0xFFL) << 32
+					| (raw[b + 5] & 0xFFL) << 40
+					| (raw[b + 6] & 0xFFL) << 48
+					| (raw[b + 7] & 0xFFL) << 56;
+		}
+	}
+
+	// Packs query descriptors into arrays that are reused from one query
+	// to the next, so after warm-up packing allocates nothing
+	public static class Packer {
+		private byte[] raw = new byte[0];
+		private long[] packed = new long[0];
+
+		// returns the packed rows of 'descriptors'; only valid until the next call
+		public long[] pack(Mat descriptors)
+		{
+			check(descriptors);
+			int rows = descriptors.rows();
+			if (raw.length < rows * BYTES_PER_DESCRIPTOR) {
+				raw = new byte[rows * BYTES_PER_DESCRIPTOR];
+				packed = new long[rows * LONGS_PER_DESCRIPTOR];
+			}
+			if (rows > 0) {
+				descriptors.get(0, 0, raw);
+				BinaryDescriptors.pack(raw, rows, packed);
+			}
+			return packed;
+		}
+	}
+
+	private static final ThreadLocal<Packer> PACKERS = new ThreadLocal<Packer>() {
+		@Override protected Packer initialValue() {
+			return new Packer();
+		}
+	};
+
+	// Packer of the calling thread, so that a matcher can serve queries
+	// from several threads without sharing scratch space
+	public static Packer packer()
+	{
+		return PACKERS.get();
+	}
+
+	// Hamming distance between descriptor 'i' of 'a' and descriptor 'j' of 'b'
+	public static int distance(long[] a, int i, long[] b, int j)
+	{
+		int p = i * LONGS_PER_DESCRIPTOR;
+		int q = j * LONGS_PER_DESCRIPTOR;
+		return Long.bitCount(a[p] ^ b[q])
+				+ Long.bitCount(a[p + 1] ^ b[q + 1])
+				+ Long.bitCount(a[p + 2] ^ b[q + 2])
+				+ Long.bitCount(a[p + 3] ^ b[q + 3]);
+	}
+	
+	// Value (0 or 1) of bit 'bit' of descriptor 'i'
+	public static int bit(long[] a, int i, int bit)
+	{
+		return (int) (a[i * LONGS_PER_DESCRIPTOR + (bit >>> 6)] >>> (bit & 63)) & 1;
+	}
+}
@@ -0,0 +1,187 @@
+package com.thanh.photodetector;
+
+import java.util.concurrent.Future;
+
+import org.opencv.core.Mat;
+
+import android.location.Location;
+import android.util.Log;
+
+// Live recognition of the camera preview. Every camera frame is offered to
+// onFrame, on the camera thread; a sample of them is detected on a
+// DetectionExecutor, and a building is reported only once it has won
+// 'min_votes' of the last 'window' detections.
+//
+// Sampling adapts to the detection time: a frame is only submitted when
+// the previous one is done, and then only after skipping as many frames
+// as the average detection takes in units of 'frame_budget_ms'. Detection
+// therefore costs the device about one frame budget per frame, and the
+// camera thread only ever copies a frame.
+public class ContinuousRecognizer {
+	// tag of messages printed to LogCat
+	protected static final String TAG = "ContinuousRecognizer";
+
+	// Receives recognized buildings, on a DetectionExecutor worker
+	public interface Listener {
+		// 'image' won 'votes' of the last 'window' detections
+		void onRecognized(TrainingImage image, int votes, int window);
+		// the recognized building has lost its majority
+		void onLost();
+	}
+
+	private static final long NOTHING = -1;
+	// weight of the newest detection time in the running average
+	private static final double LATENCY_SMOOTHING = 0.3;
+
+	private final DetectionExecutor executor;
+	private final Listener listener;
+	private final double frame_budget_ms;
+	private final int max_skipped_frames;
+	private final int min_votes;
+
+	// all guarded by 'this'
+	// tour ids of the last detections, NOTHING if unidentified
+	private final long[] recent_tours;
+	private final TrainingImage[] recent_images;
+	private int recent_count = 0;
+	private int recent_next = 0;
+	private long recognized_tour = NOTHING;
+	private boolean in_flight = false;
+	private Future<DetectionResult> pending;
+	private long submitted_at;
+	private double average_latency_ms = 0;
+	private int frames_to_skip = 0;
+	private boolean stopped = false;
+
+	private final DetectionExecutor.Callback callback = new DetectionExecutor.Callback() {
+		@Override public void onDetected(DetectionResult result) {
+			detected(result.match());
+			// only the match is kept
+			result.release();
+		}
+		@Override public void onFailed(Exception e) {
+			detected(null);
+		}
+	};
+
+	public ContinuousRecognizer(DetectionExecutor executor, Listener listener)
+	{
+		this(executor, listener, 33, 30, 5, 3);
+	}
+
+	// 'frame_budget_ms' is the detection time allowed per camera frame,
+	// e.g. 33 for 30 fps; at most 'max_skipped_frames' are skipped between
+	// samples. 'min_votes' of the last 'window' detections make a building
+	// recognized.
+	public ContinuousRecognizer(DetectionExecutor executor, Listener listener,
+			double frame_budget_ms, int max_skipped_frames, int window, int min_votes)
+	{
+		if (min_votes < 1 || min_votes > window) {
+			throw new IllegalArgumentException("min_votes must be in [1, "+window+"], got "+min_votes);
+		}
+		this.executor = executor;
+		this.listener = listener;
+		this.frame_budget_ms = frame_budget_ms;
+		this.max_skipped_frames = max_skipped_frames;
+		this.min_votes = min_votes;
+		recent_tours = new long[window];
+		recent_images = new TrainingImage[window];
+	}
+
+	// Method to call with every camera frame. Returns right away; the
+	// frame may be reused by the caller as soon as this returns.
+	public void onFrame(Mat rgba, Location location)
+	{
+		synchronized (this) {
+			// a frame submitted by someone else may have replaced ours
+			if (in_flight && pending.isCancelled()) {
+				in_flight = false;
+			}
+			if (stopped || in_flight) {
+				return;
+			}
+			if (frames_to_skip > 0) {
+				frames_to_skip--;
+				return;
+			}
+			in_flight = true;
+			submitted_at = System.nanoTime();
+			// submitFrame only takes the executor's lock briefly
+			pending = executor.submitFrame(rgba, location, callback);
+		}
+	}
+
+	private void detected(TrainingImage result)
+	{
+		TrainingImage recognized = null;
+		int votes = 0;
+		boolean lost = false;
+		synchronized (this) {
+			in_flight = false;
+			double latency_ms = (System.nanoTime() - submitted_at) / 1e6;
+			average_latency_ms = average_latency_ms == 0 ? latency_ms
+					: LATENCY_SMOOTHING * latency_ms + (1 - LATENCY_SMOOTHING) * average_latency_ms;
+			frames_to_skip = Math.max(0, Math.min(max_skipped_frames,
+					(int) Math.ceil(average_latency_ms / frame_budget_ms) - 1));
+			if (stopped) {
+				return;
+			}
+
+			// vote
+			recent_tours[recent_next] = result == null ? NOTHING : result.tourID();
+			recent_images[recent_next] = result;
+			recent_next = (recent_next + 1) % recent_tours.length;
+			recent_count = Math.min(recent_count + 1, recent_tours.length);
+			int best = -1;
+			int best_votes = 0;
+			for (int i = 0; i < recent_count; i++) {
+				if (recent_tours[i] == NOTHING) {
+					continue;
+				}
+				int v = 0;
+				for (int j = 0; j < recent_count; j++) {
+					if (recent_tours[j] == recent_tours[i]) {
+						v++;
+					}
+				}
+				if (v > best_votes) {
+					best_votes = v;
+					best = i;
+				}
+			}
+
+			if (best >= 0 && best_votes >= min_votes) {
+				if (recent_tours[best] != recognized_tour) {
+					recognized_tour = recent_tours[best];
+					recognized = recent_images[best];
+					votes = best_votes;
+				}
+			} else if (recognized_tour != NOTHING) {
+				recognized_tour = NOTHING;
+				lost = true;
+			}
+		}
+		// call the listener outside the lock
+		if (recognized != null) {
+			Log.i(TAG, "Recognized "+recognized.name()+" with "+votes+" of "
+					+recent_tours.length+" votes");
+			listener.onRecognized(recognized, votes, recent_tours.length);
+		} else if (lost) {
+			listener.onLost();
+		}
+	}
+
+	// Method that stops sampling frames; a detection in flight is ignored
+	public synchronized void stop()
+	{
+		stopped = true;
+	}
+
+	public synchronized double averageLatencyMillis(){
+		return average_latency_ms;
+	}
+
+	public synchronized int framesToSkip(){
+		return frames_to_skip;
+	}
+}
@@ -0,0 +1,232 @@
+package com.thanh.photodetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+// Read-only store of ORB descriptors for the whole training library,
+// backed by a single memory-mapped file. Descriptors are packed as
+// contiguous 32-byte records, and an offset table gives the first record
+// of every training image, so nothing has to live in per-image Mats.
+//
+// Layout (little-endian):
+//   int MAGIC, int VERSION, int number_of_images, int number_of_records
+//   int[number_of_images + 1] offset table (first record of each image)
+//   padding up to a multiple of RECORD_SIZE
+//   byte[number_of_records * RECORD_SIZE] descriptor records
+public class DescriptorStore {
+	public static final int MAGIC = 0x42524C44; // "BRLD"
+	public static final int VERSION = 1;
+
+	// bytes per ORB descriptor
+	public static final int RECORD_SIZE = 32;
+	private static final int LONGS_PER_RECORD = RECORD_SIZE / 8;
+
+	private final File file;
+	private final int[] offsets;
+	// view over the mapped records; reads go straight to the mapped pages
+	private final LongBuffer records;
+
+	private DescriptorStore(File file, int[] offsets, LongBuffer records)
+	{
+		this.file = file;
+		this.offsets = offsets;
+		this.records = records;
+	}
+
+	// Method that writes the descriptors of every image in 'library', in
+	// library order, to 'store_file' and returns the mapped store.
+	public static DescriptorStore write(File store_file, List<TrainingImage> library)
+			throws IOException
+	{
+		int n = library.size();
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			Mat d = library.get(i).descriptors();
+			int rows = 0;
+			if (d != null && !d.empty()) {
+				if (d.type() != CvType.CV_8UC1 || d.cols() != RECORD_SIZE) {
+					throw new IllegalArgumentException("Only 32-byte binary (ORB) "
+							+ "descriptors can be stored, got "+d.cols()+" columns of type "+d.type());
+				}
+				rows = d.rows();
+			}
+			offsets[i + 1] = offsets[i] + rows;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(store_file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			int header = dataOffset(n);
+			ByteBuffer head = ByteBuffer.allocate(header).order(ByteOrder.LITTLE_ENDIAN);
+			head.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(offsets[n]);
+			for (int off : offsets) {
+				head.putInt(off);
+			}
+			head.rewind();
+			raf.setLength(0);
+			channel.write(head, 0);
+
+			long position = header;
+			byte[] data = new byte[0];
+			for (TrainingImage img : library) {
+				Mat d = img.descriptors();
+				if (d == null || d.empty()) {
+					continue;
+				}
+				int size = d.rows() * RECORD_SIZE;
+				if (data.length < size) {
+					data = new byte[size];
+				}
+				d.get(0, 0, data);
+				position += channel.write(ByteBuffer.wrap(data, 0, size), position);
+			}
+			channel.force(false);
+		} finally {
+			raf.close();
+		}
+		return open(store_file);
+	}
+
+	// Method that maps an existing store file
+	public static DescriptorStore open(File store_file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(store_file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+				throw new IOException(store_file + " is not a descriptor store");
+			}
+			int n = map.getInt(8);
+			int[] offsets = new int[n + 1];
+			for (int i = 0; i <= n; i++) {
+				offsets[i] = map.getInt(16 + 4 * i);
+			}
+			map.position(dataOffset(n));
+			LongBuffer records = map.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+			// the mapping stays valid after the channel is closed
+			return new DescriptorStore(store_file, offsets, records);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int dataOffset(int number_of_images)
+	{
+		int header = 16 + 4 * (number_of_images + 1);
+		return (header + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+	}
+
+	public File file(){
+		return file;
+	}
+
+	public int numberOfImages(){
+		return offsets.length - 1;
+	}
+
+	public int numberOfDescriptors(){
+		return offsets[offsets.length - 1];
+	}
+
+	public int numberOfDescriptors(int img_idx){
+		return offsets[img_idx + 1] - offsets[img_idx];
+	}
+
+	// Method that packs descriptor 'row' of image 'img_idx' into the first
+	// record of 'packed', the layout of BinaryDescriptors.pack
+	public void descriptor(int img_idx, int row, long[] packed)
+	{
+		int start = (offsets[img_idx] + row) * LONGS_PER_RECORD;
+		for (int i = 0; i < LONGS_PER_RECORD; i++) {
+			packed[i] = records.get(start + i);
+		}
+	}
+
+	// Method that copies the descriptors of one image back into a Mat,
+	// for the rare callers that need OpenCV to see them
+	public Mat descriptors(int img_idx)
+	{
+		int rows = numberOfDescriptors(img_idx);
+		Mat result = new Mat(rows, RECORD_SIZE, CvType.CV_8UC1);
+		if (rows > 0) {
+			ByteBuffer bytes = ByteBuffer.allocate(rows * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			LongBuffer view = bytes.asLongBuffer();
+			int start = offsets[img_idx] * LONGS_PER_RECORD;
+			for (int i = 0; i < rows * LONGS_PER_RECORD; i++) {
+				view.put(i, records.get(start + i));
+			}
+			result.put(0, 0, bytes.array());
+		}
+		return result;
+	}
+
+	// Method that finds, for every row of 'query_descriptors', the nearest
+	// stored descriptor by Hamming distance, along with the distance to
+	// the second nearest for the ratio test. The records are read in place
+	// from the mapped file; imgIdx/trainIdx follow dMatcher's convention.
+	// If 'images' isn't null, only the images whose bit is set are searched.
+	public void match(Mat query_descriptors, MatchBuffer matches, BitSet images)
+	{
+		matches.clear();
+		int rows = query_descriptors.rows();
+		if (rows == 0 || numberOfDescriptors() == 0) {
+			return;
+		}
+		long[] query = BinaryDescriptors.packer().pack(query_descriptors);
+		matches.ensureCapacity(rows);
+
+		int n = numberOfImages();
+		for (int q = 0; q < rows; q++) {
+			long q0 = query[4 * q];
+			long q1 = query[4 * q + 1];
+			long q2 = query[4 * q + 2];
+			long q3 = query[4 * q + 3];
+			int best_distance = Integer.MAX_VALUE;
+			int second_distance = Integer.MAX_VALUE;
+			int best_img = -1;
+			int best_train = -1;
+			for (int img = 0; img < n; img++) {
+				if (images != null && !images.get(img)) {
+					continue;
+				}
+				int start = offsets[img];
+				int end = offsets[img + 1];
+				for (int r = start; r < end; r++) {
+					int p = r * LONGS_PER_RECORD;
+					int distance = Long.bitCount(q0 ^ records.get(p))
+							+ Long.bitCount(q1 ^ records.get(p + 1))
+							+ Long.bitCount(q2 ^ records.get(p + 2))
+							+ Long.bitCount(q3 ^ records.get(p + 3));
+					if (distance < second_distance) {
+						if (distance < best_distance) {
+							second_distance = best_distance;
+							best_distance = distance;
+							best_img = img;
+							best_train = r - start;
+						} else {
+							second_distance = distance;
+						}
+					}
+				}
+			}
+			if (best_img >= 0) {
+				matches.add(q, best_train, best_img, best_distance, 
+						second_distance == Integer.MAX_VALUE 
+						? Float.POSITIVE_INFINITY : second_distance);
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package com.thanh.photodetector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.opencv.core.Mat;
+
+import android.location.Location;
+import android.util.Log;
+
+// Runs detections on dedicated worker threads, so the thread that submits
+// them (typically the camera callback) never waits for one.
+//
+// ImageDetector is thread-safe, so the workers may share one detector;
+// passing it several times runs several detections at once. Image paths
+// are queued in order, up to a bounded capacity. Camera frames are
+// coalesced instead: only the latest frame is kept waiting, so a frame
+// that hasn't started yet is dropped when a newer one arrives, and
+// detection runs at whatever rate the workers sustain.
+public class DetectionExecutor {
+	// tag of messages printed to LogCat
+	protected static final String TAG = "DetectionExecutor";
+
+	// tag of Error messages printed to LogCat
+	protected static final String ERROR = "Error in DetectionExecutor";
+
+	// Receives the outcome of a detection, on the worker thread that ran it.
+	// Not called for frames that were dropped or detections that were cancelled.
+	public interface Callback {
+		// result.match() is null if nothing was identified
+		void onDetected(DetectionResult result);
+		void onFailed(Exception e);
+	}
+
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final int queue_capacity;
+
+	// all guarded by 'this'
+	private final ArrayDeque<Job> queued_paths = new ArrayDeque<Job>();
+	private Job pending_frame;
+	// copies of camera frames that can be reused
+	private final ArrayDeque<Mat> spare_frames = new ArrayDeque<Mat>();
+	private boolean shut_down = false;
+	private long frames_submitted = 0;
+	private long frames_dropped = 0;
+	private long detections_completed = 0;
+
+	// Constructor with a single worker
+	public DetectionExecutor(ImageDetector detector)
+	{
+		this(Collections.singletonList(detector), 16);
+	}
+
+	// Constructor with one worker per element of 'detectors', which may
+	// all be the same detector, and room for 'queue_capacity' queued image paths
+	public DetectionExecutor(List<ImageDetector> detectors, int queue_capacity)
+	{
+		this.queue_capacity = queue_capacity;
+		for (int i = 0; i < detectors.size(); i++) {
+			final ImageDetector detector = detectors.get(i);
+			Thread worker = new Thread(new Runnable() {
+				@Override public void run() {
+					work(detector);
+				}
+			}, "DetectionExecutor-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+		}
+		for (Thread worker: workers) {
+			worker.start();
+		}
+	}
+
+	// A detection waiting for, or running on, a worker
+	private class Job implements Callable<DetectionResult> {
+		final String path;
+		Mat frame;
+		Location location;
+		ImageDetector detector;
+		final FutureTask<DetectionResult> task;
+
+		Job(String path, Mat frame, Location location, final Callback callback)
+		{
+			this.path = path;
+			this.frame = frame;
+			this.location = location;
+			task = new FutureTask<DetectionResult>(this) {
+				@Override protected void done() {
+					jobDone(Job.this, this, callback);
+				}
+			};
+		}
+
+		@Override
+		public DetectionResult call()
+		{
+			if (path != null) {
+				return detector.detectPhoto(path);
+			}
+			return detector.detectFrame(frame, location);
+		}
+	}
+
+	// Method that queues the detection of an image file. Never blocks;
+	// throws RejectedExecutionException if 'queue_capacity' paths are
+	// already waiting or the executor was shut down.
+	public synchronized Future<DetectionResult> submit(String image_path, Callback callback)
+	{
+		if (shut_down) {
+			throw new RejectedExecutionException("DetectionExecutor was shut down");
+		}
+		if (queued_paths.size() >= queue_capacity) {
+			throw new RejectedExecutionException(queue_capacity + " images already waiting");
+		}
+		Job job = new Job(image_path, null, null, callback);
+		queued_paths.add(job);
+		notify();
+		return job.task;
+	}
+
+	// Method that submits an RGBA camera frame for detection. The frame is
+	// copied, so the caller may reuse it right away. If an earlier frame is still
+	// waiting, it is dropped in favour of this one. 'location' may be null.
+	public Future<DetectionResult> submitFrame(Mat frame, Location location, Callback callback)
+	{
+		Mat copy;
+		synchronized (this) {
+			if (shut_down) {
+				throw new RejectedExecutionException("DetectionExecutor was shut down");
+			}
+			copy = spare_frames.isEmpty() ? new Mat() : spare_frames.pop();
+		}
+		// copy outside the lock, so workers aren't held up by it
+		frame.copyTo(copy);
+		Job job = new Job(null, copy, location, callback);
+		Job dropped;
+		synchronized (this) {
+			frames_submitted++;
+			dropped = pending_frame;
+			pending_frame = job;
+			if (dropped != null) {
+				frames_dropped++;
+			}
+			notify();
+		}
+		if (dropped != null) {
+			// it never started, so its frame goes back to the spares in jobDone
+			dropped.task.cancel(false);
+		}
+		return job.task;
+	}
+
+	private void work(ImageDetector detector)
+	{
+		while (true) {
+			Job job;
+			synchronized (this) {
+				while (!shut_down && pending_frame == null && queued_paths.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// only shutdown() stops a worker
+					}
+				}
+				if (shut_down) {
+					return;
+				}
+				// the latest frame goes first, it is the one the user is looking at
+				if (pending_frame != null) {
+					job = pending_frame;
+					pending_frame = null;
+				} else {
+					job = queued_paths.poll();
+				}
+			}
+			job.detector = detector;
+			job.task.run();
+		}
+	}
+
+	private void jobDone(Job job, FutureTask<DetectionResult> task, Callback callback)
+	{
+		synchronized (this) {
+			if (job.frame != null) {
+				if (shut_down) {
+					job.frame.release();
+				} else {
+					spare_frames.push(job.frame);
+				}
+				job.frame = null;
+			}
+			if (!task.isCancelled()) {
+				detections_completed++;
+			}
+		}
+		if (task.isCancelled() || callback == null) {
+			return;
+		}
+		DetectionResult result;
+		try {
+			// done, so this doesn't block
+			result = task.get();
+		} catch (ExecutionException e) {
+			Log.e(ERROR, "Detection failed: " + e.getCause());
+			callback.onFailed(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		callback.onDetected(result);
+	}
+
+	// Method that stops the workers once their current detection is done
+	// and cancels everything still waiting
+	public void shutdown()
+	{
+		List<Job> cancelled = new ArrayList<Job>();
+		synchronized (this) {
+			if (shut_down) {
+				return;
+			}
+			shut_down = true;
+			cancelled.addAll(queued_paths);
+			queued_paths.clear();
+			if (pending_frame != null) {
+				cancelled.add(pending_frame);
+				pending_frame = null;
+			}
+			notifyAll();
+		}
+		for (Job job: cancelled) {
+			job.task.cancel(false);
+		}
+		synchronized (this) {
+			for (Mat frame: spare_frames) {
+				frame.release();
+			}
+			spare_frames.clear();
+		}
+		Log.i(TAG, "Shut down: " + toString());
+	}
+
+	public synchronized long framesSubmitted(){
+		return frames_submitted;
+	}
+
+	public synchronized long framesDropped(){
+		return frames_dropped;
+	}
+
+	public synchronized long detectionsCompleted(){
+		return detections_completed;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "DetectionExecutor(workers=" + workers.size() + ", frames submitted="
+				+ frames_submitted + ", dropped=" + frames_dropped
+				+ ", detections=" + detections_completed + ")";
+	}
+}
@@ -0,0 +1,294 @@
+package com.thanh.photodetector;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Per-stage latencies and per-query counts of ImageDetector's queries,
+// recorded lock-free from any number of querying threads. Install one
+// with ImageDetector.setMetrics; without one, queries record nothing.
+//
+// Values go into log-linear histograms in the spirit of HdrHistogram:
+// every power of two is split into 32 equal buckets, so percentiles are
+// exact to within about 3% at any scale, and recording is a couple of
+// shifts and one atomic increment.
+public class DetectionMetrics {
+	public static final int IMREAD = 0;
+	public static final int RESIZE = 1;
+	public static final int DETECT = 2;
+	public static final int DESCRIBE = 3;
+	public static final int MATCH = 4;
+	// counting votes, location filter included
+	public static final int VOTE = 5;
+	// comparing the two best images
+	public static final int DECIDE = 6;
+	// fitting a model to the matches of the best voted images, if set up
+	public static final int VERIFY = 7;
+	// the whole query, from detectPhoto to its result
+	public static final int TOTAL = 8;
+	private static final String[] STAGE_NAMES =
+		{"imread", "resize", "detect", "describe", "match", "vote", "decide", "verify", "total"};
+
+	private final Histogram[] stages = new Histogram[STAGE_NAMES.length];
+	private final Histogram keypoints_per_image = new Histogram();
+	private final Histogram matches_per_query = new Histogram();
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong unidentified = new AtomicLong();
+
+	public DetectionMetrics()
+	{
+		for (int stage = 0; stage < stages.length; stage++) {
+			stages[stage] = new Histogram();
+		}
+	}
+
+	// Method that records a stage which started at 'start_nanos'
+	// (from System.nanoTime) and ends now
+	void record(int stage, long start_nanos)
+	{
+		stages[stage].record(System.nanoTime() - start_nanos);
+	}
+
+	void recordNanos(int stage, long nanos)
+	{
+		stages[stage].record(nanos);
+	}
+
+	void recordKeyPoints(int n)
+	{
+		keypoints_per_image.record(n);
+	}
+
+	void recordMatches(int n)
+	{
+		matches_per_query.record(n);
+	}
+
+	void recordResult(boolean identified)
+	{
+		queries.incrementAndGet();
+		if (!identified) {
+			unidentified.incrementAndGet();
+		}
+	}
+
+	// nanoseconds spent in 'stage' per query
+	public Histogram stage(int stage){
+		return stages[stage];
+	}
+
+	public static String stageName(int stage){
+		return STAGE_NAMES[stage];
+	}
+
+	public Histogram keyPointsPerImage(){
+		return keypoints_per_image;
+	}
+
+	public Histogram matchesPerQuery(){
+		return matches_per_query;
+	}
+
+	public long queries(){
+		return queries.get();
+	}
+
+	public long unidentified(){
+		return unidentified.get();
+	}
+
+	// Method that starts over; queries running meanwhile may be half counted
+	public void reset()
+	{
+		for (Histogram h: stages) {
+			h.reset();
+		}
+		keypoints_per_image.reset();
+		matches_per_query.reset();
+		queries.set(0);
+		unidentified.set(0);
+	}
+
+	// Method that returns the metrics in the Prometheus text exposition
+	// format, as summaries with quantiles 0.5, 0.9, 0.99 and 1
+	public String toPrometheus()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP photodetector_stage_seconds Time spent in each stage of a query.\n");
+		sb.append("# TYPE photodetector_stage_seconds summary\n");
+		for (int stage = 0; stage < stages.length; stage++) {
+			appendSummary(sb, "photodetector_stage_seconds", "stage=\"" + STAGE_NAMES[stage] + "\",",
+					stages[stage], 1e-9);
+		}
+		sb.append("# HELP photodetector_keypoints_per_image Key points found in each query image.\n");
+		sb.append("# TYPE photodetector_keypoints_per_image summary\n");
+		appendSummary(sb, "photodetector_keypoints_per_image", "", keypoints_per_image, 1);
+		sb.append("# HELP photodetector_matches_per_query Descriptor matches of each query.\n");
+		sb.append("# TYPE photodetector_matches_per_query summary\n");
+		appendSummary(sb, "photodetector_matches_per_query", "", matches_per_query, 1);
+		sb.append("# HELP photodetector_queries_total Queries detected.\n");
+		sb.append("# TYPE photodetector_queries_total counter\n");
+		sb.append("photodetector_queries_total ").append(queries()).append('\n');
+		sb.append("# HELP photodetector_unidentified_total Queries that matched no training image.\n");
+		sb.append("# TYPE photodetector_unidentified_total counter\n");
+		sb.append("photodetector_unidentified_total ").append(unidentified()).append('\n');
+		return sb.toString();
+	}
+
+	private static void appendSummary(StringBuilder sb, String name, String labels,
+			Histogram h, double scale)
+	{
+		double[] quantiles = {0.5, 0.9, 0.99, 1};
+		for (double q: quantiles) {
+			sb.append(String.format(Locale.US, "%s{%squantile=\"%s\"} %s\n", name, labels,
+					q == 1 ? "1" : Double.toString(q), number(h.percentile(100 * q) * scale)));
+		}
+		String label_set = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+		sb.append(name).append("_sum").append(label_set).append(' ')
+				.append(number(h.sum() * scale)).append('\n');
+		sb.append(name).append("_count").append(label_set).append(' ').append(h.count()).append('\n');
+	}
+
+	private static String number(double x)
+	{
+		return Double.toString(x);
+	}
+
+	// Method that returns the metrics as a JSON object, times in milliseconds
+	public String toJson()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"queries\":").append(queries())
+				.append(",\"unidentified\":").append(unidentified())
+				.append(",\"stages_ms\":{");
+		for (int stage = 0; stage < stages.length; stage++) {
+			if (stage > 0) {
+				sb.append(',');
+			}
+			sb.append('"').append(STAGE_NAMES[stage]).append("\":");
+			appendJson(sb, stages[stage], 1e-6);
+		}
+		sb.append("},\"keypoints_per_image\":");
+		appendJson(sb, keypoints_per_image, 1);
+		sb.append(",\"matches_per_query\":");
+		appendJson(sb, matches_per_query, 1);
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private static void appendJson(StringBuilder sb, Histogram h, double scale)
+	{
+		sb.append(String.format(Locale.US,
+				"{\"count\":%d,\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f}",
+				h.count(), h.mean() * scale, h.percentile(50) * scale, h.percentile(90) * scale,
+				h.percentile(99) * scale, h.max() * scale));
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "Detected %d queries, %d unidentified%n",
+				queries(), unidentified()));
+		for (int stage = 0; stage < stages.length; stage++) {
+			Histogram h = stages[stage];
+			sb.append(String.format(Locale.US, "  %-16s %8d times  p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms%n",
+					STAGE_NAMES[stage], h.count(), h.percentile(50) / 1e6,
+					h.percentile(99) / 1e6, h.max() / 1e6));
+		}
+		return sb.toString();
+	}
+
+	// Lock-free log-linear histogram of non-negative longs. Values below 64
+	// are counted exactly; above, every power of two has 32 buckets.
+	public static class Histogram {
+		private static final int SUB_BITS = 5;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long value)
+		{
+			if (value < 0) {
+				value = 0;
+			}
+			counts.incrementAndGet(bucketOf(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long m = max.get();
+			while (value > m && !max.compareAndSet(m, value)) {
+				m = max.get();
+			}
+		}
+
+		private static int bucketOf(long value)
+		{
+			if (value < 2 * SUB_BUCKETS) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return shift * SUB_BUCKETS + (int) (value >>> shift);
+		}
+
+		// highest value counted in 'bucket'
+		private static long highestOf(int bucket)
+		{
+			if (bucket < 2 * SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = bucket / SUB_BUCKETS - 1;
+			long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+			return ((top + 1) << shift) - 1;
+		}
+
+		public long count(){
+			return count.get();
+		}
+
+		public long sum(){
+			return sum.get();
+		}
+
+		public long max(){
+			return max.get();
+		}
+
+		public double mean(){
+			long n = count.get();
+			return n == 0 ? 0 : (double) sum.get() / n;
+		}
+
+		// Method that returns the value below which 'percent' of the values
+		// fall, to within the bucket precision; 0 if nothing was recorded
+		public long percentile(double percent)
+		{
+			long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				seen += counts.get(b);
+				if (seen >= rank) {
+					return Math.min(highestOf(b), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		void reset()
+		{
+			for (int b = 0; b < BUCKETS; b++) {
+				counts.set(b, 0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+}
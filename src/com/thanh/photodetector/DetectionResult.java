@@ -0,0 +1,217 @@
+package com.thanh.photodetector;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.MatOfDMatch;
+
+// Everything ImageDetector found out about one query: the training image
+// it matched (if any), the votes every training image got, the matches
+// supporting the winner and how long each step took. Results never change
+// after detectPhoto returns them, so they can be handed to other threads
+// and drawn while the detector serves the next query.
+public final class DetectionResult {
+	private final long generation;
+	private final TrainingImage query;
+	private final TrainingImage match;
+	// the images voted for and their votes, after the location filter
+	private final TrainingImage[] voted;
+	private final int[] vote_counts;
+	// built from them when first asked for
+	private volatile Map<TrainingImage, Integer> votes;
+	// matches between the query and 'match'; a private copy
+	private final MatchBuffer good_matches;
+	// query descriptors matched before the votes decided the query
+	private final int matched_descriptors;
+
+	private final long extraction_nanos;
+	private final long matching_nanos;
+	private final long voting_nanos;
+	private final long total_nanos;
+
+	// counts the native memory of the query until it is freed; may be null
+	private final NativeMemory native_memory;
+	private final long native_bytes;
+	// where the query image goes once freed; null releases it
+	private final MatPool image_pool;
+	// 1 for the caller detectPhoto returned it to, plus 1 per ResultCache
+	// holding it and per caller a cache returned it to; 0 once freed
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	DetectionResult(long generation, TrainingImage query, TrainingImage match,
+			LibrarySnapshot snapshot, VoteAccumulator tally, MatchBuffer good_matches, int matched_descriptors,
+			long extraction_nanos, long matching_nanos, long voting_nanos, long total_nanos,
+			NativeMemory native_memory, MatPool image_pool)
+	{
+		this.generation = generation;
+		this.query = query;
+		this.match = match;
+		voted = new TrainingImage[tally.numberVoted()];
+		vote_counts = new int[voted.length];
+		for (int i = 0; i < voted.length; i++) {
+			voted[i] = snapshot.image(tally.voted(i));
+			vote_counts[i] = tally.votes(tally.voted(i));
+		}
+		this.good_matches = good_matches;
+		this.matched_descriptors = matched_descriptors;
+		this.extraction_nanos = extraction_nanos;
+		this.matching_nanos = matching_nanos;
+		this.voting_nanos = voting_nanos;
+		this.total_nanos = total_nanos;
+		this.native_memory = native_memory;
+		this.image_pool = image_pool;
+		native_bytes = NativeMemory.bytesOf(query.image()) + NativeMemory.bytesOf(query.keyPoints());
+		if (native_memory != null) {
+			native_memory.resultCreated(native_bytes);
+		}
+	}
+
+	// generation of the library snapshot the query ran against
+	public long generation(){
+		return generation;
+	}
+
+	// the query image, with its key points and descriptors
+	public TrainingImage query(){
+		return query;
+	}
+
+	// the training image the query was identified as, or null
+	public TrainingImage match(){
+		return match;
+	}
+
+	public boolean identified(){
+		return match != null;
+	}
+
+	// tour id of the match, or -1 if the query wasn't identified
+	public long tourID(){
+		return match == null ? -1 : match.tourID();
+	}
+
+	// matched query descriptors per training image, after the location filter
+	public Map<TrainingImage, Integer> votes(){
+		Map<TrainingImage, Integer> map = votes;
+		if (map == null) {
+			LinkedHashMap<TrainingImage, Integer> built = new LinkedHashMap<TrainingImage, Integer>();
+			for (int i = 0; i < voted.length; i++) {
+				built.put(voted[i], vote_counts[i]);
+			}
+			map = Collections.unmodifiableMap(built);
+			votes = map;
+		}
+		return map;
+	}
+
+	// votes of 'img', without building votes()
+	public int votesOf(TrainingImage img){
+		for (int i = 0; i < voted.length; i++) {
+			if (voted[i] == img) {
+				return vote_counts[i];
+			}
+		}
+		return 0;
+	}
+
+	public int numberOfFeatures(){
+		return query.numberOfDescriptors();
+	}
+
+	// all of numberOfFeatures, unless early termination stopped matching
+	// once the votes decided the query
+	public int numberOfMatchedDescriptors(){
+		return matched_descriptors;
+	}
+
+	public int numberOfGoodMatches(){
+		return good_matches.size();
+	}
+
+	// the matches supporting 'match', as a new Mat owned by the caller
+	public MatOfDMatch goodMatches(){
+		return good_matches.toMat();
+	}
+
+	// the 'n' matches supporting 'match' with the smallest distances,
+	// closest first, as a new Mat owned by the caller
+	public MatOfDMatch closestMatches(int n){
+		MatchBuffer closest = new MatchBuffer(Math.max(1, Math.min(n, good_matches.size())));
+		good_matches.closest(n, closest);
+		return closest.toMat();
+	}
+
+	public long extractionNanos(){
+		return extraction_nanos;
+	}
+
+	public long matchingNanos(){
+		return matching_nanos;
+	}
+
+	public long votingNanos(){
+		return voting_nanos;
+	}
+
+	// from the call to detectPhoto to the result, including decoding
+	public long totalNanos(){
+		return total_nanos;
+	}
+
+	// Method that ends the caller's use of the result; call it once per
+	// result detectPhoto returned. The last holder to release it frees the
+	// query image and key points right away, instead of leaving them to 
+	// finalizers; the result can't be drawn afterwards. A ResultCache 
+	// holds the results it caches and counts every caller it returns one
+	// to, so a result stays drawable for whoever still holds it.
+	public void release()
+	{
+		while (true) {
+			int n = references.get();
+			if (n == 0) {
+				return;
+			}
+			if (references.compareAndSet(n, n - 1)) {
+				if (n == 1) {
+					MatPool.releaseImage(query, image_pool);
+					if (native_memory != null) {
+						native_memory.resultReleased(native_bytes);
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	public boolean isReleased(){
+		return references.get() == 0;
+	}
+
+	// Method that counts one more holder of the result, which must 
+	// release() it in turn. Returns false if it was freed already.
+	boolean retain()
+	{
+		while (true) {
+			int n = references.get();
+			if (n == 0) {
+				return false;
+			}
+			if (references.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DetectionResult(match=" + (match == null ? "none" : match.name())
+				+ ", votes=" + (match == null ? 0 : votesOf(match))
+				+ ", features=" + numberOfFeatures()
+				+ (matched_descriptors < numberOfFeatures() ? " (" + matched_descriptors + " matched)" : "")
+				+ ", generation=" + generation
+				+ ", total=" + total_nanos / 1000000 + " ms)";
+	}
+}
@@ -0,0 +1,301 @@
+package com.thanh.photodetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+
+// Geometric verification of the images a query voted for most. The
+// matches of the right image are views of the same facade, so most of
+// their key points map onto each other by one homography (or, for scenes
+// far from planar, agree with one fundamental matrix), while those of a
+// wrong image that happened to collect votes point every which way. For
+// each of the 'candidates' images with the most votes, a RANSAC fit over
+// its matched key point pairs counts the inliers, and ImageDetector
+// decides by them instead of by the votes. Install one with
+// ImageDetector.setGeometricVerifier.
+//
+// Only the candidates are fitted, each with at most 'max_iterations'
+// RANSAC iterations over its own matches, so the added cost doesn't grow
+// with the library. Candidates are fitted in parallel: the querying
+// thread fits the first, a pool shared by all verifiers the others.
+public class GeometricVerifier {
+	// models that can be fitted to the matched key points
+	public static final int HOMOGRAPHY = 0;
+	public static final int FUNDAMENTAL = 1;
+
+	// number of floats per key point in a MatOfKeyPoint
+	private static final int FIELDS = 7;
+	// RANSAC stops early once it is this sure to have found the best fit
+	private static final double CONFIDENCE = 0.995;
+
+	private final int candidates;
+	private final int max_iterations;
+	private final int model;
+	private final double max_error;
+	private final int min_inliers;
+
+	private static ExecutorService pool;
+
+	// The images verified for a query, most inliers first
+	public static class Verification {
+		private final int[] images;
+		private final int[] inliers;
+		private final int size;
+
+		Verification(int[] images, int[] inliers, int size)
+		{
+			this.images = images;
+			this.inliers = inliers;
+			this.size = size;
+		}
+
+		public int size(){
+			return size;
+		}
+
+		// library position of the i-th image
+		public int image(int i){
+			return images[i];
+		}
+
+		public int inliers(int i){
+			return inliers[i];
+		}
+	}
+
+	// Constructor of a verifier fitting homographies to the matches of the
+	// 'candidates' images with the most votes, with at most
+	// 'max_iterations' RANSAC iterations each
+	public GeometricVerifier(int candidates, int max_iterations)
+	{
+		this(candidates, max_iterations, HOMOGRAPHY, 3, 8);
+	}
+
+	// Constructor of a verifier fitting 'model', where a match is an
+	// inlier if it is within 'max_error' pixels of the fit and an image
+	// needs 'min_inliers' of them to be identified. OpenCV's
+	// findFundamentalMat takes no iteration cap; fundamental matrix fits
+	// only stop by confidence.
+	public GeometricVerifier(int candidates, int max_iterations, int model,
+			double max_error, int min_inliers)
+	{
+		if (candidates < 1 || max_iterations < 1) {
+			throw new IllegalArgumentException(
+					"A GeometricVerifier needs at least one candidate and one iteration");
+		}
+		if (model != HOMOGRAPHY && model != FUNDAMENTAL) {
+			throw new IllegalArgumentException("Unknown model "+model);
+		}
+		this.candidates = candidates;
+		this.max_iterations = max_iterations;
+		this.model = model;
+		this.max_error = max_error;
+		this.min_inliers = min_inliers;
+	}
+
+	public int candidates(){
+		return candidates;
+	}
+
+	// inliers an image needs to be identified
+	public int minInliers(){
+		return min_inliers;
+	}
+
+	// Method that fits the model to the matches of the images with the
+	// most votes in 'tally', out of 'matches' of a query with
+	// 'query_key_points' against 'snapshot'
+	Verification verify(LibrarySnapshot snapshot, VoteAccumulator tally, MatchBuffer matches,
+			MatOfKeyPoint query_key_points)
+	{
+		// the candidates, most votes first
+		int[] images = new int[candidates];
+		int n = 0;
+		for (int v = 0; v < tally.numberVoted(); v++) {
+			int img = tally.voted(v);
+			int votes = tally.votes(img);
+			if (n == candidates && votes <= tally.votes(images[n - 1])) {
+				continue;
+			}
+			int i = n < candidates ? n++ : n - 1;
+			while (i > 0 && tally.votes(images[i - 1]) < votes) {
+				images[i] = images[i - 1];
+				i--;
+			}
+			images[i] = img;
+		}
+		int[] inliers = new int[n];
+		if (n == 0) {
+			return new Verification(images, inliers, 0);
+		}
+
+		// the matched key point pairs of every candidate
+		int[] count = new int[n];
+		int[] slot_of = new int[matches.size()];
+		for (int i = 0; i < matches.size(); i++) {
+			slot_of[i] = slotOf(images, n, matches.imgIdx(i));
+			if (slot_of[i] >= 0) {
+				count[slot_of[i]]++;
+			}
+		}
+		float[] query_fields = new float[(int) query_key_points.total() * FIELDS];
+		query_key_points.get(0, 0, query_fields);
+		float[][] query_points = new float[n][];
+		int[][] train_rows = new int[n][];
+		for (int s = 0; s < n; s++) {
+			query_points[s] = new float[2 * count[s]];
+			train_rows[s] = new int[count[s]];
+		}
+		int[] filled = new int[n];
+		for (int i = 0; i < matches.size(); i++) {
+			int s = slot_of[i];
+			if (s < 0) {
+				continue;
+			}
+			int f = matches.queryIdx(i) * FIELDS;
+			query_points[s][2 * filled[s]] = query_fields[f];
+			query_points[s][2 * filled[s] + 1] = query_fields[f + 1];
+			train_rows[s][filled[s]++] = matches.trainIdx(i);
+		}
+
+		// fit every candidate, the first one on this thread
+		List<Future<Integer>> pending = new ArrayList<Future<Integer>>(n - 1);
+		for (int s = 1; s < n; s++) {
+			pending.add(pool().submit(
+					fit(snapshot.image(images[s]), query_points[s], train_rows[s])));
+		}
+		try {
+			inliers[0] = inliers(snapshot.image(images[0]), query_points[0], train_rows[0]);
+			for (int s = 1; s < n; s++) {
+				inliers[s] = pending.get(s - 1).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while verifying candidates", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to verify a candidate", e.getCause());
+		}
+
+		// re-rank by inliers; ties keep the order of the votes
+		for (int s = 1; s < n; s++) {
+			int img = images[s];
+			int in = inliers[s];
+			int i = s;
+			while (i > 0 && inliers[i - 1] < in) {
+				images[i] = images[i - 1];
+				inliers[i] = inliers[i - 1];
+				i--;
+			}
+			images[i] = img;
+			inliers[i] = in;
+		}
+		return new Verification(images, inliers, n);
+	}
+
+	private static int slotOf(int[] images, int n, int img)
+	{
+		for (int s = 0; s < n; s++) {
+			if (images[s] == img) {
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	// Method that returns the task counting the inliers among the matches
+	// of 'train_img', given as the query points and the training key
+	// points they were matched to
+	private Callable<Integer> fit(final TrainingImage train_img, final float[] query_points,
+			final int[] train_rows)
+	{
+		return new Callable<Integer>() {
+			@Override public Integer call() {
+				return inliers(train_img, query_points, train_rows);
+			}
+		};
+	}
+
+	private int inliers(TrainingImage train_img, float[] query_points, int[] train_rows)
+	{
+		int n = train_rows.length;
+		if (n < (model == HOMOGRAPHY ? 4 : 8) || n < min_inliers) {
+			return 0;
+		}
+		// read once per image rather than copied out of its Mat per query
+		float[] train_coordinates = train_img.keyPointCoordinates();
+		if (train_coordinates == null) {
+			return 0;
+		}
+		float[] train_points = new float[2 * n];
+		for (int i = 0; i < n; i++) {
+			train_points[2 * i] = train_coordinates[2 * train_rows[i]];
+			train_points[2 * i + 1] = train_coordinates[2 * train_rows[i] + 1];
+		}
+
+		MatOfPoint2f src = new MatOfPoint2f();
+		MatOfPoint2f dst = new MatOfPoint2f();
+		Mat mask = new Mat();
+		Mat fit = null;
+		try {
+			src.alloc(n);
+			src.put(0, 0, query_points);
+			dst.alloc(n);
+			dst.put(0, 0, train_points);
+			if (model == HOMOGRAPHY) {
+				fit = Calib3d.findHomography(src, dst, Calib3d.RANSAC, max_error, mask,
+						max_iterations, CONFIDENCE);
+			} else {
+				fit = Calib3d.findFundamentalMat(src, dst, Calib3d.FM_RANSAC, max_error,
+						CONFIDENCE, mask);
+			}
+			// no model found, or a degenerate one
+			if (fit.empty() || mask.empty()) {
+				return 0;
+			}
+			return Core.countNonZero(mask);
+		} finally {
+			src.release();
+			dst.release();
+			mask.release();
+			if (fit != null) {
+				fit.release();
+			}
+		}
+	}
+
+	private static synchronized ExecutorService pool()
+	{
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(
+					Math.max(2, Runtime.getRuntime().availableProcessors()),
+					new ThreadFactory() {
+						@Override public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "GeometricVerifier");
+							// don't keep the process alive for these
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return pool;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "GeometricVerifier(" + (model == HOMOGRAPHY ? "homography" : "fundamental")
+				+ ", candidates=" + candidates + ", max_iterations=" + max_iterations
+				+ ", max_error=" + max_error + ", min_inliers=" + min_inliers + ")";
+	}
+}
@@ -0,0 +1,234 @@
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+
+// Exact brute force LibraryMatcher for binary (ORB) descriptors.
+// Every training descriptor is packed into one contiguous long[] 
+// (4 longs per 256-bit descriptor) and distances are computed with
+// Long.bitCount, so after warm-up a query allocates nothing. The distance
+// to the second nearest descriptor is kept too, for the ratio test.
+//
+// An appendableCopy shares the arrays with this matcher: it appends past
+// the end this matcher reads, so only the first copy to append to the
+// same arrays can do so in place; any other copies them first.
+public class HammingMatcher implements LibraryMatcher {
+	private static final int LONGS = BinaryDescriptors.LONGS_PER_DESCRIPTOR;
+	
+	// all training descriptors, packed in library order
+	private long[] descriptors = new long[0];
+	// image_start[i] is the first descriptor of training image 'i'
+	private int[] image_start = new int[]{0};
+	private int size = 0;
+	private int number_of_images = 0;
+	// number of images written to the current arrays by this matcher and 
+	// its copies; a matcher that has fewer can't append to them in place
+	private AtomicInteger images_written = new AtomicInteger();
+
+	@Override
+	public LibraryMatcher emptyCopy()
+	{
+		return new HammingMatcher();
+	}
+
+	@Override
+	public LibraryMatcher appendableCopy()
+	{
+		HammingMatcher copy = new HammingMatcher();
+		copy.descriptors = descriptors;
+		copy.image_start = image_start;
+		copy.size = size;
+		copy.number_of_images = number_of_images;
+		copy.images_written = images_written;
+		return copy;
+	}
+
+	@Override
+	public void add(Mat training_descriptors)
+	{
+		add(BinaryDescriptors.pack(training_descriptors), training_descriptors.rows());
+	}
+
+	@Override
+	public void add(TrainingImage img)
+	{
+		add(img.descriptors());
+	}
+
+	// always reported
+	@Override
+	public boolean enableSecondDistance()
+	{
+		return true;
+	}
+
+	@Override
+	public void release()
+	{
+		// everything is on the Java heap
+	}
+
+	// Method that adds the next training image given its 'rows' packed
+	// descriptors, e.g. as received by a ShardServer
+	public void add(long[] packed, int rows)
+	{
+		if ((size + rows) * LONGS > descriptors.length || number_of_images + 2 > image_start.length
+				|| !images_written.compareAndSet(number_of_images, number_of_images + 1)) {
+			// full, or another copy appended to the arrays already
+			descriptors = Arrays.copyOf(descriptors, 
+					Math.max((size + rows) * LONGS, 2 * size * LONGS));
+			image_start = Arrays.copyOf(image_start, 2 * number_of_images + 2);
+			images_written = new AtomicInteger(number_of_images + 1);
+		}
+		System.arraycopy(packed, 0, descriptors, size * LONGS, rows * LONGS);
+		size += rows;
+		number_of_images++;
+		image_start[number_of_images] = size;
+	}
+
+	@Override
+	public void clear()
+	{
+		descriptors = new long[0];
+		image_start = new int[]{0};
+		size = 0;
+		number_of_images = 0;
+		images_written = new AtomicInteger();
+	}
+
+	@Override
+	public void train()
+	{
+		// nothing to build; the slack left by add() is kept for the
+		// images an appendableCopy adds
+	}
+
+	@Override
+	public void match(Mat query_descriptors, MatchBuffer matches)
+	{
+		match(query_descriptors, matches, null);
+	}
+
+	@Override
+	public void match(Mat query_descriptors, MatchBuffer matches, BitSet images)
+	{
+		match(BinaryDescriptors.packer().pack(query_descriptors), query_descriptors.rows(),
+				matches, images);
+	}
+
+	// Method that matches the first 'rows' packed descriptors of 'query'
+	public void match(long[] query, int rows, MatchBuffer matches, BitSet images)
+	{
+		if (images != null) {
+			matchImages(query, rows, matches, images);
+			return;
+		}
+		matches.clear();
+		if (rows == 0 || size == 0) {
+			return;
+		}
+		matches.ensureCapacity(rows);
+		long[] train = descriptors;
+		for (int q = 0; q < rows; q++) {
+			long q0 = query[q * LONGS];
+			long q1 = query[q * LONGS + 1];
+			long q2 = query[q * LONGS + 2];
+			long q3 = query[q * LONGS + 3];
+			int best_distance = Integer.MAX_VALUE;
+			int second_distance = Integer.MAX_VALUE;
+			int best = -1;
+			for (int t = 0, p = 0; t < size; t++, p += LONGS) {
+				int distance = Long.bitCount(q0 ^ train[p])
+						+ Long.bitCount(q1 ^ train[p + 1])
+						+ Long.bitCount(q2 ^ train[p + 2])
+						+ Long.bitCount(q3 ^ train[p + 3]);
+				if (distance < second_distance) {
+					if (distance < best_distance) {
+						second_distance = best_distance;
+						best_distance = distance;
+						best = t;
+					} else {
+						second_distance = distance;
+					}
+				}
+			}
+			int img = imageOf(best);
+			matches.add(q, best - image_start[img], img, best_distance, 
+					secondDistance(second_distance));
+		}
+	}
+	
+	// Method that matches against the descriptors of the given images only
+	private void matchImages(long[] query, int rows, MatchBuffer matches, BitSet images)
+	{
+		matches.clear();
+		if (rows == 0 || size == 0 || images.isEmpty()) {
+			return;
+		}
+		matches.ensureCapacity(rows);
+		long[] train = descriptors;
+		for (int q = 0; q < rows; q++) {
+			long q0 = query[q * LONGS];
+			long q1 = query[q * LONGS + 1];
+			long q2 = query[q * LONGS + 2];
+			long q3 = query[q * LONGS + 3];
+			int best_distance = Integer.MAX_VALUE;
+			int second_distance = Integer.MAX_VALUE;
+			int best = -1;
+			int best_img = -1;
+			for (int img = images.nextSetBit(0); img >= 0 && img < number_of_images; 
+					img = images.nextSetBit(img + 1)) {
+				int end = image_start[img + 1];
+				for (int t = image_start[img], p = t * LONGS; t < end; t++, p += LONGS) {
+					int distance = Long.bitCount(q0 ^ train[p])
+							+ Long.bitCount(q1 ^ train[p + 1])
+							+ Long.bitCount(q2 ^ train[p + 2])
+							+ Long.bitCount(q3 ^ train[p + 3]);
+					if (distance < second_distance) {
+						if (distance < best_distance) {
+							second_distance = best_distance;
+							best_distance = distance;
+							best = t;
+							best_img = img;
+						} else {
+							second_distance = distance;
+						}
+					}
+				}
+			}
+			if (best >= 0) {
+				matches.add(q, best - image_start[best_img], best_img, best_distance,
+						secondDistance(second_distance));
+			}
+		}
+	}
+	
+	// infinite if there was no second descriptor to compare with
+	private static float secondDistance(int second_distance)
+	{
+		return second_distance == Integer.MAX_VALUE ? Float.POSITIVE_INFINITY : second_distance;
+	}
+	
+	// Method that finds the training image holding descriptor 't'
+	private int imageOf(int t)
+	{
+		int img = Arrays.binarySearch(image_start, 0, number_of_images + 1, t);
+		if (img < 0) {
+			return -img - 2;
+		}
+		// skip images without descriptors, which share their start
+		while (img < number_of_images && image_start[img + 1] == t) {
+			img++;
+		}
+		return img;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Hamming(popcount)";
+	}
+}
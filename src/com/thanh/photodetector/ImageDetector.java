@@ -1,16 +1,22 @@
 package com.thanh.photodetector;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
-import org.opencv.core.DMatch;
-import org.opencv.core.KeyPoint;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
@@ -20,21 +26,47 @@ import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
 import org.opencv.features2d.Features2d;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 import android.location.Location;
 import android.util.Log;
 
+// Identifies query images against a library of training images.
+// Queries may run concurrently from any number of threads: each thread 
+// gets its own FeatureDetector and DescriptorExtractor, the library and 
+// matcher are only read by queries, and everything a query produces comes
+// back in its DetectionResult. Changes to the library (adding, removing,
+// loading, ...) build a new LibrarySnapshot and publish it atomically, so
+// they never stall or disturb queries; writers only wait for each other.
 public class ImageDetector {
-	// Declare objects that support the process of images detecting
-    private FeatureDetector fDetector;
-    private DescriptorExtractor dExtractor;
-    private DescriptorMatcher dMatcher;
+	// Declare objects that support the process of images detecting.
+	// FeatureDetector and DescriptorExtractor aren't thread-safe,
+	// so every thread gets its own pair
+    private final ThreadLocal<FeatureDetector> fDetector = new ThreadLocal<FeatureDetector>() {
+    	@Override protected FeatureDetector initialValue() {
+    		return FeatureDetector.create(detector_type);
+    	}
+    };
+    private final ThreadLocal<DescriptorExtractor> dExtractor = new ThreadLocal<DescriptorExtractor>() {
+    	@Override protected DescriptorExtractor initialValue() {
+    		return DescriptorExtractor.create(extractor_type);
+    	}
+    };
+    // Matcher the detector was created with. It matches the empty library;
+    // every later generation of the library gets an empty copy of it.
+    private final LibraryMatcher matcher_prototype;
+    
+    // types the detector and extractor were created with,
+    // needed to tell whether a saved library index is still valid
+    private final int detector_type;
+    private final int extractor_type;
     
-    int max_side;
-    double filter_ratio;
-    private int number_of_key_points;
+    // longer side, in pixels, of images once scaled down
+    private volatile int max_side;
+    // how clearly the best match must lead the runner-up
+    private volatile double filter_ratio;
+    // most key points kept per image, training or query; 0 keeps them all
+    private volatile int number_of_key_points;
     
     // tag of messages printed to LogCat
     protected static final String TAG = "ImageDetector";
@@ -42,49 +74,636 @@ public class ImageDetector {
     // tag of Error messages printed to LogCat
     protected static final String ERROR = "Error in ImageDetector";
     
-    // A list of all training photos
-    private List<TrainingImage> training_library;
+    // The current generation of the training library, with its matcher, 
+    // descriptor store, inverted file and spatial index. A query reads it
+    // once and runs against that snapshot to the end; writers, one at a
+    // time under the detector's lock, build the next generation and then
+    // replace it here.
+    private volatile LibrarySnapshot library;
+    
+    // Optional vocabulary tree stage: when the library has a vocabulary,
+    // only the 'shortlist_size' training images scoring best in its 
+    // inverted file are matched exactly
+    private volatile int shortlist_size;
+    
+    // Training images within 'location_radius' meters of the query are
+    // its neighbourhood. With location_prefilter on and a query location 
+    // available, only the neighbourhood is matched at all.
+    volatile double location_radius = 50;
+    private volatile boolean location_prefilter = false;
+    
+    // Whether training images keep their pixels after their descriptors 
+    // are computed. If not, they are re-read lazily by drawMatches.
+    private volatile boolean keep_images = true;
+    
+    // Whether images are decoded straight to grayscale. Key points and
+    // descriptors only need one channel, except for imgDescriptor_rgb.
+    private volatile boolean decode_grayscale = true;
+    
+    // Early termination of matching: with 'early_batch_size' > 0, query 
+    // descriptors are matched in batches of that many, strongest key 
+    // points first, until the votes so far decide the query. The vote a 
+    // remaining descriptor may add is bounded with 'early_confidence' 
+    // standard deviations; infinity assumes the worst case.
+    private volatile int early_batch_size = 0;
+    private volatile double early_confidence = Double.POSITIVE_INFINITY;
+    
+    // Filtering of the matches before they vote, see MatchFilter: the 
+    // ratio test with 'match_ratio' > 0, and the cross check
+    private volatile double match_ratio = 0;
+    private volatile boolean cross_check = false;
+    
+    // Re-ranks the best voted images by the inliers of a fit to their 
+    // matches; null decides by the votes alone
+    private volatile GeometricVerifier geometric_verifier;
+    
+    // Results of recent queries, returned again for (near) duplicates of 
+    // their image; null caches nothing
+    private volatile ResultCache result_cache;
+    
+    // Native memory held by queries: reused Mats and unreleased results
+    private final NativeMemory native_memory = new NativeMemory();
+    
+    // Scaled down frames of detectFrame and detectPhoto(Mat, Location),
+    // given back by their results once released
+    private final MatPool frame_pool = new MatPool(4, native_memory);
+    
+    // Where queries record their per-stage timings; null records nothing
+    private volatile DetectionMetrics metrics;
     
     public ImageDetector(int detector_type, int extractor_type, int matcher_type)
     {
-    	fDetector = FeatureDetector.create
-				(detector_type);
-		dExtractor = DescriptorExtractor.create
-				(extractor_type);
-		dMatcher= DescriptorMatcher.create
-				(matcher_type);
-		training_library= new ArrayList<TrainingImage>();
+    	this(detector_type, extractor_type, new OpenCvMatcher(matcher_type));
+    }
+    
+    // Constructor that takes any LibraryMatcher, e.g. an LshMatcher for
+    // approximate matching against large libraries. 'matcher' must be empty.
+    public ImageDetector(int detector_type, int extractor_type, LibraryMatcher matcher)
+    {
+    	this.detector_type = detector_type;
+    	this.extractor_type = extractor_type;
+		matcher_prototype= matcher;
+		library= LibrarySnapshot.empty(matcher, location_radius);
 		max_side = 300;
 		number_of_key_points = 1000;
 		filter_ratio = 5;
     }
     
-    public void addToLibrary(String image_path, long tour_item_id)
+    public synchronized void addToLibrary(String image_path, long tour_item_id)
     {
-    	Mat img = Imgcodecs.imread(image_path);
+    	checkNotFrozen();
+    	publish(library.edit().add(describeTrainingImage(image_path, tour_item_id)));
+    }
+    
+    // Method that removes every image of a tour item from the library.
+    // The other images keep their descriptors, so nothing is re-extracted.
+    // Returns the number of images removed.
+    public synchronized int removeFromLibrary(long tour_item_id)
+    {
+    	LibrarySnapshot.Builder edit = library.edit();
+    	int removed = edit.removeTour(tour_item_id);
+    	if (removed > 0) {
+    		publish(edit);
+    	}
+    	return removed;
+    }
+    
+    // Method that re-reads the image at 'image_path' and puts it in place
+    // of the library image with that path, or adds it if there is none.
+    // Returns whether an image was replaced.
+    public synchronized boolean replaceInLibrary(String image_path, long tour_item_id)
+    {
+    	checkNotFrozen();
+    	LibrarySnapshot.Builder edit = library.edit();
+    	boolean replaced = edit.replace(describeTrainingImage(image_path, tour_item_id));
+    	publish(edit);
+    	return replaced;
+    }
+    
+    // Method that reads, scales down and describes one training image
+    private TrainingImage describeTrainingImage(String image_path, long tour_item_id)
+    {
+    	Mat img = readImage(image_path);
     	Mat resized_img = resize(img);  // scale down the image	
     	TrainingImage training_img= new TrainingImage(image_path, tour_item_id, resized_img);
-    	Mat imgDescriptor = imgDescriptor(training_img);  
+    	imgDescriptor(training_img);
+    	if (!keep_images) {
+    		training_img.releaseImage();
+    	}
+    	return training_img;
+    }
+    
+    private void checkNotFrozen()
+    {
+    	DescriptorStore store = library.descriptorStore();
+    	if (store != null) {
+    		throw new IllegalStateException("Library is frozen in descriptor store "
+    				+ store.file() + "; clear it before changing images");
+    	}
+    }
+    
+    // Method that builds the next generation of the library from 'edit'
+    // and makes it the one new queries run against. Queries already 
+    // running finish on the generation they started with.
+    private LibrarySnapshot publish(LibrarySnapshot.Builder edit)
+    {
+    	long start = System.currentTimeMillis();
+    	LibrarySnapshot next = edit.build(matcher_prototype, location_radius);
+    	LibrarySnapshot previous = library;
+    	library = next;
+    	// its matcher is released once the queries still running on it finish
+    	previous.release();
+    	Log.i(TAG, "Published "+next+" in "+(System.currentTimeMillis()-start)+" ms");
+    	return next;
+    }
+    
+    // Method that sets whether images are decoded to grayscale or in
+    // color; color is only needed by imgDescriptor_rgb. Library indexes
+    // built with the other setting aren't loaded.
+    public synchronized void setDecodeGrayscale(boolean grayscale)
+    {
+    	decode_grayscale = grayscale;
+    	settingsChanged();
+    }
+    
+    // Method that decodes an image file close to the size resize() scales
+    // it down to, so the full-size image is never decoded
+    private Mat readImage(String path)
+    {
+    	return ImageLoader.load(path, max_side, decode_grayscale);
+    }
+    
+    // Method that makes every query record its stage timings and counts
+    // into 'metrics'; null turns recording off
+    public void setMetrics(DetectionMetrics metrics)
+    {
+    	this.metrics = metrics;
+    }
+    
+    public DetectionMetrics metrics()
+    {
+    	return metrics;
+    }
+    
+    // Method that puts 'cache' in front of every query; null turns caching
+    // off. A query whose image hashes like a cached one, taken at about the
+    // same place, gets the cached result without being matched, and must
+    // release it like any other result. A cache replaced this way 
+    // releases its results.
+    public synchronized void setResultCache(ResultCache cache)
+    {
+    	ResultCache previous = result_cache;
+    	result_cache = cache;
+    	if (previous != null && previous != cache) {
+    		previous.clear();
+    	}
+    }
+    
+    public ResultCache resultCache()
+    {
+    	return result_cache;
+    }
+    
+    // Method that turns on geometric verification: the images with the
+    // most votes are re-ranked by how many of their matches agree with 
+    // one fit of the verifier's model, and the query is decided by those
+    // inliers like it would be by the votes. null turns it off.
+    public synchronized void setGeometricVerifier(GeometricVerifier verifier)
+    {
+    	geometric_verifier = verifier;
+    	settingsChanged();
+    }
+    
+    public GeometricVerifier geometricVerifier()
+    {
+    	return geometric_verifier;
+    }
+    
+    // Method that returns the count of native memory held by queries; it
+    // stays flat under load as long as callers release their results
+    public NativeMemory nativeMemory()
+    {
+    	return native_memory;
+    }
+    
+    // Method that returns the current generation of the library. Its 
+    // images and indexes stay valid, but its matcher is released once a
+    // newer generation is published and no query runs on it anymore.
+    public LibrarySnapshot librarySnapshot()
+    {
+    	return library;
+    }
+    
+    // Method that adds many images to the library at once, using all cores
+    public IngestStats addAllToLibrary(Collection<LibraryItem> items)
+    {
+    	int cores = Runtime.getRuntime().availableProcessors();
+    	return addAllToLibrary(items, cores, 4 * cores);
+    }
+    
+    // Method that adds many images to the library as a two-stage pipeline:
+    // decode + resize + EXIF on one pool, key point detection + descriptor
+    // extraction on another, each with 'number_of_threads' workers.
+    // Results are committed to the next library generation on the calling
+    // thread in the order of 'items', and at most 'queue_depth' images are
+    // in flight at once, so peak memory doesn't grow with the library.
+    // Queries see the new images all at once, when that generation is published.
+    public synchronized IngestStats addAllToLibrary(Collection<LibraryItem> items, 
+    		int number_of_threads, int queue_depth)
+    {
+    	checkNotFrozen();
+    	final IngestStats stats = new IngestStats();
+    	final ExecutorService decode_pool = Executors.newFixedThreadPool(number_of_threads);
+    	final ExecutorService extract_pool = Executors.newFixedThreadPool(number_of_threads);
+    	
+    	long start = System.nanoTime();
+    	LibrarySnapshot.Builder edit = library.edit();
+    	ArrayDeque<Future<Future<TrainingImage>>> pending = 
+    			new ArrayDeque<Future<Future<TrainingImage>>>(queue_depth);
+    	try {
+    		for (final LibraryItem item: items) {
+    			if (pending.size() >= queue_depth) {
+    				commitIngested(pending.poll(), edit, stats);
+    			}
+    			pending.add(decode_pool.submit(new Callable<Future<TrainingImage>>() {
+    				@Override public Future<TrainingImage> call() {
+    					final TrainingImage training_img = decodeForLibrary(item, stats);
+    					if (training_img == null) {
+    						return null;
+    					}
+    					return extract_pool.submit(new Callable<TrainingImage>() {
+    						@Override public TrainingImage call() {
+    							long t = System.nanoTime();
+    							imgDescriptor(training_img);
+    							stats.record(IngestStats.EXTRACT, t);
+    							return training_img;
+    						}
+    					});
+    				}
+    			}));
+    			stats.submitted();
+    		}
+    		while (!pending.isEmpty()) {
+    			commitIngested(pending.poll(), edit, stats);
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		Log.e(ERROR, "Library ingestion interrupted, "+pending.size()+" images dropped");
+    	} finally {
+    		decode_pool.shutdownNow();
+    		extract_pool.shutdownNow();
+    	}
+    	// the images committed so far are kept, even if interrupted
+    	publish(edit);
+    	stats.setWallNanos(System.nanoTime() - start);
+    	Log.i(TAG, stats.toString());
+    	return stats;
+    }
+    
+    // Method that runs the decode stage of addAllToLibrary for one image
+    private TrainingImage decodeForLibrary(LibraryItem item, IngestStats stats)
+    {
+    	long t = System.nanoTime();
+    	Mat img = readImage(item.path());
+    	stats.record(IngestStats.DECODE, t);
+    	if (img.empty()) {
+    		Log.e(ERROR, "Can't read training image "+item.path());
+    		stats.recordFailure();
+    		return null;
+    	}
     	
-    	// add image to dMacher's internal training library
-    	dMatcher.add(Arrays.asList(imgDescriptor));
+    	t = System.nanoTime();
+    	Mat resized_img = resize(img);
+    	stats.record(IngestStats.RESIZE, t);
     	
-    	// add image to training_library    	
-    	training_library.add(training_img);
+    	t = System.nanoTime();
+    	TrainingImage training_img = new TrainingImage();
+    	training_img.setPathID(item.path());
+    	training_img.setTourID(item.tourID());
+    	training_img.setImage(resized_img);
+    	training_img.addLocation(item.path());
+    	stats.record(IngestStats.EXIF, t);
+    	return training_img;
+    }
+    
+    // Method that waits for the oldest image in the pipeline and adds it 
+    // to 'edit', so images are committed in submission order
+    private void commitIngested(Future<Future<TrainingImage>> decoded, 
+    		LibrarySnapshot.Builder edit, IngestStats stats) throws InterruptedException
+    {
+    	TrainingImage training_img = null;
+    	try {
+    		Future<TrainingImage> extracted = decoded.get();
+    		if (extracted != null) {
+    			training_img = extracted.get();
+    		}
+    	} catch (ExecutionException e) {
+    		Log.e(ERROR, "Failed to ingest a training image: "+e.getCause());
+    		stats.recordFailure();
+    	}
+    	stats.retired();
+    	if (training_img == null) {
+    		return;
+    	}
+    	
+    	long t = System.nanoTime();
+    	edit.add(training_img);
+    	if (!keep_images) {
+    		training_img.releaseImage();
+    	}
+    	stats.record(IngestStats.COMMIT, t);
+    }
+    
+    // Method that sets whether training images keep their pixels. Turning
+    // it off publishes a generation whose images have none; older 
+    // generations and the results still drawing them keep theirs until
+    // nothing refers to them anymore.
+    public synchronized void setKeepImages(boolean keep)
+    {
+    	keep_images = keep;
+    	if (!keep) {
+    		LibrarySnapshot.Builder edit = library.edit();
+    		if (edit.dropImages()) {
+    			publish(edit);
+    		}
+    	}
+    }
+    
+    // Method that moves every training descriptor into a single 
+    // memory-mapped file and matches against it from then on.
+    // The new generation's images don't hold descriptor Mats anymore;
+    // those of older generations are freed once nothing refers to them.
+    public synchronized boolean useDescriptorStore(String store_path)
+    {
+    	LibrarySnapshot current = library;
+    	DescriptorStore store;
+    	try {
+    		store = DescriptorStore.write(new File(store_path), current.images());
+    	} catch (IOException e) {
+    		Log.e(ERROR, "Failed to write descriptor store "+store_path);
+    		e.printStackTrace();
+    		return false;
+    	}
+    	publish(current.edit().descriptorStore(store));
+    	Log.i(TAG, "Moved "+store.numberOfDescriptors()+" descriptors into "+store_path);
+    	return true;
     }
 
-    public void clearLibrary()
+    public synchronized void clearLibrary()
+    {
+    	// publish an empty generation; the vocabulary is kept
+    	publish(library.edit().clear());
+    }
+    
+    // Method that sets the radius, in meters, of the location filter
+    // applied to the votes and of the location pre-filter
+    public synchronized void setLocationRadius(double radius)
+    {
+    	location_radius = radius;
+    	settingsChanged();
+    }
+    
+    // Method that turns on restricting the matcher to training images near
+    // the query's EXIF location before any descriptor is matched
+    public synchronized void setLocationPrefilter(boolean prefilter)
+    {
+    	location_prefilter = prefilter;
+    	settingsChanged();
+    }
+    
+    // Method that trains a vocabulary tree on the descriptors of the current
+    // library. This is an offline step: save the result with
+    // VocabularyTree.save and hand the loaded tree to setVocabulary.
+    public synchronized VocabularyTree trainVocabulary(int branching, int depth)
+    {
+    	long start = System.currentTimeMillis();
+    	VocabularyTree tree = VocabularyTree.train(library.descriptors(), branching, depth, 10, 0);
+    	Log.i(TAG, "Trained vocabulary of "+tree.numberOfWords()+" words in "
+    			+(System.currentTimeMillis()-start)+" ms");
+    	return tree;
+    }
+    
+    // Method that turns on candidate pre-selection: every query is scored
+    // against the library through an inverted file over the tree's visual
+    // words, and only the best 'shortlist_size' images are matched exactly.
+    // A larger shortlist trades latency for recall; 0 turns it off.
+    // The inverted file is built here, for a new generation of the library.
+    public synchronized void setVocabulary(VocabularyTree tree, int shortlist_size)
+    {
+    	this.shortlist_size = shortlist_size;
+    	publish(library.edit().vocabulary(tree));
+    	settingsChanged();
+    }
+    
+    // Method that sets the longer side, in pixels, every image is scaled
+    // down to before it is described. Training images keep the size they
+    // were described at, so set it before building the library; saved 
+    // indexes built with another size aren't loaded.
+    public synchronized void setMaxSide(int max_side)
+    {
+    	this.max_side = max_side;
+    	settingsChanged();
+    }
+    
+    public int maxSide()
+    {
+    	return max_side;
+    }
+    
+    // Method that sets how clearly the image with the most votes must lead
+    // the runner-up to be identified: the square of the difference of 
+    // their votes must exceed 'filter_ratio' times its votes
+    public synchronized void setFilterRatio(double filter_ratio)
+    {
+    	this.filter_ratio = filter_ratio;
+    	settingsChanged();
+    }
+    
+    public double filterRatio()
+    {
+    	return filter_ratio;
+    }
+    
+    // Method that caps the key points, and so the descriptors, of every 
+    // image at 'max_key_points', keeping strong ones spread over the 
+    // image; 0 keeps them all. It bounds both the memory of the library 
+    // and the matching cost of a query. Training images keep the cap they
+    // were described with, so set it before building the library; saved
+    // indexes built with another cap aren't loaded.
+    public synchronized void setMaxKeyPoints(int max_key_points)
+    {
+    	number_of_key_points = max_key_points;
+    	settingsChanged();
+    }
+    
+    // Method that turns on matching the query descriptors in batches of
+    // 'batch_size', strongest key points first, and stopping as soon as 
+    // the leading image wins the ratio test of findBestMatch even if the
+    // remaining descriptors voted against it. With 'confidence' finite, 
+    // the remaining descriptors are instead expected to vote like those 
+    // matched so far, within 'confidence' standard deviations; smaller is
+    // faster but may decide a query the full vote wouldn't. A batch size
+    // of 0 turns early termination off.
+    public synchronized void setEarlyTermination(int batch_size, double confidence)
+    {
+    	early_batch_size = batch_size;
+    	early_confidence = confidence;
+    	settingsChanged();
+    }
+    
+    // Method that filters the matches of a query before they vote, so 
+    // that fewer wrong matches dilute the votes. With 'ratio' > 0 (about
+    // 0.8 for ORB), a match is dropped if its nearest training descriptor
+    // isn't nearer than 'ratio' times the second nearest. The matcher is
+    // switched to reporting the second nearest distance; if it can't,
+    // this throws an IllegalStateException instead of keeping every match.
+    // With 'cross_check', a match is dropped unless its query descriptor is 
+    // also the nearest to its training descriptor; that needs every query
+    // descriptor, so it turns early termination off. A ratio of 0 without
+    // cross check keeps every match.
+    public synchronized void setMatchFilter(double ratio, boolean cross_check)
+    {
+    	if (ratio > 0 && !(matcher_prototype.enableSecondDistance() 
+    			&& library.enableSecondDistance())) {
+    		throw new IllegalStateException(matcher_prototype 
+    				+ " can't report second nearest distances for the ratio test");
+    	}
+    	match_ratio = ratio;
+    	this.cross_check = cross_check;
+    	settingsChanged();
+    }
+    
+    public synchronized void setShortlistSize(int shortlist_size)
+    {
+    	this.shortlist_size = shortlist_size;
+    	settingsChanged();
+    }
+    
+    // Method that drops cached results, which may no longer be what a 
+    // query returns with the new settings; a new generation of the 
+    // library drops them by itself
+    private void settingsChanged()
+    {
+    	ResultCache cache = result_cache;
+    	if (cache != null) {
+    		cache.clear();
+    	}
+    }
+    
+    // Method that reports the recall and speed of 'candidate' against exact
+    // brute force matching, both trained on the current library and both
+    // given the descriptors of the images at 'query_paths'. The exact
+    // matcher and the query descriptors are released before returning.
+    public MatcherReport compareMatchers(LibraryMatcher candidate, List<String> query_paths)
+    {
+    	// one generation for both matchers, whatever is published meanwhile
+    	LibrarySnapshot snapshot = library;
+    	LibraryMatcher exact = new OpenCvMatcher(DescriptorMatcher.BRUTEFORCE_HAMMING);
+    	List<Mat> queries = new ArrayList<Mat>(query_paths.size());
+    	try {
+    		for (TrainingImage img: snapshot.images()) {
+    			if (img.descriptors() == null) {
+    				throw new IllegalStateException("Training descriptors were moved to a descriptor store");
+    			}
+    			exact.add(img.descriptors());
+    			candidate.add(img.descriptors());
+    		}
+    		for (String path: query_paths) {
+    			TrainingImage query = new TrainingImage(path, 0, resize(readImage(path)));
+    			queries.add(imgDescriptor(query));
+    			// only the descriptors are compared
+    			query.releaseImage();
+    			query.releaseKeyPoints();
+    		}
+    		MatcherReport report = MatcherReport.compare(exact, candidate, queries);
+    		Log.i(TAG, report.toString());
+    		return report;
+    	} finally {
+    		exact.release();
+    		for (Mat query: queries) {
+    			query.release();
+    		}
+    	}
+    }
+    
+    public int librarySize()
+    {
+    	return library.size();
+    }
+    
+    // Method that returns the number of descriptors of all training images
+    public int numberOfLibraryDescriptors()
+    {
+    	return library.numberOfDescriptors();
+    }
+    
+    // Method that returns a hash of every parameter that affects the
+    // key points and descriptors stored in a library index
+    long configHash()
+    {
+    	long hash = 17;
+    	hash = 31 * hash + detector_type;
+    	hash = 31 * hash + extractor_type;
+    	hash = 31 * hash + max_side;
+    	hash = 31 * hash + number_of_key_points;
+    	// both change the pixels the descriptors are computed from
+    	hash = 31 * hash + (decode_grayscale ? 1 : 0);
+    	hash = 31 * hash + (ImageLoader.reducedDecodingSupported() ? 1 : 0);
+    	return hash;
+    }
+    
+    // Method that saves the current library to a binary index file,
+    // so it can be reloaded with loadLibrary instead of being rebuilt
+    public boolean saveLibrary(String index_path)
+    {
+    	LibrarySnapshot current = library;
+    	if (current.descriptorStore() != null) {
+    		Log.e(ERROR, "Can't save a library whose descriptors were moved to "
+    				+ current.descriptorStore().file());
+    		return false;
+    	}
+    	try {
+			LibraryIndex.save(new File(index_path), configHash(), current.images());
+			Log.i(TAG, "Saved library of "+current.size()+" images to "+index_path);
+			return true;
+		} catch (IOException e) {
+			Log.e(ERROR, "Failed to save library index to "+index_path);
+			e.printStackTrace();
+			return false;
+		}
+    }
+    
+    // Method that replaces the current library with the one stored in
+    // an index file. Returns false if the index is missing, unreadable or
+    // was built with another max_side / detector / extractor, in which 
+    // case the library is left untouched and should be rebuilt.
+    public synchronized boolean loadLibrary(String index_path)
     {
-    	// clear ImageDetector's library
-    	training_library= new ArrayList<TrainingImage>();
-    	// clear dMatcher's internal library
-    	dMatcher.clear();
+    	List<TrainingImage> loaded;
+    	try {
+			loaded = LibraryIndex.load(new File(index_path), configHash());
+		} catch (IOException e) {
+			Log.e(ERROR, "Failed to read library index "+index_path);
+			e.printStackTrace();
+			return false;
+		}
+    	if (loaded == null) {
+    		Log.i(TAG, "Library index "+index_path+" is missing or out of date");
+    		return false;
+    	}
+    	
+    	// the matcher is built straight from the stored Mats
+    	LibrarySnapshot next = publish(library.edit().clear().addAll(loaded));
+    	if (next.size() > 0) {
+    		Log.i(TAG, "Number of key points for each image: "+next.numberOfDescriptors()/next.size());
+    	}
+    	Log.i(TAG, "Loaded library of "+next.size()+" images from "+index_path);
+    	return true;
     }
     
     public long identifyObject(String image_path)
     {
-    	TrainingImage result = detectPhoto(image_path);
-    	return result.tourID();
+    	return detectPhoto(image_path).tourID();
     }
 
     public Mat resize(Mat src_img)
@@ -98,374 +717,796 @@ public class ImageDetector {
 		return src_img;
     }
 	
-    // variables for drawCurrentMatches method
-    TrainingImage CURRENT_QUERY_IMAGE;
-    TrainingImage CURRENT_RESULT_IMAGE;
-    MatOfDMatch CURRENT_GOOD_MATCHES;
+    // matches of the current query, reused by the next query of the same thread
+    private final ThreadLocal<MatchBuffer> query_matches = new ThreadLocal<MatchBuffer>() {
+    	@Override protected MatchBuffer initialValue() {
+    		return new MatchBuffer();
+    	}
+    };
     
     // Method that detects a given image based on the training library    
-    public TrainingImage detectPhoto(String query_path){
+    public DetectionResult detectPhoto(String query_path){
 //    	Log.i(TAG, "called detectFeatures");   
-    	
-    	Mat img = Imgcodecs.imread(query_path);
+    	DetectionMetrics m = metrics;
+    	long start = System.nanoTime();
+    	Mat img = readImage(query_path);
+    	long decoded = System.nanoTime();
     	Mat resized_img = resize(img); // scale down the query image
+    	if (m != null) {
+    		m.recordNanos(DetectionMetrics.IMREAD, decoded - start);
+    		m.record(DetectionMetrics.RESIZE, decoded);
+    	}
     	TrainingImage query_image = new TrainingImage(query_path,0,resized_img);
+    	return detectPhoto(query_image, null, start, m);
+    }
+    
+    // Method that detects an image that is already decoded, such as a 
+    // camera frame; 'location' may be null. 'img' is left untouched and
+    // stays the caller's: it is scaled down into a pooled Mat, which the 
+    // result keeps until it is released.
+    public DetectionResult detectPhoto(Mat img, Location location)
+    {
+    	DetectionMetrics m = metrics;
+    	long start = System.nanoTime();
+    	double multiplier = max_side/(double)Math.max(img.rows(), img.cols());
+    	Mat small = frame_pool.take();
+    	Imgproc.resize(img, small, new Size(img.cols()*multiplier, img.rows()*multiplier));
+    	TrainingImage query_image = new TrainingImage();
+    	query_image.setImage(small);
+    	if (m != null) {
+    		m.record(DetectionMetrics.RESIZE, start);
+    	}
+    	query_image.setLocation(location);
+    	return detectPhoto(query_image, frame_pool, start, m);
+    }
+    
+    // Native Mats a query works in and doesn't return, reused by the next
+    // query of the same thread instead of being left to finalizers
+    private class QueryMats {
+    	// grayscale copy of a frame for detectFrame
+    	final Mat gray = new Mat();
+    	final Mat descriptors = new Mat();
+    	// descriptors by key point response, for matchUntilDecided
+    	final Mat sorted = new Mat();
+    	// bytes of the Mats above last counted in native_memory
+    	long counted_bytes = 0;
+    	// heap buffers of byResponse and reorderRows; they only grow
+    	float[] key_point_fields = new float[0];
+    	long[] sort_keys = new long[0];
+    	int[] order = new int[0];
+    	byte[] rows_from = new byte[0];
+    	byte[] rows_to = new byte[0];
+    	
+    	// Method that updates native_memory after the Mats may have grown
+    	void count()
+    	{
+    		long bytes = NativeMemory.bytesOf(gray) + NativeMemory.bytesOf(descriptors) 
+    				+ NativeMemory.bytesOf(sorted);
+    		native_memory.pooled(bytes - counted_bytes);
+    		counted_bytes = bytes;
+    	}
+    }
+    
+    private final ThreadLocal<QueryMats> query_mats = new ThreadLocal<QueryMats>() {
+    	@Override protected QueryMats initialValue() {
+    		return new QueryMats();
+    	}
+    };
+    
+    // Method that detects an RGBA camera frame straight from memory. The 
+    // frame is left untouched: it is converted to grayscale into a reused 
+    // buffer and scaled down from there into a pooled Mat, which the 
+    // result keeps until it is released. Key points don't need color, as 
+    // every detector works on the grayscale image anyway.
+    public DetectionResult detectFrame(Mat rgba, Location location)
+    {
+    	long start = System.nanoTime();
+    	Mat gray = query_mats.get().gray;
+    	Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+    	double multiplier = max_side/(double)Math.max(rgba.rows(), rgba.cols());
+    	// the result keeps the scaled down frame until it is released
+    	Mat small = frame_pool.take();
+    	Imgproc.resize(gray, small, 
+    			new Size(rgba.cols()*multiplier, rgba.rows()*multiplier), 
+    			0, 0, Imgproc.INTER_AREA);
+    	DetectionMetrics m = metrics;
+    	if (m != null) {
+    		m.record(DetectionMetrics.RESIZE, start);
+    	}
+    	TrainingImage query_image = new TrainingImage();
+    	query_image.setImage(small);
+    	query_image.setLocation(location);
+    	return detectPhoto(query_image, frame_pool, start, m);
+    }
+    
+    // Method that detects 'query_image', whose image comes from 
+    // 'image_pool' if that isn't null and goes back to it with the result
+    private DetectionResult detectPhoto(TrainingImage query_image, MatPool image_pool, 
+    		long start, DetectionMetrics m)
+    {
+    	// the whole query runs against the generation current right now, 
+    	// whatever writers publish in the meantime
+    	LibrarySnapshot snapshot = acquireLibrary();
+    	try {
+    		return detectPhoto(snapshot, query_image, image_pool, start, m);
+    	} finally {
+    		snapshot.release();
+    	}
+    }
+    
+    // Method that returns the current generation, counted as used by a
+    // query until it is released
+    private LibrarySnapshot acquireLibrary()
+    {
+    	while (true) {
+    		LibrarySnapshot snapshot = library;
+    		// fails only if a writer retired it since it was read
+    		if (snapshot.retain()) {
+    			return snapshot;
+    		}
+    	}
+    }
+    
+    private DetectionResult detectPhoto(LibrarySnapshot snapshot, TrainingImage query_image, 
+    		MatPool image_pool, long start, DetectionMetrics m)
+    {
+    	ResultCache cache = result_cache;
+    	long hash = 0;
+    	if (cache != null) {
+    		hash = ResultCache.hash(query_image.image());
+    		DetectionResult cached = cache.get(hash, query_image.location(), snapshot.generation());
+    		if (cached != null) {
+    			// nothing refers to this query's image anymore
+    			MatPool.releaseImage(query_image, image_pool);
+    			if (m != null) {
+    				m.record(DetectionMetrics.TOTAL, start);
+    				m.recordResult(cached.identified());
+    			}
+    			return cached;
+    		}
+    	}
     	
     	// get descriptors of the query image
     	// detect the matrix of key points of that image
-    	Mat query_descriptors = imgDescriptor(query_image);
+    	QueryMats mats = query_mats.get();
+    	Mat query_descriptors = imgDescriptor(query_image, m, mats.descriptors);
 //		Log.i(TAG, "query image descriptors:  "+ query_descriptors.size());
+    	long extracted = System.nanoTime();
 		
     	// Match the descriptors of a query image 
     	// to descriptors in the training collection.
-    	MatOfDMatch matches= new MatOfDMatch();
-    	dMatcher.match(query_descriptors, matches);
-//    	Log.i(TAG, "matrix of matches size:  "+ matches.size());
+    	// With the location pre-filter, restrict matching to nearby images;
+    	// if a vocabulary is set, further restrict it to the shortlisted ones.
+    	BitSet candidates = null;
+    	if (location_prefilter && query_image.location() != null) {
+    		candidates = snapshot.spatialIndex().near(query_image.location(), location_radius);
+    	}
+    	int shortlist = shortlist_size;
+    	if (snapshot.invertedFile() != null && shortlist > 0 
+    			&& snapshot.size() > shortlist) {
+    		candidates = snapshot.invertedFile().shortlist(query_descriptors, shortlist, candidates);
+    	}
+    	MatchBuffer total_matches = query_matches.get();
+    	VoteAccumulator tally = vote_tally.get();
+    	int batch_size = early_batch_size;
+    	double ratio = match_ratio;
+    	boolean check = cross_check;
+    	int matched_descriptors = query_descriptors.rows();
+    	boolean counted = false;
+    	MatchBuffer good_matches = total_matches;
+    	if (batch_size > 0 && !check && query_descriptors.rows() > batch_size) {
+    		// the ratio test is applied batch by batch
+    		matched_descriptors = matchUntilDecided(snapshot, query_image, query_descriptors, 
+    				candidates, batch_size, ratio, total_matches, tally, mats);
+    		counted = true;
+    	} else {
+    		snapshot.match(query_descriptors, total_matches, candidates);
+    		// filter good matches
+    		if (ratio > 0 || check) {
+    			good_matches = filtered_matches.get();
+    			match_filter.get().filter(snapshot, query_descriptors, total_matches, 
+    					ratio, check, good_matches);
+    		}
+    	}
+//    	Log.i(TAG, "list of matches size:  "+ total_matches.size());
+    	long matched = System.nanoTime();
+    	if (m != null) {
+    		m.recordNanos(DetectionMetrics.MATCH, matched - extracted);
+    		m.recordMatches(total_matches.size());
+    	}
     	
-    	// filter good matches
-    	List<DMatch> total_matches = matches.toList();
-    	List<DMatch> good_matches = total_matches;
-//    	List<DMatch> good_matches = filterGoodMatches(total_matches);
+    	// the descriptors are reused by the next query; the result only 
+    	// keeps their number
+    	query_image.releaseDescriptors();
+    	mats.count();
 //    	Log.i(TAG, "list of all matches size:  "+ total_matches.size());
 //    	Log.i(TAG, "list of good matches size:  "+ good_matches.size());
 
-    	// find the image that matches the most
-    	TrainingImage bestMatch = findBestMatch(good_matches, query_image); 
+    	// find the image that matches the most; matchUntilDecided has 
+    	// counted the votes already
+    	TrainingImage bestMatch = counted ? decide(snapshot, tally, m, System.nanoTime())
+    			: findBestMatch(snapshot, good_matches, query_image, tally, m); 
+    	GeometricVerifier verifier = geometric_verifier;
+    	if (verifier != null) {
+    		bestMatch = verify(snapshot, verifier, tally, good_matches, query_image, m);
+    	}
 //    	Log.i(TAG, "bestMatch image:  "+ bestMatch.pathID());   
 
-    	// update variables for drawCurrentMatches method
-    	CURRENT_QUERY_IMAGE = query_image;  
-    	CURRENT_RESULT_IMAGE = bestMatch;
-    	CURRENT_GOOD_MATCHES = getCurrentGoodMatches(good_matches, bestMatch);
+    	// keep the matches of the best match, for drawMatches
+    	MatchBuffer matches_of_bestMatch = new MatchBuffer();
+    	getCurrentGoodMatches(snapshot, good_matches, bestMatch, matches_of_bestMatch);
+    	long voted = System.nanoTime();
+    	if (m != null) {
+    		m.recordNanos(DetectionMetrics.TOTAL, voted - start);
+    		m.recordResult(bestMatch != null);
+    	}
     	
 //    	Log.i(TAG, "finishing detectFeatures");    	
-    	return bestMatch;    	
+    	DetectionResult result = new DetectionResult(snapshot.generation(), query_image, bestMatch, 
+    			snapshot, tally, matches_of_bestMatch, matched_descriptors, 
+    			extracted - start, matched - extracted, voted - matched, voted - start, native_memory,
+    			image_pool);
+    	if (cache != null) {
+    		cache.put(hash, query_image.location(), result);
+    	}
+    	return result;
     }
 
-    private MatOfDMatch getCurrentGoodMatches(List<DMatch> good_matches,TrainingImage bestMatch)
+    // votes of the current query, reused by the next query of the same thread
+    private final ThreadLocal<VoteAccumulator> vote_tally = new ThreadLocal<VoteAccumulator>() {
+    	@Override protected VoteAccumulator initialValue() {
+    		return new VoteAccumulator();
+    	}
+    };
+    
+    // matches of one batch of matchUntilDecided, reused the same way
+    private final ThreadLocal<MatchBuffer> batch_matches = new ThreadLocal<MatchBuffer>() {
+    	@Override protected MatchBuffer initialValue() {
+    		return new MatchBuffer();
+    	}
+    };
+    
+    // matches that passed the match filter, and the filter's scratch space
+    private final ThreadLocal<MatchBuffer> filtered_matches = new ThreadLocal<MatchBuffer>() {
+    	@Override protected MatchBuffer initialValue() {
+    		return new MatchBuffer();
+    	}
+    };
+    private final ThreadLocal<MatchFilter> match_filter = new ThreadLocal<MatchFilter>() {
+    	@Override protected MatchFilter initialValue() {
+    		return new MatchFilter();
+    	}
+    };
+    
+    // Method that matches the query descriptors in batches of 'batch_size',
+    // strongest key points first, into 'total_matches' and counts their 
+    // votes into 'tally' until the votes decide the query. Only matches 
+    // passing the ratio test with 'ratio' are kept, if 'ratio' > 0. 
+    // Returns the number of descriptors matched.
+    private int matchUntilDecided(LibrarySnapshot snapshot, TrainingImage query_image, 
+    		Mat query_descriptors, BitSet candidates, int batch_size, double ratio,
+    		MatchBuffer total_matches, VoteAccumulator tally, QueryMats mats)
+    {
+    	int rows = query_descriptors.rows();
+    	int[] order = byResponse(query_image.keyPoints(), rows, mats);
+    	Mat sorted = mats.sorted;
+    	reorderRows(query_descriptors, order, rows, mats);
+    	Location query_location = query_image.location();
+    	double radius = location_radius;
+    	double confidence = early_confidence;
+    	
+    	MatchBuffer batch_all = batch_matches.get();
+    	MatchBuffer m = ratio > 0 ? filtered_matches.get() : batch_all;
+    	tally.reset(snapshot.size());
+    	total_matches.clear();
+    	int matched = 0;
+    	while (matched < rows) {
+    		int end = Math.min(rows, matched + batch_size);
+    		Mat batch = sorted.rowRange(matched, end);
+    		try {
+    			snapshot.match(batch, batch_all, candidates);
+    		} finally {
+    			// only a header; the rows stay in 'sorted'
+    			batch.release();
+    		}
+    		if (ratio > 0) {
+    			MatchFilter.ratioTest(batch_all, ratio, m);
+    		}
+    		for (int i = 0; i < m.size(); i++) {
+    			total_matches.add(order[matched + m.queryIdx(i)], m.trainIdx(i), m.imgIdx(i), 
+    					m.distance(i), m.secondDistance(i));
+    		}
+    		// like findBestMatch, only nearby images get votes
+    		tally.count(m, snapshot, query_location, radius);
+    		matched = end;
+    		if (matched < rows && isDecided(snapshot, tally, matched, rows - matched, confidence)) {
+    			break;
+    		}
+    	}
+    	return matched;
+    }
+    
+    // Method that tells whether the leading image would still win the
+    // ratio test of decide whatever the 'remaining' descriptors vote for.
+    // 'matched' descriptors were matched so far.
+    private boolean isDecided(LibrarySnapshot snapshot, VoteAccumulator tally, 
+    		int matched, int remaining, double confidence)
     {
-    	List<DMatch> matches_of_bestMatch = new ArrayList<DMatch>();
+    	int leader = tally.leader();
+    	if (leader < 0) {
+    		return false;
+    	}
+    	// decide's runner-up never has more votes than the best other image,
+    	// of any tour item; any image without votes yet may still become it
+    	int rival = -1;
+    	for (int i = 0; i < tally.numberVoted(); i++) {
+    		int img = tally.voted(i);
+    		if (img != leader && (rival < 0 || tally.votes(img) > tally.votes(rival))) {
+    			rival = img;
+    		}
+    	}
+    	int rival_votes = rival < 0 ? 0 : tally.votes(rival);
+    	
+    	double leader_votes = tally.votes(leader) 
+    			+ lowerGain(tally.votes(leader), matched, remaining, confidence);
+    	// the margin only grows faster than filter_ratio * leader_votes as 
+    	// the leader gains more, since the margin exceeds filter_ratio then
+    	double margin = leader_votes - rival_votes 
+    			- upperGain(rival_votes, matched, remaining, confidence);
+    	return margin > 0 && margin * margin > filter_ratio * leader_votes;
+    }
+    
+    // Method that bounds from above the votes an image with 'votes' out of
+    // 'matched' descriptors gets from the 'remaining' ones
+    private static double upperGain(int votes, int matched, int remaining, double confidence)
+    {
+    	if (Double.isInfinite(confidence)) {
+    		return remaining;
+    	}
+    	// estimated with one more vote for and one more against, so images 
+    	// without votes yet aren't taken to never get any
+    	double p = (votes + 1.0) / (matched + 2.0);
+    	double gain = remaining * p + confidence * Math.sqrt(remaining * p * (1 - p));
+    	return Math.min(remaining, gain);
+    }
+    
+    // Method that bounds from below the votes an image with 'votes' out of
+    // 'matched' descriptors gets from the 'remaining' ones
+    private static double lowerGain(int votes, int matched, int remaining, double confidence)
+    {
+    	if (Double.isInfinite(confidence)) {
+    		return 0;
+    	}
+    	double p = votes / (double) matched;
+    	double gain = remaining * p - confidence * Math.sqrt(remaining * p * (1 - p));
+    	return Math.max(0, gain);
+    }
+    
+    // Method that returns the first 'rows' key point indexes, the one 
+    // with the strongest response first and, of equal ones, the first. 
+    // Every index is sorted as a long, its response's bits above the 
+    // index, in the buffers of 'mats'; the returned array is one of them.
+    private static int[] byResponse(MatOfKeyPoint key_points, int rows, QueryMats mats)
+    {
+    	// number of floats per key point, and the offset of the response
+    	final int fields = 7;
+    	final int response = 4;
+    	if (rows == 0) {
+    		return mats.order;
+    	}
+    	if (mats.key_point_fields.length < (int) key_points.total() * fields) {
+    		mats.key_point_fields = new float[(int) key_points.total() * fields];
+    		mats.sort_keys = new long[(int) key_points.total()];
+    		mats.order = new int[(int) key_points.total()];
+    	}
+    	float[] points = mats.key_point_fields;
+    	long[] keys = mats.sort_keys;
+    	key_points.get(0, 0, points);
+    	for (int i = 0; i < rows; i++) {
+    		// ordered like the float, for negative ones too
+    		int bits = Float.floatToIntBits(points[i * fields + response]);
+    		bits ^= (bits >> 31) & 0x7FFFFFFF;
+    		// complemented, so the strongest sorts first
+    		keys[i] = ((long) ~bits << 32) | i;
+    	}
+    	Arrays.sort(keys, 0, rows);
+    	int[] order = mats.order;
+    	for (int i = 0; i < rows; i++) {
+    		order[i] = (int) keys[i];
+    	}
+    	return order;
+    }
+    
+    // Method that copies 'descriptors' into mats.sorted so that row i of 
+    // it is row order[i] of the original, for the first 'rows' of 'order'
+    private static void reorderRows(Mat descriptors, int[] order, int rows, QueryMats mats)
+    {
+    	Mat sorted = mats.sorted;
+    	sorted.create(descriptors.rows(), descriptors.cols(), descriptors.type());
+    	if (descriptors.depth() == CvType.CV_8U && descriptors.channels() == 1) {
+    		int cols = descriptors.cols();
+    		int size = descriptors.rows() * cols;
+    		if (mats.rows_from.length < size) {
+    			mats.rows_from = new byte[size];
+    			mats.rows_to = new byte[size];
+    		}
+    		byte[] from = mats.rows_from;
+    		byte[] to = mats.rows_to;
+    		descriptors.get(0, 0, from);
+    		for (int i = 0; i < rows; i++) {
+    			System.arraycopy(from, order[i] * cols, to, i * cols, cols);
+    		}
+    		sorted.put(0, 0, to);
+    	} else {
+    		for (int i = 0; i < rows; i++) {
+    			Mat from = descriptors.row(order[i]);
+    			Mat to = sorted.row(i);
+    			from.copyTo(to);
+    			from.release();
+    			to.release();
+    		}
+    	}
+    }
+    
+    private void getCurrentGoodMatches(LibrarySnapshot snapshot, MatchBuffer good_matches,
+    		TrainingImage bestMatch, MatchBuffer matches_of_bestMatch)
+    {
+    	matches_of_bestMatch.clear();
+    	if (bestMatch == null) {
+    		return;
+    	}
     	// loop to filter matches of train images, which are not the bestMatch image
-    	for(DMatch aMatch: good_matches){    		
-    		TrainingImage trainImg = training_library.get(aMatch.imgIdx);   
+    	for(int i = 0; i < good_matches.size(); i++){    		
+    		TrainingImage trainImg = snapshot.image(good_matches.imgIdx(i));   
     		if (trainImg == bestMatch)
     		{
-    			matches_of_bestMatch.add(aMatch);
+    			matches_of_bestMatch.add(good_matches, i);
     		}
     	}
-    	MatOfDMatch result = new MatOfDMatch();
-    	result.fromList(matches_of_bestMatch);
-    	return result;
     }
     
-    public Mat drawCurrentMatches(int n)
+    // Method that draws the 'n' closest matches between the query of 
+    // 'result' and the training image it was identified as
+    public Mat drawMatches(DetectionResult result, int n)
     {
-    	Mat img1 = CURRENT_QUERY_IMAGE.image();
-    	MatOfKeyPoint kp1= CURRENT_QUERY_IMAGE.keyPoints();
-    	Mat img2 = CURRENT_RESULT_IMAGE.image();
-    	MatOfKeyPoint kp2= CURRENT_RESULT_IMAGE.keyPoints();
-    	Mat result = new Mat();
+    	if (!result.identified()) {
+    		throw new IllegalArgumentException("The query wasn't identified, there are no matches to draw");
+    	}
+    	if (result.isReleased()) {
+    		throw new IllegalStateException("The result was released, its query can't be drawn");
+    	}
+    	Mat img1 = loadImage(result.query());
+    	MatOfKeyPoint kp1= result.query().keyPoints();
+    	Mat img2 = loadImage(result.match());
+    	MatOfKeyPoint kp2= result.match().keyPoints();
+    	Mat drawing = new Mat();
     	
-    	Features2d.drawMatches(img1, kp1, img2, kp2, 
-    			sortedKMatches(CURRENT_GOOD_MATCHES,0,n), result);
-    	return result;
+    	MatOfDMatch closest = result.closestMatches(n);
+    	Features2d.drawMatches(img1, kp1, img2, kp2, closest, drawing);
+    	// only the drawing is returned; free the rest now
+    	closest.release();
+    	if (img1 != result.query().image()) {
+    		img1.release();
+    	}
+    	if (img2 != result.match().image()) {
+    		img2.release();
+    	}
+    	return drawing;
     }
 
+    // Method that returns the pixels of an image, re-reading them from disk
+    // if they were released or never loaded (e.g. from a library index)
+    private Mat loadImage(TrainingImage img)
+    {
+    	Mat pixels = img.image();
+    	if (pixels == null) {
+    		// in color, it is only drawn
+    		pixels = resize(ImageLoader.load(img.pathID(), max_side, false));
+    	}
+    	return pixels;
+    }
+    
+    // Method that returns a drawing of the 'n' closest matches of 'result'
+    // that is only rendered when asked for, so every query of a run can
+    // get one and only those actually looked at cost anything
+    public MatchDrawing matchDrawing(DetectionResult result, int n)
+    {
+    	return new MatchDrawing(this, result, n);
+    }
+    
+    // Method that returns matches 'start' to 'end' (exclusive) of 
+    // 'matches' in order of distance, selecting only the 'end' closest
     public MatOfDMatch sortedKMatches(MatOfDMatch matches, int start, int end)
     {
-    	List<DMatch> list = matches.toList();
-    	Collections.sort(list, new Comparator<DMatch>() {
-            @Override
-            public int compare(final DMatch object1, final DMatch object2) {
-                return (int)(object1.distance - object2.distance);
-            }
-           } );
-    	if(list.size()<end){
-    		Log.i(TAG,"Only found "+list.size()+" matches. Can't return "+end);
-    		end = list.size();
-    	}
-    	List<DMatch> subllist = list.subList(start, end);
-    	MatOfDMatch result = new MatOfDMatch();
-    	result.fromList(subllist);
-    	return result;
+    	MatchBuffer all = new MatchBuffer((int) Math.max(1, matches.total()));
+    	all.fromMat(matches);
+    	if(all.size()<end){
+    		Log.i(TAG,"Only found "+all.size()+" matches. Can't return "+end);
+    		end = all.size();
+    	}
+    	MatchBuffer closest = new MatchBuffer(Math.max(1, end));
+    	all.closest(end, closest);
+    	return closest.toMat(start, end);
     }
     
-    // Method that returns a matrix of descriptors for a given image
+    // Method that returns a matrix of descriptors for a given image,
+    // using the calling thread's detector and extractor
     public Mat imgDescriptor(TrainingImage train_img)
+    {
+    	return imgDescriptor(train_img, null, new Mat());
+    }
+    
+    // Method that computes the descriptors of an image into 
+    // 'imgDescriptor' and, if 'm' isn't null, records how long detecting 
+    // and describing took
+    private Mat imgDescriptor(TrainingImage train_img, DetectionMetrics m, Mat imgDescriptor)
     {
     	Mat img = train_img.image();
-    	Mat imgDescriptor = new Mat();
     	// detect the matrix of key points of that image
 		MatOfKeyPoint imgKeyPoints = new MatOfKeyPoint();
-		fDetector.detect(img, imgKeyPoints);
+		long start = System.nanoTime();
+		fDetector.get().detect(img, imgKeyPoints);
+		long detected = System.nanoTime();
 
 		// filter the best key points
-//		imgKeyPoints= topKeyPoints(imgKeyPoints, number_of_key_points);
+		imgKeyPoints= topKeyPoints(imgKeyPoints, number_of_key_points, img);
 
 		Log.i(TAG, "imgKeyPoints size:  "+ imgKeyPoints.size());
-		CURRENT_NUMBER_OF_FEATURES = (int)imgKeyPoints.size().height;
 		
 		// compute the descriptor from those key points
-		dExtractor.compute(img,imgKeyPoints, imgDescriptor);
+		dExtractor.get().compute(img,imgKeyPoints, imgDescriptor);
+		if (m != null) {
+			m.recordNanos(DetectionMetrics.DETECT, detected - start);
+			m.record(DetectionMetrics.DESCRIBE, detected);
+			m.recordKeyPoints((int)imgKeyPoints.size().height);
+		}
 		train_img.setKeyPoints(imgKeyPoints);
 		train_img.setDescriptors(imgDescriptor);
 		return imgDescriptor;
     }
     
+    // Method that describes every key point by the first half of its 
+    // descriptor in each of the three color channels. The channels are 
+    // split natively into reused Mats and described concurrently, each
+    // with its own extractor, as DescriptorExtractor isn't thread-safe.
     public Mat imgDescriptor_rgb(TrainingImage train_img)
     {
     	Mat img = train_img.image();
-    	Mat imgDescriptor = new Mat();
+    	if (img.channels() != 3) {
+    		throw new IllegalArgumentException("imgDescriptor_rgb needs a 3-channel image, got "
+    				+ img.channels() + " channels; see setDecodeGrayscale");
+    	}
     	// detect the matrix of key points of that image
 		MatOfKeyPoint imgKeyPoints = new MatOfKeyPoint();
-		fDetector.detect(img, imgKeyPoints);
+		fDetector.get().detect(img, imgKeyPoints);
 
 		// filter the best key points
-//		imgKeyPoints= topKeyPoints(imgKeyPoints, number_of_key_points);
+		imgKeyPoints= topKeyPoints(imgKeyPoints, number_of_key_points, img);
 
 		Log.i(TAG, "imgKeyPoints size:  "+ imgKeyPoints.size());
-		CURRENT_NUMBER_OF_FEATURES = (int)imgKeyPoints.size().height;
 
 		// compute the descriptor from those key points
 		//Using RGB channels to describe
-		Mat img_r = new Mat(img.rows(), img.cols(), CvType.CV_8UC1);
-		Mat img_g = new Mat(img.rows(), img.cols(), CvType.CV_8UC1);
-		Mat img_b = new Mat(img.rows(), img.cols(), CvType.CV_8UC1);
-		double[] rgb;
-		for(int x=0; x < img.cols();x++){
-			for(int y=0; y < img.rows(); y++){
-				rgb = img.get(y,x);
-				img_r.put(y, x, new double[]{rgb[0]});
-				img_g.put(y, x, new double[]{rgb[1]});
-				img_b.put(y, x, new double[]{rgb[2]});				
+		ChannelScratch scratch = channel_scratch.get();
+		// compute() drops key points it can't describe, so every channel
+		// gets its own copy; all of them drop the same ones
+		MatOfKeyPoint[] channelKeyPoints = new MatOfKeyPoint[3];
+		channelKeyPoints[0] = imgKeyPoints;
+		for (int c = 1; c < 3; c++) {
+			channelKeyPoints[c] = new MatOfKeyPoint();
+			imgKeyPoints.copyTo(channelKeyPoints[c]);
+		}
+		List<Future<?>> pending = new ArrayList<Future<?>>(2);
+		for (int c = 1; c < 3; c++) {
+			pending.add(channelPool().submit(
+					describeChannel(scratch, img, c, channelKeyPoints[c])));
+		}
+		describeChannel(scratch, img, 0, channelKeyPoints[0]).run();
+		try {
+			for (Future<?> f: pending) {
+				f.get();
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while describing channels", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to describe a channel", e.getCause());
 		}
+		channelKeyPoints[1].release();
+		channelKeyPoints[2].release();
 
-    	Mat imgDescriptor_r = new Mat();
-    	Mat imgDescriptor_g = new Mat();
-    	Mat imgDescriptor_b = new Mat();
-		dExtractor.compute(img_r,imgKeyPoints, imgDescriptor_r);
-		dExtractor.compute(img_g,imgKeyPoints, imgDescriptor_g);
-		dExtractor.compute(img_b,imgKeyPoints, imgDescriptor_b);
-//		Log.i(TAG, "imgDescriptor_r size:  "+ imgDescriptor_r.size());
-//		Log.i(TAG, "imgDescriptor_g size:  "+ imgDescriptor_g.size());
-//		Log.i(TAG, "imgDescriptor_b size:  "+ imgDescriptor_b.size());
-
-		Mat imgDescriptor_x3 = new Mat();
-		List<Mat> lmat = Arrays.asList(
-				imgDescriptor_r.submat(0,imgDescriptor_r.rows(),0,16),
-				imgDescriptor_g.submat(0,imgDescriptor_g.rows(),0,16),
-				imgDescriptor_b.submat(0,imgDescriptor_b.rows(),0,16));
-		Core.hconcat(lmat, imgDescriptor_x3);
-		Log.i(TAG, "imgDescriptor_x3 size:  "+ imgDescriptor_x3.size());
-		imgDescriptor = imgDescriptor_x3;
-		img_r.release();
-		img_g.release();
-		img_b.release();
-		imgDescriptor_r.release();
-		imgDescriptor_g.release();
-		imgDescriptor_b.release();
+		// copy the first 16 bytes of every channel's descriptor side by side
+		int rows = scratch.descriptors[0].rows();
+		Mat imgDescriptor = new Mat(rows, 48, CvType.CV_8UC1);
+		if (rows > 0) {
+			for (int c = 0; c < 3; c++) {
+				scratch.descriptors[c].colRange(0, 16).copyTo(imgDescriptor.colRange(16 * c, 16 * c + 16));
+			}
+		}
+		Log.i(TAG, "imgDescriptor_x3 size:  "+ imgDescriptor.size());
 		
 		train_img.setKeyPoints(imgKeyPoints);
 		train_img.setDescriptors(imgDescriptor);
 		return imgDescriptor;
     }
     
-    int CURRENT_NUMBER_OF_FEATURES = 0;
-    
-    // Method that returns the top 'n' best key points 
-    private MatOfKeyPoint topKeyPoints(MatOfKeyPoint imgKeyPoints, int n)
-    {
-//		Log.i(TAG, "imgKeyPoints size:  "+ imgKeyPoints.size());
-		// Sort and select n best key points
-		List<KeyPoint> listOfKeypoints = imgKeyPoints.toList();
-		if(listOfKeypoints.size()<n){
-//			CURRENT_NUMBER_OF_FEATURES = listOfKeypoints.size();
-			Log.i(ERROR, "There are not enough "+n+" key points, only "+listOfKeypoints.size());
-			return imgKeyPoints;
-		}else{	
-			Collections.sort(listOfKeypoints, new Comparator<KeyPoint>() {
-			    @Override
-			    public int compare(KeyPoint kp1, KeyPoint kp2) {
-			        // Sort them in descending order, so the best response KPs will come first
-			        return (int) (kp2.response - kp1.response);
-			    }
-			});
-	//		Log.i(TAG, "listOfKeypoints size:  "+ listOfKeypoints.size());
-			List<KeyPoint> bestImgKeyPoints = listOfKeypoints.subList(0,n);
-	//		Log.i(TAG, "bestImgKeyPoints size:  "+ bestImgKeyPoints.size());
-//			CURRENT_NUMBER_OF_FEATURES = bestImgKeyPoints.size();
-			
-			MatOfKeyPoint result = new MatOfKeyPoint();
-			result.fromList(bestImgKeyPoints); 
-			return result;
-		}
+    // reused by imgDescriptor_rgb: one extractor, channel and descriptor 
+    // Mat per color channel, for every thread calling it
+    private class ChannelScratch {
+    	final DescriptorExtractor[] extractors = new DescriptorExtractor[3];
+    	final Mat[] channels = new Mat[3];
+    	final Mat[] descriptors = new Mat[3];
+    	
+    	ChannelScratch()
+    	{
+    		for (int c = 0; c < 3; c++) {
+    			extractors[c] = DescriptorExtractor.create(extractor_type);
+    			channels[c] = new Mat();
+    			descriptors[c] = new Mat();
+    		}
+    	}
     }
+    private final ThreadLocal<ChannelScratch> channel_scratch = new ThreadLocal<ChannelScratch>() {
+    	@Override protected ChannelScratch initialValue() {
+    		return new ChannelScratch();
+    	}
+    };
     
-    // Method that filters good matches from given list of matches,
-    // using arbitrary bounds
-    private List<DMatch> filterGoodMatches(List<DMatch> total_matches)
+    // workers describing color channels, shared by every ImageDetector
+    private static ExecutorService channel_pool;
+    
+    private static synchronized ExecutorService channelPool()
     {
-    	List<DMatch> goodMatches = new ArrayList<DMatch>();
-    	double max_dist = 0; double min_dist = 100;
-    	// calculate max and min distances between keypoints
-    	for( DMatch dm: total_matches)
-    	{ 
-    		double dist = dm.distance;
-    	    if( dist < min_dist ) min_dist = dist;
-    	    if( dist > max_dist ) max_dist = dist;
-    	}
-    	for(DMatch aMatch: total_matches){
-    		//	(!) WARNING:	hard code, arbitrary constants 3 & 0.02
-    		if( aMatch.distance <= Math.max(3*min_dist, 0.02)){
-    			goodMatches.add(aMatch);
-    		}
+    	if (channel_pool == null) {
+    		channel_pool = Executors.newFixedThreadPool(
+    				Math.max(2, Runtime.getRuntime().availableProcessors()),
+    				new ThreadFactory() {
+    					@Override public Thread newThread(Runnable r) {
+    						Thread t = new Thread(r, "ImageDetector-channel");
+    						// don't keep the process alive for these
+    						t.setDaemon(true);
+    						return t;
+    					}
+    				});
     	}
-    	return goodMatches;
+    	return channel_pool;
     }
     
-    HashMap<TrainingImage, Integer> CURRENT_MATCH_FREQUENCY;
-    
-    private TrainingImage findBestMatch_noFilter(List<DMatch> good_matches, Location query_location)
+    private static Runnable describeChannel(final ChannelScratch scratch, final Mat img, 
+    		final int c, final MatOfKeyPoint keyPoints)
     {
-    	HashMap<TrainingImage,Integer> hm= new HashMap<TrainingImage, Integer>();
-    	// count the images matched
-    	for(DMatch aMatch: good_matches){    		
-    		TrainingImage trainImg = training_library.get(aMatch.imgIdx);   
-    		if(hm.get(trainImg)==null){
-    			hm.put(trainImg,1);
-    		}else{
-    			hm.put(trainImg, hm.get(trainImg)+1);
+    	return new Runnable() {
+    		@Override public void run() {
+    			Core.extractChannel(img, scratch.channels[c], c);
+    			scratch.extractors[c].compute(scratch.channels[c], keyPoints, scratch.descriptors[c]);
     		}
-    		
-//    		if(CURRENT_MATCH_DISTANCES.get(trainImg)==null){
-//    			CURRENT_MATCH_DISTANCES.put(trainImg,aMatch.distance+" ");
-//    		}else{
-//    			String updated_distances = 
-//    					CURRENT_MATCH_DISTANCES.get(trainImg)+aMatch.distance+" ";
-//    			CURRENT_MATCH_DISTANCES.put(trainImg, updated_distances);
-//    		} 
+    	};
+    }
+    
+    // Method that returns the 'n' best key points, strong ones spread 
+    // over the whole image, and releases the others; with n <= 0 or no 
+    // more than 'n' key points, they are all returned
+    private MatOfKeyPoint topKeyPoints(MatOfKeyPoint imgKeyPoints, int n, Mat img)
+    {
+    	if (n <= 0) {
+    		return imgKeyPoints;
     	}
-    	
-    	// location filter
-    	HashMap<TrainingImage,Integer> filtered_hm = locationFilter(hm,query_location);
-    	hm = filtered_hm;
-    	
-    	CURRENT_MATCH_FREQUENCY = hm;
-    	// search for the image that matches the largest number of descriptors.
-    	TrainingImage bestMatch= null;
-    	Integer greatestCount=0;
-//    	Log.i(TAG, "hashmap of matches size:  "+ hm.size());
-    	for(TrainingImage trainImg: hm.keySet()){
-//    		Log.i(TAG, "train img:  "+ trainImg);
-    		Integer count=hm.get(trainImg);
-    		if(count> greatestCount){
-    			greatestCount= count;
-    			bestMatch= trainImg;
-    		}
+    	MatOfKeyPoint best = KeyPointSelector.select(imgKeyPoints, n, img.cols(), img.rows());
+    	if (best != imgKeyPoints) {
+    		imgKeyPoints.release();
     	}
-    	
-    	// print result
-//    	for(TrainingImage trainImg: hm.keySet()){
-//    		Log.i(TAG, "Matched img result:  "+ trainImg.pathID() +
-//    				", numOfMatches: "+hm.get(trainImg));
-//    	}    
-    	
-    	return bestMatch;    	
-    }    
+    	return best;
+    }
     
 //    HashMap<TrainingImage, String> CURRENT_MATCH_DISTANCES 
 //    	= new HashMap<TrainingImage, String>();
     
-    // Method that finds the best match from a list of matches
-    private TrainingImage findBestMatch(List<DMatch> good_matches, TrainingImage query_image)
-    {
-    	HashMap<TrainingImage,Integer> hm= new HashMap<TrainingImage, Integer>();
-    	// count the images matched
-    	for(DMatch aMatch: good_matches){    		
-    		TrainingImage trainImg = training_library.get(aMatch.imgIdx);
-    		
-    		if(hm.get(trainImg)==null){
-    			hm.put(trainImg,1);
-    		}else{
-    			hm.put(trainImg, hm.get(trainImg)+1);
+    // Method that finds the best match from a list of matches against the
+    // current library
+    TrainingImage findBestMatch(MatchBuffer good_matches, TrainingImage query_image)
+    {
+    	return findBestMatch(library, good_matches, query_image, vote_tally.get(), null);
+    }
+    
+    // Method that finds the best match among the images of 'snapshot', 
+    // which 'good_matches' were matched against. The votes are left in 
+    // 'tally'.
+    private TrainingImage findBestMatch(LibrarySnapshot snapshot, MatchBuffer good_matches, 
+    		TrainingImage query_image, VoteAccumulator tally, DetectionMetrics m)
+    {
+    	long start = System.nanoTime();
+    	// count the images matched, after the location filter
+    	tally.reset(snapshot.size());
+    	tally.count(good_matches, snapshot, query_image.location(), location_radius);
+    	long counted = System.nanoTime();
+    	if (m != null) {
+    		m.recordNanos(DetectionMetrics.VOTE, counted - start);
+    	}
+    	return decide(snapshot, tally, m, counted);
+    }
+    
+    // Method that returns the image with the most votes in 'tally' if it 
+    // leads the runner-up clearly enough, null otherwise. The runner-up is
+    // picked as findBestMatch always did, scanning the voted images: a 
+    // leader that is overtaken becomes the runner-up whatever its tour
+    // item; otherwise the first other image does, until an image of 
+    // another tour item than the leader's has more votes. So it may well
+    // be of the leader's own tour item.
+    private TrainingImage decide(LibrarySnapshot snapshot, VoteAccumulator tally, 
+    		DetectionMetrics m, long start)
+    {
+    	TrainingImage bestMatch = null;
+    	int leader = -1;
+    	int runner_up = -1;
+    	for (int i = 0; i < tally.numberVoted(); i++) {
+    		int img = tally.voted(i);
+    		if (leader < 0) {
+    			leader = img;
+    		} else if (tally.votes(img) > tally.votes(leader)) {
+    			runner_up = leader;
+    			leader = img;
+    		} else if (runner_up < 0) {
+    			runner_up = img;
+    		} else if (snapshot.image(img).tourID() != snapshot.image(leader).tourID()
+    				&& tally.votes(img) > tally.votes(runner_up)) {
+    			runner_up = img;
     		}
     	}
-    	
-    	// location filter
-    	HashMap<TrainingImage,Integer> filtered_hm = locationFilter(hm,query_image.location());
-    	hm = filtered_hm;
-    	
-    	CURRENT_MATCH_FREQUENCY = hm;
-    	// search for the image that matches the largest number of descriptors.
-    	TrainingImage bestMatch= null;
-		TrainingImage secondBestMatch= null;
-//    	Log.i(TAG, "hashmap of matches size:  "+ hm.size());
-				for(TrainingImage trainImg: hm.keySet()){
-					if(bestMatch == null){
-						bestMatch= trainImg;				
-					}else{
-						if(hm.get(trainImg)> hm.get(bestMatch)){
-							secondBestMatch = bestMatch;
-							bestMatch= trainImg;
-						}else{
-							if (secondBestMatch == null){
-								secondBestMatch = trainImg;
-							}else{
-								if(trainImg.tourID() != bestMatch.tourID() 
-										&& hm.get(trainImg)> hm.get(secondBestMatch)){
-									secondBestMatch = trainImg;
-								}
-							}
-						}
-					}
-				}
-
-    	// print result
-//    	for(TrainingImage trainImg: hm.keySet()){
-//    		Log.i(TAG, "Matched img result:  "+ trainImg.pathID() +
-//    				", numOfMatches: "+hm.get(trainImg));
-//    	}
-
-		if (secondBestMatch == null){
-			return bestMatch;
-		}
-		else{ 
-			int diff = hm.get(bestMatch)-hm.get(secondBestMatch) ;
-			if ( diff * diff > filter_ratio * hm.get(bestMatch)){
-				return bestMatch;
-			}
-			else{
-				Log.i(TAG, "Found no best match for the query image!");
-				return null;
-			}
-		}
-	}
+    	if (leader >= 0) {
+    		int diff = runner_up < 0 ? 0 : tally.votes(leader) - tally.votes(runner_up);
+    		if (runner_up < 0 || diff * diff > filter_ratio * tally.votes(leader)) {
+    			bestMatch = snapshot.image(leader);
+    		} else {
+    			Log.i(TAG, "Found no best match for the query image!");
+    		}
+    	}
+    	if (m != null) {
+    		m.record(DetectionMetrics.DECIDE, start);
+    	}
+    	return bestMatch;
+    }
 
-    public HashMap<TrainingImage,Integer> locationFilter(HashMap<TrainingImage,Integer> hm, Location query_location)
+    // Method that re-ranks the images with the most votes in 'tally' by 
+    // the inliers among their matches, and returns the one with the most 
+    // if it has enough of them and leads the best image of any other tour
+    // item clearly enough, null otherwise
+    private TrainingImage verify(LibrarySnapshot snapshot, GeometricVerifier verifier, 
+    		VoteAccumulator tally, MatchBuffer good_matches, TrainingImage query_image,
+    		DetectionMetrics m)
     {
-    	if(query_location == null){
-    		Log.i(TAG, "Image's location is not available");
-    		return hm;
-    	}else{
-        	HashMap<TrainingImage,Integer> new_hm = new HashMap<TrainingImage,Integer>();
-	    	for(TrainingImage trainImg: hm.keySet()){
-	    		double distance = query_location.distanceTo(trainImg.location());
-	    		if(distance < 50){
-	    			int count = hm.get(trainImg);
-	    			new_hm.put(trainImg,count);
-	    		}
-	    	}
-	    	return new_hm;
+    	long start = System.nanoTime();
+    	GeometricVerifier.Verification verification = verifier.verify(snapshot, tally, 
+    			good_matches, query_image.keyPoints());
+    	TrainingImage bestMatch = null;
+    	if (verification.size() > 0 && verification.inliers(0) >= verifier.minInliers()) {
+    		TrainingImage leader = snapshot.image(verification.image(0));
+    		int runner_up = 0;
+    		for (int i = 1; i < verification.size(); i++) {
+    			if (snapshot.image(verification.image(i)).tourID() != leader.tourID()) {
+    				runner_up = verification.inliers(i);
+    				break;
+    			}
+    		}
+    		int diff = verification.inliers(0) - runner_up;
+    		if (diff * diff > filter_ratio * verification.inliers(0)) {
+    			bestMatch = leader;
+    		}
+    	}
+    	if (bestMatch == null) {
+    		Log.i(TAG, "Found no verified match for the query image!");
+    	}
+    	if (m != null) {
+    		m.record(DetectionMetrics.VERIFY, start);
     	}
+    	return bestMatch;
     }
-    
+
     // Method that displays the image and its features 
     // on the device's screen
     public void drawFeatures(Mat rgba){
     	MatOfKeyPoint keyPoints = new MatOfKeyPoint();    	
     	Imgproc.cvtColor(rgba, rgba, Imgproc.COLOR_RGBA2RGB);
-    	fDetector.detect(rgba, keyPoints);
+    	fDetector.get().detect(rgba, keyPoints);
     	Features2d.drawKeypoints(rgba,keyPoints,rgba);
     	Imgproc.cvtColor(rgba, rgba, Imgproc.COLOR_RGB2RGBA);
     }
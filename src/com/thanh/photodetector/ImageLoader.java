@@ -0,0 +1,170 @@
+package com.thanh.photodetector;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import android.util.Log;
+
+// Reads images for ImageDetector at about the size they are going to be
+// used at. For a JPEG, the dimensions are read from its header first; if
+// the image is at least twice as large as needed, libjpeg is asked to
+// decode it at 1/2, 1/4 or 1/8 scale (scaling in the DCT domain), picking
+// the smallest scale that still leaves the longer side at or above
+// 'max_side'. Only the final, much cheaper resize is left to the caller.
+//
+// Reduced decoding needs OpenCV 3.2 or later (IMREAD_REDUCED_*); with an
+// older library, or for other formats, images are decoded at full size,
+// still straight to grayscale if asked to.
+public class ImageLoader {
+	// tag of messages printed to LogCat
+	protected static final String TAG = "ImageLoader";
+
+	// Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2 / _COLOR_2 and so on, spelled
+	// out since the bindings of OpenCV 3.0 don't have them
+	private static final int IMREAD_REDUCED_GRAYSCALE_2 = 16;
+	private static final int IMREAD_REDUCED_COLOR_2 = 17;
+	private static final int IMREAD_REDUCED_GRAYSCALE_4 = 32;
+	private static final int IMREAD_REDUCED_COLOR_4 = 33;
+	private static final int IMREAD_REDUCED_GRAYSCALE_8 = 64;
+	private static final int IMREAD_REDUCED_COLOR_8 = 65;
+
+	private static Boolean reduced_supported;
+
+	private ImageLoader(){}
+
+	// Method that decodes the image at 'path' with its longer side as
+	// close to, but not below, 'max_side' as the decoder allows;
+	// grayscale if 'grayscale' is set, BGR otherwise. Returns an empty
+	// Mat if the image can't be read, like imread.
+	public static Mat load(String path, int max_side, boolean grayscale)
+	{
+		int scale = 1;
+		if (reducedDecodingSupported()) {
+			int[] size = jpegSize(path);
+			if (size != null) {
+				scale = scaleFor(Math.max(size[0], size[1]), max_side);
+			}
+		}
+		return Imgcodecs.imread(path, flags(scale, grayscale));
+	}
+
+	// Method that returns the largest of 1, 2, 4 and 8 that, dividing
+	// 'longer_side', still leaves at least 'max_side' pixels
+	static int scaleFor(int longer_side, int max_side)
+	{
+		int scale = 1;
+		while (scale < 8 && longer_side / (scale * 2) >= max_side) {
+			scale *= 2;
+		}
+		return scale;
+	}
+
+	private static int flags(int scale, boolean grayscale)
+	{
+		switch (scale) {
+		case 2:
+			return grayscale ? IMREAD_REDUCED_GRAYSCALE_2 : IMREAD_REDUCED_COLOR_2;
+		case 4:
+			return grayscale ? IMREAD_REDUCED_GRAYSCALE_4 : IMREAD_REDUCED_COLOR_4;
+		case 8:
+			return grayscale ? IMREAD_REDUCED_GRAYSCALE_8 : IMREAD_REDUCED_COLOR_8;
+		default:
+			return grayscale ? Imgcodecs.IMREAD_GRAYSCALE : Imgcodecs.IMREAD_COLOR;
+		}
+	}
+
+	// Method that tells whether the native library knows IMREAD_REDUCED_*;
+	// older versions would misread the flags, so they never get them
+	static synchronized boolean reducedDecodingSupported()
+	{
+		if (reduced_supported == null) {
+			String version = Core.VERSION;
+			boolean supported = false;
+			try {
+				String[] parts = version.split("\\.");
+				int major = Integer.parseInt(parts[0]);
+				int minor = Integer.parseInt(parts[1].replaceAll("[^0-9].*", ""));
+				supported = major > 3 || (major == 3 && minor >= 2);
+			} catch (RuntimeException e) {
+				Log.i(TAG, "Can't tell the OpenCV version from \""+version+"\"");
+			}
+			Log.i(TAG, "OpenCV "+version+(supported ? " decodes" : " doesn't decode")
+					+ " JPEGs at reduced size");
+			reduced_supported = supported;
+		}
+		return reduced_supported;
+	}
+
+	// Method that reads the {width, height} of a JPEG from its start of
+	// frame header, without decoding anything. Returns null if the file
+	// isn't a JPEG or can't be read.
+	static int[] jpegSize(String path)
+	{
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 4096));
+			if (in.readUnsignedShort() != 0xFFD8) {
+				return null;
+			}
+			while (true) {
+				int b = in.readUnsignedByte();
+				if (b != 0xFF) {
+					// not at a marker; the file is corrupt
+					return null;
+				}
+				int marker = in.readUnsignedByte();
+				while (marker == 0xFF) {
+					// fill bytes
+					marker = in.readUnsignedByte();
+				}
+				if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+					// markers without a segment
+					continue;
+				}
+				if (marker == 0xD9 || marker == 0xDA) {
+					// end of image or start of scan before any frame header
+					return null;
+				}
+				int length = in.readUnsignedShort();
+				if (marker >= 0xC0 && marker <= 0xCF
+						&& marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+					in.readUnsignedByte(); // sample precision
+					int height = in.readUnsignedShort();
+					int width = in.readUnsignedShort();
+					return new int[]{width, height};
+				}
+				skipFully(in, length - 2);
+			}
+		} catch (EOFException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// only read from
+				}
+			}
+		}
+	}
+
+	private static void skipFully(DataInputStream in, int n) throws IOException
+	{
+		while (n > 0) {
+			int skipped = in.skipBytes(n);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			n -= skipped;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.thanh.photodetector;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Per-stage timings of one ImageDetector.addAllToLibrary run.
+// Stage times are summed over all worker threads, so
+// count / busy time is the throughput of a single worker in that stage.
+public class IngestStats {
+	public static final int DECODE = 0;
+	public static final int RESIZE = 1;
+	public static final int EXIF = 2;
+	public static final int EXTRACT = 3;
+	public static final int COMMIT = 4;
+	private static final String[] STAGE_NAMES = 
+		{"decode", "resize", "exif", "extract", "commit"};
+	
+	private final AtomicLongArray stage_nanos = new AtomicLongArray(STAGE_NAMES.length);
+	private final AtomicLongArray stage_counts = new AtomicLongArray(STAGE_NAMES.length);
+	private final AtomicInteger failed = new AtomicInteger();
+	private int in_flight = 0;
+	private int peak_in_flight = 0;
+	private long wall_nanos;
+	
+	void record(int stage, long start_nanos)
+	{
+		stage_nanos.addAndGet(stage, System.nanoTime() - start_nanos);
+		stage_counts.incrementAndGet(stage);
+	}
+	
+	void recordFailure()
+	{
+		failed.incrementAndGet();
+	}
+	
+	// called by the committing thread only
+	void submitted()
+	{
+		in_flight++;
+		peak_in_flight = Math.max(peak_in_flight, in_flight);
+	}
+	
+	void retired()
+	{
+		in_flight--;
+	}
+	
+	void setWallNanos(long nanos)
+	{
+		wall_nanos = nanos;
+	}
+	
+	public long count(int stage){
+		return stage_counts.get(stage);
+	}
+	
+	public long busyMillis(int stage){
+		return stage_nanos.get(stage) / 1000000;
+	}
+	
+	// images per second one worker achieves in the given stage
+	public double perWorkerThroughput(int stage){
+		long nanos = stage_nanos.get(stage);
+		return nanos == 0 ? 0 : stage_counts.get(stage) * 1e9 / nanos;
+	}
+	
+	// images committed per second of wall-clock time
+	public double throughput(){
+		return wall_nanos == 0 ? 0 : count(COMMIT) * 1e9 / wall_nanos;
+	}
+	
+	public long wallMillis(){
+		return wall_nanos / 1000000;
+	}
+	
+	public int failed(){
+		return failed.get();
+	}
+	
+	// the most images decoded/extracted but not yet committed at one time
+	public int peakInFlight(){
+		return peak_in_flight;
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "Ingested %d images in %d ms (%.1f images/s, %d failed, peak in flight %d)%n",
+				count(COMMIT), wallMillis(), throughput(), failed(), peak_in_flight));
+		for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+			sb.append(String.format(Locale.US, "  %-8s %6d images %8d ms busy %8.1f images/s per worker%n",
+					STAGE_NAMES[stage], count(stage), busyMillis(stage), perWorkerThroughput(stage)));
+		}
+		return sb.toString();
+	}
+}
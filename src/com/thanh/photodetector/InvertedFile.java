@@ -0,0 +1,266 @@
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+// TF-IDF weighted inverted file over the visual words of a VocabularyTree.
+// For every word it lists the training images containing it and the
+// weight of the word in each image; images are scored against a query by
+// the dot product of their L2-normalized TF-IDF vectors, touching only
+// the postings of the words that occur in the query.
+//
+// The words of every image are kept, so append() only quantizes the
+// added images; the weights and postings, which depend on all images,
+// are recomputed from the kept words.
+public class InvertedFile {
+	private final VocabularyTree vocabulary;
+	private int number_of_images;
+	// sorted words of every image; shared with the files appended to this one
+	private int[][] image_words;
+	private float[] idf;
+	// postings of word 'w' are [posting_start[w], posting_start[w+1])
+	private int[] posting_start;
+	private int[] posting_image;
+	private float[] posting_weight;
+
+	// scratch space for scoring a query, one per querying thread
+	private static class Scratch {
+		int[] query_words = new int[0];
+		float[] scores = new float[0];
+		int[] touched = new int[0];
+		int[] heap = new int[0];
+		final BitSet shortlist = new BitSet();
+	}
+	private final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+		@Override protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	public InvertedFile(VocabularyTree vocabulary)
+	{
+		this.vocabulary = vocabulary;
+	}
+
+	// Method that indexes the training images, given their descriptors
+	// in library order
+	public void build(List<Mat> library_descriptors)
+	{
+		image_words = new int[library_descriptors.size()][];
+		quantize(library_descriptors, 0);
+		index();
+	}
+
+	// Method that returns a new inverted file over the images of this one
+	// followed by 'added_descriptors', the descriptors of further images;
+	// this one is left as it is
+	public InvertedFile append(List<Mat> added_descriptors)
+	{
+		InvertedFile appended = new InvertedFile(vocabulary);
+		appended.image_words = Arrays.copyOf(image_words, number_of_images + added_descriptors.size());
+		appended.quantize(added_descriptors, number_of_images);
+		appended.index();
+		return appended;
+	}
+
+	// Method that quantizes every image of 'descriptors' to a sorted list
+	// of words, stored from image_words['first'] on
+	private void quantize(List<Mat> descriptors, int first)
+	{
+		for (int img = 0; img < descriptors.size(); img++) {
+			Mat d = descriptors.get(img);
+			long[] packed = BinaryDescriptors.pack(d);
+			int[] w = new int[d.rows()];
+			for (int i = 0; i < w.length; i++) {
+				w[i] = vocabulary.quantize(packed, i);
+			}
+			Arrays.sort(w);
+			image_words[first + img] = w;
+		}
+	}
+
+	// Method that computes the weights and postings of the words in image_words
+	private void index()
+	{
+		int words = vocabulary.numberOfWords();
+		number_of_images = image_words.length;
+		int[] document_frequency = new int[words];
+		for (int img = 0; img < number_of_images; img++) {
+			int[] w = image_words[img];
+			for (int i = 0; i < w.length; i++) {
+				if (i == 0 || w[i] != w[i - 1]) {
+					document_frequency[w[i]]++;
+				}
+			}
+		}
+
+		idf = new float[words];
+		posting_start = new int[words + 1];
+		for (int w = 0; w < words; w++) {
+			idf[w] = document_frequency[w] == 0 ? 0
+					: (float) Math.log((double) number_of_images / document_frequency[w]);
+			posting_start[w + 1] = posting_start[w] + document_frequency[w];
+		}
+		posting_image = new int[posting_start[words]];
+		posting_weight = new float[posting_start[words]];
+		int[] fill = Arrays.copyOf(posting_start, words);
+		for (int img = 0; img < number_of_images; img++) {
+			int[] w = image_words[img];
+			double norm = tfidfNorm(w);
+			for (int i = 0; i < w.length; ) {
+				int j = i;
+				while (j < w.length && w[j] == w[i]) {
+					j++;
+				}
+				int p = fill[w[i]]++;
+				posting_image[p] = img;
+				posting_weight[p] = (float) ((j - i) * idf[w[i]] / norm);
+				i = j;
+			}
+		}
+	}
+
+	// L2 norm of the (unnormalized) TF-IDF vector of a sorted word list
+	private double tfidfNorm(int[] sorted_words)
+	{
+		double sum = 0;
+		for (int i = 0; i < sorted_words.length; ) {
+			int j = i;
+			while (j < sorted_words.length && sorted_words[j] == sorted_words[i]) {
+				j++;
+			}
+			double weight = (j - i) * idf[sorted_words[i]];
+			sum += weight * weight;
+			i = j;
+		}
+		return sum == 0 ? 1 : Math.sqrt(sum);
+	}
+
+	public int numberOfImages(){
+		return number_of_images;
+	}
+
+	// Method that returns the (at most) 'k' training images scoring best
+	// against the query descriptors, among the images set in 'allowed'
+	// (all of them if null). The returned BitSet is reused by the next call
+	// from the same thread.
+	public BitSet shortlist(Mat query_descriptors, int k, BitSet allowed)
+	{
+		Scratch s = scratches.get();
+		if (s.scores.length != number_of_images) {
+			s.scores = new float[number_of_images];
+			s.touched = new int[number_of_images];
+		}
+		if (s.heap.length < k) {
+			s.heap = new int[k];
+		}
+		int rows = query_descriptors.rows();
+		long[] packed = BinaryDescriptors.packer().pack(query_descriptors);
+		if (s.query_words.length < rows) {
+			s.query_words = new int[rows];
+		}
+		int[] query_words = s.query_words;
+		float[] scores = s.scores;
+		int[] touched = s.touched;
+		int[] heap = s.heap;
+		for (int i = 0; i < rows; i++) {
+			query_words[i] = vocabulary.quantize(packed, i);
+		}
+		Arrays.sort(query_words, 0, rows);
+		double norm = 0;
+		for (int i = 0; i < rows; ) {
+			int j = i;
+			while (j < rows && query_words[j] == query_words[i]) {
+				j++;
+			}
+			double weight = (j - i) * idf[query_words[i]];
+			norm += weight * weight;
+			i = j;
+		}
+		norm = norm == 0 ? 1 : Math.sqrt(norm);
+
+		// accumulate scores of the images sharing words with the query
+		int number_touched = 0;
+		for (int i = 0; i < rows; ) {
+			int j = i;
+			while (j < rows && query_words[j] == query_words[i]) {
+				j++;
+			}
+			int w = query_words[i];
+			float q = (float) ((j - i) * idf[w] / norm);
+			if (q == 0) {
+				// a word every image has can't tell them apart
+				i = j;
+				continue;
+			}
+			for (int p = posting_start[w]; p < posting_start[w + 1]; p++) {
+				int img = posting_image[p];
+				if (allowed != null && !allowed.get(img)) {
+					continue;
+				}
+				if (scores[img] == 0) {
+					touched[number_touched++] = img;
+				}
+				scores[img] += q * posting_weight[p];
+			}
+			i = j;
+		}
+
+		// keep the k best in a min-heap, then reset the touched scores
+		int heap_size = 0;
+		for (int t = 0; t < number_touched; t++) {
+			int img = touched[t];
+			if (heap_size < k) {
+				heap[heap_size] = img;
+				siftUp(heap, scores, heap_size++);
+			} else if (scores[img] > scores[heap[0]]) {
+				heap[0] = img;
+				siftDown(heap, scores, 0, heap_size);
+			}
+		}
+		BitSet shortlist = s.shortlist;
+		shortlist.clear();
+		for (int i = 0; i < heap_size; i++) {
+			shortlist.set(heap[i]);
+		}
+		for (int t = 0; t < number_touched; t++) {
+			scores[touched[t]] = 0;
+		}
+		return shortlist;
+	}
+
+	private static void siftUp(int[] heap, float[] scores, int i)
+	{
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (scores[heap[parent]] <= scores[heap[i]]) {
+				return;
+			}
+			int tmp = heap[parent]; heap[parent] = heap[i]; heap[i] = tmp;
+			i = parent;
+		}
+	}
+
+	private static void siftDown(int[] heap, float[] scores, int i, int size)
+	{
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < size && scores[heap[left]] < scores[heap[smallest]]) {
+				smallest = left;
+			}
+			if (right < size && scores[heap[right]] < scores[heap[smallest]]) {
+				smallest = right;
+			}
+			if (smallest == i) {
+				return;
+			}
+			int tmp = heap[smallest]; heap[smallest] = heap[i]; heap[i] = tmp;
+			i = smallest;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.thanh.photodetector;
+
+import org.opencv.core.MatOfKeyPoint;
+
+// Picks at most 'n' key points of an image, strong ones spread over the
+// whole image rather than the 'n' strongest, which tend to crowd into the
+// most textured corner. The image is split into a grid of cells; every
+// cell keeps its strongest key points up to an even share of 'n', and
+// whatever share cells couldn't use goes to the strongest key points left
+// anywhere.
+//
+// Selection works on the key points' float fields directly, with a
+// quickselect per cell and one over the leftovers, so it is linear in the
+// number of key points instead of a sort of KeyPoint objects.
+public class KeyPointSelector {
+	// number of floats per key point in a MatOfKeyPoint (CV_32FC7), and
+	// the offsets of the ones used here
+	private static final int FIELDS = 7;
+	private static final int X = 0;
+	private static final int Y = 1;
+	private static final int RESPONSE = 4;
+
+	// cells along each side of the image
+	private static final int GRID = 4;
+
+	private KeyPointSelector(){}
+
+	// Method that returns a new MatOfKeyPoint with at most 'n' of the key
+	// points found in a 'width' x 'height' image, or 'key_points' itself
+	// if there are no more than 'n'
+	public static MatOfKeyPoint select(MatOfKeyPoint key_points, int n, int width, int height)
+	{
+		int total = (int) key_points.total();
+		if (total <= n) {
+			return key_points;
+		}
+		float[] fields = new float[total * FIELDS];
+		key_points.get(0, 0, fields);
+		float[] responses = new float[total];
+		for (int i = 0; i < total; i++) {
+			responses[i] = fields[i * FIELDS + RESPONSE];
+		}
+
+		// bucket the key points by cell, as a counting sort of indexes
+		int cells = GRID * GRID;
+		int[] cell_of = new int[total];
+		int[] cell_start = new int[cells + 1];
+		for (int i = 0; i < total; i++) {
+			int col = Math.min(GRID - 1, Math.max(0, (int) (fields[i * FIELDS + X] * GRID / width)));
+			int row = Math.min(GRID - 1, Math.max(0, (int) (fields[i * FIELDS + Y] * GRID / height)));
+			cell_of[i] = row * GRID + col;
+			cell_start[cell_of[i] + 1]++;
+		}
+		for (int c = 0; c < cells; c++) {
+			cell_start[c + 1] += cell_start[c];
+		}
+		int[] order = new int[total];
+		int[] next = cell_start.clone();
+		for (int i = 0; i < total; i++) {
+			order[next[cell_of[i]]++] = i;
+		}
+
+		// the strongest of every cell up to its share; the rest of each
+		// cell is moved behind the kept ones as leftovers
+		int share = n / cells;
+		int kept = 0;
+		int[] leftovers = new int[total];
+		int number_of_leftovers = 0;
+		for (int c = 0; c < cells; c++) {
+			int from = cell_start[c];
+			int to = cell_start[c + 1];
+			int k = Math.min(share, to - from);
+			selectStrongest(responses, order, from, to, k);
+			for (int i = from; i < from + k; i++) {
+				order[kept++] = order[i];
+			}
+			for (int i = from + k; i < to; i++) {
+				leftovers[number_of_leftovers++] = order[i];
+			}
+		}
+		// 'kept' never passes 'from', so the kept ones didn't overwrite any
+		// index still to be read
+		int fill = n - kept;
+		selectStrongest(responses, leftovers, 0, number_of_leftovers, fill);
+		System.arraycopy(leftovers, 0, order, kept, fill);
+
+		float[] selected = new float[n * FIELDS];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(fields, order[i] * FIELDS, selected, i * FIELDS, FIELDS);
+		}
+		MatOfKeyPoint result = new MatOfKeyPoint();
+		result.alloc(n);
+		result.put(0, 0, selected);
+		return result;
+	}
+
+	// Method that reorders indexes[from, to) so that the first 'k' of them
+	// are those of the 'k' largest responses, in no particular order
+	static void selectStrongest(float[] responses, int[] indexes, int from, int to, int k)
+	{
+		if (k <= 0 || k >= to - from) {
+			return;
+		}
+		int target = from + k;
+		int lo = from;
+		int hi = to - 1;
+		while (lo < hi) {
+			// median of three, to keep sorted input linear
+			int mid = (lo + hi) >>> 1;
+			float a = responses[indexes[lo]];
+			float b = responses[indexes[mid]];
+			float c = responses[indexes[hi]];
+			float pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+			// descending partition
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (responses[indexes[i]] > pivot) {
+					i++;
+				}
+				while (responses[indexes[j]] < pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int t = indexes[i];
+					indexes[i] = indexes[j];
+					indexes[j] = t;
+					i++;
+					j--;
+				}
+			}
+			// [lo, j] >= pivot >= [i, hi]; the boundary 'target' must fall
+			// on one side or between them
+			if (target <= j) {
+				hi = j;
+			} else if (target >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package com.thanh.photodetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import android.location.Location;
+
+// Binary on-disk index of a training library, so that key points and
+// descriptors don't have to be recomputed from the JPEGs at every startup.
+//
+// Layout (big-endian):
+//   int MAGIC, int VERSION, long config_hash, int number_of_images
+//   per image:
+//     UTF path, long tour_id,
+//     boolean has_location [, double latitude, double longitude]
+//     int number_of_key_points, float[7 * n] key points
+//     int rows, int cols, int type, byte[] descriptor data
+public class LibraryIndex {
+	public static final int MAGIC = 0x42524C49; // "BRLI"
+	public static final int VERSION = 1;
+
+	// number of floats per key point in a MatOfKeyPoint (CV_32FC7)
+	private static final int KEY_POINT_FIELDS = 7;
+	// fewest bytes an image takes: empty path, no location, no key points
+	// and empty descriptors
+	private static final int MIN_IMAGE_BYTES = 2 + 8 + 1 + 4 + 3 * 4;
+
+	// Stream that counts the bytes read, so the counts in an index can be
+	// checked against what is left of the file before anything is allocated
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	// Exception for counts that don't fit the rest of the index, which
+	// load treats like a truncated index
+	private static class InconsistentIndexException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	// Method that writes the given library to 'index_file'.
+	// The file is written to a temporary file first and then renamed,
+	// so a crash never leaves a half-written index behind.
+	public static void save(File index_file, long config_hash,
+			List<TrainingImage> library) throws IOException
+	{
+		File tmp = new File(index_file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(config_hash);
+			out.writeInt(library.size());
+			for (TrainingImage img : library) {
+				writeImage(out, img);
+			}
+		} finally {
+			out.close();
+		}
+		if (index_file.exists() && !index_file.delete()) {
+			throw new IOException("Can't replace " + index_file);
+		}
+		if (!tmp.renameTo(index_file)) {
+			throw new IOException("Can't rename " + tmp + " to " + index_file);
+		}
+	}
+
+	// Method that reads a library from 'index_file'. Returns null if the file
+	// doesn't exist, has another format version, was built with another
+	// detector configuration, or is truncated or otherwise inconsistent, in
+	// which case the caller should rebuild it.
+	// Every count is checked against the rest of the file before it is used
+	// to allocate anything, so a corrupt header can't exhaust the memory.
+	public static List<TrainingImage> load(File index_file, long config_hash)
+			throws IOException
+	{
+		if (!index_file.isFile()) {
+			return null;
+		}
+		long length = index_file.length();
+		CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(new FileInputStream(index_file), 1 << 16));
+		DataInputStream in = new DataInputStream(counter);
+		List<TrainingImage> library = new ArrayList<TrainingImage>();
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION
+					|| in.readLong() != config_hash) {
+				return null;
+			}
+			int n = in.readInt();
+			check(n >= 0 && (long) n * MIN_IMAGE_BYTES <= length - counter.count);
+			library = new ArrayList<TrainingImage>(n);
+			for (int i = 0; i < n; i++) {
+				library.add(readImage(in, length - counter.count));
+			}
+			return library;
+		} catch (EOFException e) {
+			// truncated index, treat as stale
+			releaseAll(library);
+			return null;
+		} catch (InconsistentIndexException e) {
+			releaseAll(library);
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeImage(DataOutputStream out, TrainingImage img)
+			throws IOException
+	{
+		out.writeUTF(img.pathID());
+		out.writeLong(img.tourID());
+		Location loc = img.location();
+		out.writeBoolean(loc != null);
+		if (loc != null) {
+			out.writeDouble(loc.getLatitude());
+			out.writeDouble(loc.getLongitude());
+		}
+
+		// key points
+		MatOfKeyPoint kp = img.keyPoints();
+		int n = (kp == null) ? 0 : (int) kp.total();
+		out.writeInt(n);
+		if (n > 0) {
+			float[] fields = new float[n * KEY_POINT_FIELDS];
+			kp.get(0, 0, fields);
+			ByteBuffer bb = ByteBuffer.allocate(fields.length * 4);
+			bb.asFloatBuffer().put(fields);
+			out.write(bb.array());
+		}
+
+		// descriptors
+		Mat d = img.descriptors();
+		if (d == null || d.empty()) {
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(CvType.CV_8UC1);
+			return;
+		}
+		out.writeInt(d.rows());
+		out.writeInt(d.cols());
+		out.writeInt(d.type());
+		if (d.type() == CvType.CV_32FC1) {
+			float[] data = new float[d.rows() * d.cols()];
+			d.get(0, 0, data);
+			ByteBuffer bb = ByteBuffer.allocate(data.length * 4);
+			bb.asFloatBuffer().put(data);
+			out.write(bb.array());
+		} else {
+			byte[] data = new byte[(int) (d.total() * d.elemSize())];
+			d.get(0, 0, data);
+			out.write(data);
+		}
+	}
+
+	private static void check(boolean consistent) throws InconsistentIndexException
+	{
+		if (!consistent) {
+			throw new InconsistentIndexException();
+		}
+	}
+
+	// Method that frees the Mats of the images read before 'load' gave up
+	private static void releaseAll(List<TrainingImage> library)
+	{
+		for (TrainingImage img : library) {
+			img.releaseKeyPoints();
+			img.descriptors().release();
+		}
+	}
+
+	// Method that reads the next image; 'remaining' is the number of bytes
+	// left in the file, which it must not claim more of
+	private static TrainingImage readImage(DataInputStream in, long remaining)
+			throws IOException
+	{
+		TrainingImage img = new TrainingImage();
+		img.setPathID(in.readUTF());
+		img.setTourID(in.readLong());
+		if (in.readBoolean()) {
+			Location loc = new Location(" ");
+			loc.setLatitude(in.readDouble());
+			loc.setLongitude(in.readDouble());
+			img.setLocation(loc);
+		}
+
+		// key points
+		int n = in.readInt();
+		long key_point_bytes = (long) n * KEY_POINT_FIELDS * 4;
+		check(n >= 0 && key_point_bytes <= remaining && key_point_bytes <= Integer.MAX_VALUE);
+		MatOfKeyPoint kp = new MatOfKeyPoint();
+		if (n > 0) {
+			byte[] raw = new byte[(int) key_point_bytes];
+			in.readFully(raw);
+			float[] fields = new float[n * KEY_POINT_FIELDS];
+			ByteBuffer.wrap(raw).asFloatBuffer().get(fields);
+			kp.alloc(n);
+			kp.put(0, 0, fields);
+		}
+		img.setKeyPoints(kp);
+
+		// descriptors
+		int rows = in.readInt();
+		int cols = in.readInt();
+		int type = in.readInt();
+		check(rows >= 0 && cols >= 0 && type >= 0 && CvType.channels(type) <= 4
+				&& CvType.depth(type) <= CvType.CV_64F);
+		long descriptor_bytes = (long) rows * cols * CvType.ELEM_SIZE(type);
+		check(descriptor_bytes <= remaining - key_point_bytes
+				&& descriptor_bytes <= Integer.MAX_VALUE);
+		Mat d = new Mat(rows, cols, type);
+		if (descriptor_bytes > 0) {
+			if (type == CvType.CV_32FC1) {
+				byte[] raw = new byte[(int) descriptor_bytes];
+				in.readFully(raw);
+				float[] data = new float[rows * cols];
+				ByteBuffer.wrap(raw).asFloatBuffer().get(data);
+				d.put(0, 0, data);
+			} else {
+				byte[] data = new byte[(int) descriptor_bytes];
+				in.readFully(data);
+				d.put(0, 0, data);
+			}
+		}
+		img.setDescriptors(d);
+		return img;
+	}
+}
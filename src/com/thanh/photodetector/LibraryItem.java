@@ -0,0 +1,22 @@
+package com.thanh.photodetector;
+
+// A training image waiting to be added to the library:
+// the path of the photo and the tour item it shows
+public class LibraryItem {
+	private final String path;
+	private final long tour_id;
+	
+	public LibraryItem(String image_path, long tour_item_id)
+	{
+		path = image_path;
+		tour_id = tour_item_id;
+	}
+	
+	public String path(){
+		return path;
+	}
+	
+	public long tourID(){
+		return tour_id;
+	}
+}
@@ -0,0 +1,56 @@
+package com.thanh.photodetector;
+
+import java.util.BitSet;
+
+import org.opencv.core.Mat;
+
+// Matches query descriptors against the descriptors of every training
+// image in the library. Images are numbered in the order they are added,
+// which is the imgIdx of the returned matches.
+// Once trained, a matcher may be matched against from several threads at
+// once; adding, clearing and training must not overlap any other call.
+public interface LibraryMatcher {
+	
+	// returns a new, empty matcher with the same parameters; every 
+	// generation of a library is matched by its own matcher
+	LibraryMatcher emptyCopy();
+	
+	// adds the descriptors of the next training image
+	void add(Mat descriptors);
+	
+	// adds the next training image; matchers that only need its 
+	// descriptors forward them to add(Mat), while e.g. a ShardedMatcher
+	// picks a shard by the image itself
+	void add(TrainingImage img);
+	
+	// returns a matcher holding the same training images as this one, to
+	// which further images can be added while this one stays as it is;
+	// only the added images cost anything to add and train. Returns null
+	// if the matcher can only be filled from scratch.
+	LibraryMatcher appendableCopy();
+	
+	// makes matches carry the distance to the second nearest training
+	// descriptor, which the ratio test needs, from now on and in every
+	// copy; returns false if the matcher can't report it
+	boolean enableSecondDistance();
+	
+	// removes every training image
+	void clear();
+	
+	// frees whatever the matcher holds outside the Java heap, such as its
+	// descriptors on a ShardServer; LibrarySnapshot calls it once no
+	// generation uses the matcher anymore. It can't be used afterwards.
+	void release();
+	
+	// builds the search structure; called once after the library is loaded
+	// and again whenever images were added since the last call
+	void train();
+	
+	// replaces the content of 'matches' with at most one nearest 
+	// training descriptor per query descriptor
+	void match(Mat query_descriptors, MatchBuffer matches);
+	
+	// same as match, but only considers the training images whose bit is 
+	// set in 'images' (all of them if 'images' is null)
+	void match(Mat query_descriptors, MatchBuffer matches, BitSet images);
+}
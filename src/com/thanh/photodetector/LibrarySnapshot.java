@@ -0,0 +1,418 @@
+package com.thanh.photodetector;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+
+import android.util.Log;
+
+// One generation of an ImageDetector's training library: the training
+// images, numbered in matcher order, together with the matcher trained on
+// them and every index derived from them. A snapshot never changes once it
+// is published, so a query keeps using the one it started with while a
+// writer prepares the next generation with a Builder.
+//
+// Building a generation never re-extracts anything: the images carry
+// their descriptors, so removing or replacing an image only re-adds the
+// descriptors of the others to a fresh matcher and re-derives the indexes.
+// A generation that only appends images to its base starts from a copy
+// of the base's matcher and indexes instead, see Builder.build.
+//
+// A snapshot is counted as used while it is the current generation and
+// while queries run against it. Once neither is the case, the matcher is
+// released, unless a later generation still uses the same one; so are the
+// matchers a RemoteMatcher holds on its ShardServer.
+public final class LibrarySnapshot {
+	// tag of Error messages printed to LogCat
+	protected static final String ERROR = "Error in LibrarySnapshot";
+	
+	private final long generation;
+	private final List<TrainingImage> images;
+	// trained on 'images'; null once their descriptors were moved to descriptor_store
+	private final LibraryMatcher matcher;
+	// counts the generations using 'matcher'; null with a descriptor store
+	private final SharedMatcher shared_matcher;
+	// 1 while this is the current generation, plus 1 per query running on it
+	private final AtomicInteger references = new AtomicInteger(1);
+	private final DescriptorStore descriptor_store;
+	// vocabulary and inverted file over 'images', both null unless a vocabulary is set
+	private final VocabularyTree vocabulary;
+	private final InvertedFile inverted_file;
+	private final SpatialIndex spatial_index;
+	private final int number_of_descriptors;
+
+	// A matcher and the number of generations using it; generations whose
+	// images didn't change share their base's
+	private static final class SharedMatcher {
+		final LibraryMatcher matcher;
+		final AtomicInteger generations;
+
+		SharedMatcher(LibraryMatcher matcher, int generations)
+		{
+			this.matcher = matcher;
+			this.generations = new AtomicInteger(generations);
+		}
+	}
+
+	private LibrarySnapshot(long generation, List<TrainingImage> images, SharedMatcher shared_matcher,
+			DescriptorStore descriptor_store, VocabularyTree vocabulary, InvertedFile inverted_file,
+			SpatialIndex spatial_index)
+	{
+		this.generation = generation;
+		this.images = Collections.unmodifiableList(images);
+		this.shared_matcher = shared_matcher;
+		matcher = shared_matcher != null ? shared_matcher.matcher : null;
+		if (shared_matcher != null) {
+			shared_matcher.generations.incrementAndGet();
+		}
+		this.descriptor_store = descriptor_store;
+		this.vocabulary = vocabulary;
+		this.inverted_file = inverted_file;
+		this.spatial_index = spatial_index;
+		int total = 0;
+		for (TrainingImage img: images) {
+			total += img.numberOfDescriptors();
+		}
+		number_of_descriptors = total;
+	}
+
+	// Method that returns generation 0 of a library: no images, matched
+	// with 'matcher', which must be empty. The caller keeps owning
+	// 'matcher', so it is never released.
+	static LibrarySnapshot empty(LibraryMatcher matcher, double cell_meters)
+	{
+		List<TrainingImage> images = new ArrayList<TrainingImage>();
+		return new LibrarySnapshot(0, images, new SharedMatcher(matcher, 1), null, null, null,
+				new SpatialIndex(images, cell_meters));
+	}
+
+	// Method that counts one more query running on this snapshot. Returns
+	// false if it was already retired and every query on it finished;
+	// its matcher may be gone then, so the caller must read the current
+	// generation again.
+	boolean retain()
+	{
+		while (true) {
+			int n = references.get();
+			if (n == 0) {
+				return false;
+			}
+			if (references.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	// Method that ends a query counted by retain(), or, called once by the
+	// writer that replaced this snapshot, retires it. The last of them
+	// releases the matcher if no other generation uses it. Releasing is
+	// best effort: it runs at the end of queries and publishing, so a 
+	// matcher failing to release, e.g. a RemoteMatcher whose shard is 
+	// gone, is only logged.
+	void release()
+	{
+		if (references.decrementAndGet() == 0 && shared_matcher != null
+				&& shared_matcher.generations.decrementAndGet() == 0) {
+			try {
+				shared_matcher.matcher.release();
+			} catch (RuntimeException e) {
+				Log.e(ERROR, "Failed to release the matcher of generation "+generation+": "+e);
+			}
+		}
+	}
+
+	// Method that starts the next generation from the images of this one
+	Builder edit()
+	{
+		return new Builder(this);
+	}
+
+	// number of snapshots published before this one
+	public long generation(){
+		return generation;
+	}
+
+	public int size(){
+		return images.size();
+	}
+
+	// the training image matches refer to by imgIdx 'img_idx'
+	public TrainingImage image(int img_idx){
+		return images.get(img_idx);
+	}
+
+	// all training images, in matcher order; read-only
+	public List<TrainingImage> images(){
+		return images;
+	}
+
+	public int numberOfDescriptors(){
+		return number_of_descriptors;
+	}
+
+	public DescriptorStore descriptorStore(){
+		return descriptor_store;
+	}
+
+	public VocabularyTree vocabulary(){
+		return vocabulary;
+	}
+
+	// the inverted file over this generation, or null without a vocabulary
+	public InvertedFile invertedFile(){
+		return inverted_file;
+	}
+
+	public SpatialIndex spatialIndex(){
+		return spatial_index;
+	}
+
+	// Method that matches query descriptors against the training images
+	// whose bit is set in 'images' (all of them if 'images' is null)
+	public void match(Mat query_descriptors, MatchBuffer matches, BitSet images)
+	{
+		if (descriptor_store != null) {
+			descriptor_store.match(query_descriptors, matches, images);
+		} else {
+			matcher.match(query_descriptors, matches, images);
+		}
+	}
+
+	// Method that makes matches carry their second nearest distance; the
+	// descriptor store always reports it. Returns false if the matcher
+	// can't report it.
+	boolean enableSecondDistance()
+	{
+		return descriptor_store != null || matcher.enableSecondDistance();
+	}
+
+	// Method that returns the descriptors of every training image,
+	// copying them out of the descriptor store if they were moved there
+	public List<Mat> descriptors()
+	{
+		return descriptors(images, descriptor_store);
+	}
+
+	private static List<Mat> descriptors(List<TrainingImage> images, DescriptorStore descriptor_store)
+	{
+		List<Mat> descriptors = new ArrayList<Mat>(images.size());
+		for (int i = 0; i < images.size(); i++) {
+			Mat d = images.get(i).descriptors();
+			if (d == null && descriptor_store != null) {
+				d = descriptor_store.descriptors(i);
+			}
+			descriptors.add(d);
+		}
+		return descriptors;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LibrarySnapshot(generation=" + generation + ", images=" + images.size()
+				+ ", descriptors=" + number_of_descriptors
+				+ (descriptor_store != null ? ", store=" + descriptor_store.file() : "")
+				+ (vocabulary != null ? ", words=" + vocabulary.numberOfWords() : "") + ")";
+	}
+
+	// The next generation of a library while it is being prepared. Only the
+	// thread that created it may use it; nothing is visible to queries
+	// until ImageDetector publishes the result of build().
+	static final class Builder {
+		private final LibrarySnapshot base;
+		private final ArrayList<TrainingImage> images;
+		private DescriptorStore descriptor_store;
+		private VocabularyTree vocabulary;
+		// whether 'images' differ from base.images
+		private boolean images_changed = false;
+		// whether 'images' start with all of base.images, in order
+		private boolean appended_only = true;
+
+		private Builder(LibrarySnapshot base)
+		{
+			this.base = base;
+			images = new ArrayList<TrainingImage>(base.images);
+			descriptor_store = base.descriptor_store;
+			vocabulary = base.vocabulary;
+		}
+
+		// Method that appends a training image whose descriptors are computed
+		Builder add(TrainingImage img)
+		{
+			checkNotFrozen();
+			images.add(img);
+			images_changed = true;
+			return this;
+		}
+
+		Builder addAll(Collection<TrainingImage> imgs)
+		{
+			for (TrainingImage img: imgs) {
+				add(img);
+			}
+			return this;
+		}
+
+		// Method that removes every image of tour item 'tour_id' and
+		// returns how many there were
+		int removeTour(long tour_id)
+		{
+			checkNotFrozen();
+			int removed = 0;
+			for (Iterator<TrainingImage> it = images.iterator(); it.hasNext();) {
+				if (it.next().tourID() == tour_id) {
+					it.remove();
+					removed++;
+				}
+			}
+			if (removed > 0) {
+				images_changed = true;
+				appended_only = false;
+			}
+			return removed;
+		}
+
+		// Method that puts 'img' in place of the image with the same path,
+		// keeping its position, or appends it if there is none. Returns
+		// whether an image was replaced.
+		boolean replace(TrainingImage img)
+		{
+			checkNotFrozen();
+			images_changed = true;
+			for (int i = 0; i < images.size(); i++) {
+				if (images.get(i).pathID().equals(img.pathID())) {
+					images.set(i, img);
+					appended_only = false;
+					return true;
+				}
+			}
+			images.add(img);
+			return false;
+		}
+
+		// Method that removes every image, including a descriptor store
+		Builder clear()
+		{
+			images.clear();
+			descriptor_store = null;
+			images_changed = true;
+			appended_only = false;
+			return this;
+		}
+
+		// Method that matches the images against 'store' instead of a
+		// LibraryMatcher; 'store' must hold their descriptors in order.
+		// The images of the new generation are copies without their 
+		// descriptor Mats; older generations keep theirs.
+		Builder descriptorStore(DescriptorStore store)
+		{
+			descriptor_store = store;
+			for (int i = 0; i < images.size(); i++) {
+				images.set(i, images.get(i).withoutDescriptors());
+			}
+			return this;
+		}
+
+		// Method that drops the pixels of every image from the new 
+		// generation on; its images are copies without them, so older 
+		// generations and results still draw theirs. Returns whether any
+		// image had pixels.
+		boolean dropImages()
+		{
+			boolean dropped = false;
+			for (int i = 0; i < images.size(); i++) {
+				if (images.get(i).image() != null) {
+					images.set(i, images.get(i).withoutImage());
+					dropped = true;
+				}
+			}
+			return dropped;
+		}
+
+		Builder vocabulary(VocabularyTree tree)
+		{
+			vocabulary = tree;
+			return this;
+		}
+
+		List<TrainingImage> images(){
+			return images;
+		}
+
+		private void checkNotFrozen()
+		{
+			if (descriptor_store != null) {
+				throw new IllegalStateException("Library is frozen in descriptor store "
+						+ descriptor_store.file() + "; clear it before changing images");
+			}
+		}
+
+		// Method that trains the matcher and builds the indexes of the new
+		// generation. 'prototype' gives the matcher type; whatever didn't
+		// change since the base generation is shared with it instead.
+		//
+		// If images were only appended, the matcher is an appendableCopy of
+		// the base's and only the added images are packed into it; the
+		// inverted file only quantizes those and the spatial index only
+		// sorts those. What remains proportional to the whole library is
+		// copying the image list, the inverted file's postings and merging
+		// the spatial index, all plain array copies. A LshMatcher still
+		// re-buckets every descriptor, and an OpenCvMatcher using FLANN
+		// retrains its index. Removing or replacing images rebuilds all.
+		LibrarySnapshot build(LibraryMatcher prototype, double cell_meters)
+		{
+			// images from this one on are new; 0 if nothing can be reused
+			int appended_from = appended_only && descriptor_store == null
+					&& base.descriptor_store == null ? base.images.size() : 0;
+			SharedMatcher matcher = null;
+			if (descriptor_store == null) {
+				if (!images_changed && base.shared_matcher != null) {
+					// trained matchers are only read, so generations can share one
+					matcher = base.shared_matcher;
+				} else {
+					int first = appended_from;
+					LibraryMatcher fresh = first > 0 ? base.matcher.appendableCopy() : null;
+					if (fresh == null) {
+						fresh = prototype.emptyCopy();
+						first = 0;
+					}
+					for (int i = first; i < images.size(); i++) {
+						fresh.add(images.get(i));
+					}
+					fresh.train();
+					matcher = new SharedMatcher(fresh, 0);
+				}
+			}
+			List<TrainingImage> frozen = new ArrayList<TrainingImage>(images);
+			InvertedFile inverted_file = null;
+			if (vocabulary != null) {
+				if (!images_changed && vocabulary == base.vocabulary && base.inverted_file != null) {
+					inverted_file = base.inverted_file;
+				} else if (appended_from > 0 && vocabulary == base.vocabulary 
+						&& base.inverted_file != null) {
+					inverted_file = base.inverted_file.append(
+							descriptors(frozen.subList(appended_from, frozen.size()), null));
+				} else {
+					inverted_file = new InvertedFile(vocabulary);
+					inverted_file.build(descriptors(frozen, descriptor_store));
+				}
+			}
+			SpatialIndex spatial_index;
+			if (!images_changed && base.spatial_index != null) {
+				spatial_index = base.spatial_index;
+			} else if (appended_from > 0 && base.spatial_index != null) {
+				spatial_index = base.spatial_index.append(frozen);
+			} else {
+				spatial_index = new SpatialIndex(frozen, cell_meters);
+			}
+			return new LibrarySnapshot(base.generation + 1, frozen, matcher, descriptor_store,
+					vocabulary, inverted_file, spatial_index);
+		}
+	}
+}
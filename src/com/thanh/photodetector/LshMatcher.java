@@ -0,0 +1,321 @@
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+
+// Approximate nearest-neighbour LibraryMatcher for binary (ORB) descriptors,
+// using multi-probe locality-sensitive hashing.
+//
+// Every table hashes a descriptor to a key made of 'key_bits' randomly
+// chosen bits of it. A query looks up its own bucket in every table, plus
+// the buckets whose keys differ in up to 'probe_radius' bits, and computes
+// the exact Hamming distance only to the descriptors found there.
+// More tables, fewer key bits and a larger probe radius raise recall;
+// the opposite makes queries faster. The second nearest distance reported
+// for the ratio test is that of the second nearest descriptor probed.
+//
+// An appendableCopy shares the packed descriptors with this matcher, the
+// way a HammingMatcher copy does, but train() still re-buckets all of
+// them. Matching doesn't train: descriptors added since the last train()
+// make match throw an IllegalStateException, so concurrent queries only
+// ever read the tables.
+public class LshMatcher implements LibraryMatcher {
+	private final int number_of_tables;
+	private final int key_bits;
+	private final int probe_radius;
+	private final long seed;
+	// the descriptor bits that make up the key of each table
+	private final int[][] key_bit_positions;
+
+	// all training descriptors, packed, and where each one came from
+	private long[] descriptors = new long[0];
+	private int[] image_of = new int[0];
+	private int[] row_of = new int[0];
+	private int size = 0;
+	private int number_of_images = 0;
+	// number of descriptors written to the current arrays by this matcher
+	// and its copies; a matcher that has fewer can't append to them in place
+	private AtomicInteger descriptors_written = new AtomicInteger();
+
+	// hash tables in compressed form: the descriptors of bucket 'k' of
+	// table 't' are bucket_entries[t][bucket_start[t][k] .. bucket_start[t][k+1])
+	private int[][] bucket_start;
+	private int[][] bucket_entries;
+	// whether the tables hold every descriptor added; an empty matcher
+	// has nothing to bucket
+	private boolean trained = true;
+
+	// state of the query descriptor being matched, one per querying thread
+	private static class Probe {
+		// marks descriptors already compared with the current query descriptor
+		int[] visited = new int[0];
+		int stamp = 0;
+		// best candidate found so far
+		int best_distance;
+		int second_distance;
+		int best_entry;
+		// images the current query may match, or null for all
+		BitSet allowed_images;
+	}
+	private final ThreadLocal<Probe> probes = new ThreadLocal<Probe>() {
+		@Override protected Probe initialValue() {
+			return new Probe();
+		}
+	};
+
+	public LshMatcher()
+	{
+		this(8, 16, 1);
+	}
+
+	public LshMatcher(int number_of_tables, int key_bits, int probe_radius)
+	{
+		this(number_of_tables, key_bits, probe_radius, 42);
+	}
+
+	public LshMatcher(int number_of_tables, int key_bits, int probe_radius, long seed)
+	{
+		if (key_bits < 1 || key_bits > 24) {
+			throw new IllegalArgumentException("key_bits must be in [1, 24], got "+key_bits);
+		}
+		if (probe_radius < 0 || probe_radius > 2) {
+			throw new IllegalArgumentException("probe_radius must be 0, 1 or 2, got "+probe_radius);
+		}
+		this.number_of_tables = number_of_tables;
+		this.key_bits = key_bits;
+		this.probe_radius = probe_radius;
+		this.seed = seed;
+
+		// pick distinct random bits for every table
+		Random random = new Random(seed);
+		int[] bits = new int[BinaryDescriptors.BITS_PER_DESCRIPTOR];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = i;
+		}
+		key_bit_positions = new int[number_of_tables][key_bits];
+		for (int t = 0; t < number_of_tables; t++) {
+			for (int i = 0; i < key_bits; i++) {
+				int j = i + random.nextInt(bits.length - i);
+				int tmp = bits[i]; bits[i] = bits[j]; bits[j] = tmp;
+				key_bit_positions[t][i] = bits[i];
+			}
+		}
+	}
+
+	@Override
+	public LibraryMatcher emptyCopy()
+	{
+		return new LshMatcher(number_of_tables, key_bits, probe_radius, seed);
+	}
+
+	@Override
+	public LibraryMatcher appendableCopy()
+	{
+		LshMatcher copy = new LshMatcher(number_of_tables, key_bits, probe_radius, seed);
+		copy.descriptors = descriptors;
+		copy.image_of = image_of;
+		copy.row_of = row_of;
+		copy.size = size;
+		copy.number_of_images = number_of_images;
+		copy.descriptors_written = descriptors_written;
+		copy.bucket_start = bucket_start;
+		copy.bucket_entries = bucket_entries;
+		copy.trained = trained;
+		return copy;
+	}
+
+	@Override
+	public void add(Mat training_descriptors)
+	{
+		long[] packed = BinaryDescriptors.pack(training_descriptors);
+		int rows = training_descriptors.rows();
+		if (size + rows > image_of.length 
+				|| !descriptors_written.compareAndSet(size, size + rows)) {
+			// full, or another copy appended to the arrays already
+			int capacity = Math.max(size + rows, 2 * size);
+			descriptors = Arrays.copyOf(descriptors, capacity * BinaryDescriptors.LONGS_PER_DESCRIPTOR);
+			image_of = Arrays.copyOf(image_of, capacity);
+			row_of = Arrays.copyOf(row_of, capacity);
+			descriptors_written = new AtomicInteger(size + rows);
+		}
+		System.arraycopy(packed, 0, descriptors, size * BinaryDescriptors.LONGS_PER_DESCRIPTOR, packed.length);
+		for (int r = 0; r < rows; r++) {
+			image_of[size + r] = number_of_images;
+			row_of[size + r] = r;
+		}
+		size += rows;
+		number_of_images++;
+		trained = false;
+	}
+
+	@Override
+	public void add(TrainingImage img)
+	{
+		add(img.descriptors());
+	}
+
+	// always reported
+	@Override
+	public boolean enableSecondDistance()
+	{
+		return true;
+	}
+
+	@Override
+	public void release()
+	{
+		// everything is on the Java heap
+	}
+
+	@Override
+	public void clear()
+	{
+		descriptors = new long[0];
+		image_of = new int[0];
+		row_of = new int[0];
+		size = 0;
+		number_of_images = 0;
+		descriptors_written = new AtomicInteger();
+		bucket_start = null;
+		bucket_entries = null;
+		trained = true;
+	}
+
+	@Override
+	public void train()
+	{
+		int number_of_buckets = 1 << key_bits;
+		bucket_start = new int[number_of_tables][];
+		bucket_entries = new int[number_of_tables][];
+		int[] keys = new int[size];
+		for (int t = 0; t < number_of_tables; t++) {
+			// counting sort of the descriptors by key
+			int[] start = new int[number_of_buckets + 1];
+			for (int i = 0; i < size; i++) {
+				keys[i] = key(descriptors, i, t);
+				start[keys[i] + 1]++;
+			}
+			for (int k = 0; k < number_of_buckets; k++) {
+				start[k + 1] += start[k];
+			}
+			int[] fill = Arrays.copyOf(start, number_of_buckets);
+			int[] entries = new int[size];
+			for (int i = 0; i < size; i++) {
+				entries[fill[keys[i]]++] = i;
+			}
+			bucket_start[t] = start;
+			bucket_entries[t] = entries;
+		}
+		trained = true;
+	}
+
+	@Override
+	public void match(Mat query_descriptors, MatchBuffer matches)
+	{
+		match(query_descriptors, matches, null);
+	}
+
+	@Override
+	public void match(Mat query_descriptors, MatchBuffer matches, BitSet images)
+	{
+		if (!trained) {
+			throw new IllegalStateException("LshMatcher has descriptors added since it was last trained");
+		}
+		matches.clear();
+		if (size == 0) {
+			return;
+		}
+		Probe p = probes.get();
+		if (p.visited.length != size) {
+			p.visited = new int[size];
+			p.stamp = 0;
+		}
+		p.allowed_images = images;
+		long[] query = BinaryDescriptors.packer().pack(query_descriptors);
+		int rows = query_descriptors.rows();
+		matches.ensureCapacity(rows);
+		for (int q = 0; q < rows; q++) {
+			nextStamp(p);
+			p.best_distance = Integer.MAX_VALUE;
+			p.second_distance = Integer.MAX_VALUE;
+			p.best_entry = -1;
+			for (int t = 0; t < number_of_tables; t++) {
+				int key = key(query, q, t);
+				probe(p, query, q, t, key);
+				if (probe_radius >= 1) {
+					for (int a = 0; a < key_bits; a++) {
+						int key_a = key ^ (1 << a);
+						probe(p, query, q, t, key_a);
+						if (probe_radius >= 2) {
+							for (int b = a + 1; b < key_bits; b++) {
+								probe(p, query, q, t, key_a ^ (1 << b));
+							}
+						}
+					}
+				}
+			}
+			if (p.best_entry >= 0) {
+				matches.add(q, row_of[p.best_entry], image_of[p.best_entry], p.best_distance,
+						p.second_distance == Integer.MAX_VALUE 
+						? Float.POSITIVE_INFINITY : p.second_distance);
+			}
+		}
+		p.allowed_images = null;
+	}
+
+	// Method that compares query descriptor 'q' with every not yet
+	// visited descriptor of bucket 'key' in table 't'
+	private void probe(Probe p, long[] query, int q, int t, int key)
+	{
+		int[] entries = bucket_entries[t];
+		int[] visited = p.visited;
+		int end = bucket_start[t][key + 1];
+		for (int i = bucket_start[t][key]; i < end; i++) {
+			int e = entries[i];
+			if (visited[e] == p.stamp) {
+				continue;
+			}
+			visited[e] = p.stamp;
+			if (p.allowed_images != null && !p.allowed_images.get(image_of[e])) {
+				continue;
+			}
+			int distance = BinaryDescriptors.distance(query, q, descriptors, e);
+			if (distance < p.best_distance) {
+				p.second_distance = p.best_distance;
+				p.best_distance = distance;
+				p.best_entry = e;
+			} else if (distance < p.second_distance) {
+				p.second_distance = distance;
+			}
+		}
+	}
+
+	private static void nextStamp(Probe p)
+	{
+		if (++p.stamp == Integer.MAX_VALUE) {
+			Arrays.fill(p.visited, 0);
+			p.stamp = 1;
+		}
+	}
+
+	private int key(long[] d, int i, int t)
+	{
+		int[] positions = key_bit_positions[t];
+		int key = 0;
+		for (int k = 0; k < key_bits; k++) {
+			key |= BinaryDescriptors.bit(d, i, positions[k]) << k;
+		}
+		return key;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LSH(tables=" + number_of_tables + ", key_bits=" + key_bits
+				+ ", probe_radius=" + probe_radius + ")";
+	}
+}
@@ -5,8 +5,10 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.CameraBridgeViewBase;
@@ -49,7 +51,7 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
     
     // Whether an asynchronous menu action is in progress.
  	// If so, menu interaction should be disabled.
- 	private boolean mIsMenuLocked;
+ 	private volatile boolean mIsMenuLocked;
  	
  	// Whether the next camera frame should be saved as a photo.   
  	private boolean mIsTakingPhoto;  
@@ -60,6 +62,13 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
  	// Whether the library of training images is being loaded
  	private boolean mIsLoadingLib;
  	
+ 	// Runs detections of camera frames off the camera thread, 
+ 	// once a library has been loaded
+ 	private volatile DetectionExecutor mDetectionExecutor;
+ 	
+ 	// Recognizes the preview continuously while live recognition is on
+ 	private volatile ContinuousRecognizer mContinuousRecognizer;
+ 	
  	// A camera object that allows the app to access the device's camera
     private CameraBridgeViewBase mOpenCvCameraView;    
     
@@ -123,8 +132,12 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
         	mIsObjectDetecting =true;
         	return true;
         case R.id.menu_load_library:
+        	mIsMenuLocked= true;
         	mIsLoadingLib= true;
         	return true;
+        case R.id.menu_live_recognition:
+        	toggleLiveRecognition(item);
+        	return true;
         default:
         	return super.onOptionsItemSelected(item);
         }
@@ -133,21 +146,122 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
     public Mat onCameraFrame(CvCameraViewFrame inputFrame) {
     	Mat rgba= inputFrame.rgba();
     	
+    	ContinuousRecognizer recognizer = mContinuousRecognizer;
+    	if(recognizer != null){
+    		recognizer.onFrame(rgba, null);
+    	}
+    	
     	if(mIsTakingPhoto){
     		mIsTakingPhoto= false;
     		mIsMenuLocked = false; 
     	}    	
+    	// detection runs on other threads, so the preview never waits for it
     	if(mIsObjectDetecting){
     		mIsObjectDetecting=false;
-    		runExperiment();
-    		mIsMenuLocked = false; 
+    		if(mDetectionExecutor != null){
+    			mDetectionExecutor.submitFrame(rgba, null, mFrameCallback);
+    			mIsMenuLocked = false;
+    		}else{
+    			// no library loaded, run the experiment instead
+    			new Thread(new Runnable() {
+    				@Override public void run() {
+    					runExperiment();
+    					mIsMenuLocked = false;
+    				}
+    			}, "runExperiment").start();
+    		}
     	}
     	if(mIsLoadingLib){
     		mIsLoadingLib=false;
-    		mIsMenuLocked = false; 
+    		new Thread(new Runnable() {
+    			@Override public void run() {
+    				loadLibrary();
+    				mIsMenuLocked = false;
+    			}
+    		}, "loadLibrary").start();
     	}
     	return rgba;
     }
+    
+    // Method that loads the library index saved by runExperiment and 
+    // starts detecting camera frames against it
+    private void loadLibrary()
+    {
+    	String indexPath = Environment.getExternalStoragePublicDirectory
+    			(Environment.DIRECTORY_PICTURES)+ "/Research/database/library_FAST.idx";
+    	ImageDetector detector = new ImageDetector(	
+				FeatureDetector.FAST,
+				DescriptorExtractor.ORB,
+				DescriptorMatcher.BRUTEFORCE_HAMMINGLUT);
+    	if(!detector.loadLibrary(indexPath)){
+    		showMessage("No library found at "+indexPath);
+    		return;
+    	}
+    	DetectionExecutor old = mDetectionExecutor;
+    	mDetectionExecutor = new DetectionExecutor(detector);
+    	if(old != null){
+    		// live recognition was bound to the old library
+    		ContinuousRecognizer recognizer = mContinuousRecognizer;
+    		if(recognizer != null){
+    			recognizer.stop();
+    			mContinuousRecognizer = null;
+    			showMessage("Live recognition stopped");
+    		}
+    		old.shutdown();
+    	}
+    	showMessage("Loaded library of "+detector.librarySize()+" images");
+    }
+    
+    // Method that starts or stops recognizing the preview continuously
+    private void toggleLiveRecognition(MenuItem item)
+    {
+    	if(mContinuousRecognizer != null){
+    		mContinuousRecognizer.stop();
+    		mContinuousRecognizer = null;
+    		item.setTitle(R.string.menu_live_recognition);
+    		return;
+    	}
+    	if(mDetectionExecutor == null){
+    		showMessage("Load a library first");
+    		return;
+    	}
+    	mContinuousRecognizer = new ContinuousRecognizer(mDetectionExecutor, 
+    			new ContinuousRecognizer.Listener() {
+    		@Override public void onRecognized(TrainingImage image, int votes, int window) {
+    			showMessage("Recognized: "+image.name());
+    		}
+    		@Override public void onLost() {
+    			Log.i(TAG, "Lost recognized building");
+    		}
+    	});
+    	item.setTitle(R.string.menu_live_recognition_stop);
+    }
+    
+    // Receives detections of camera frames, on a DetectionExecutor worker
+    private final DetectionExecutor.Callback mFrameCallback = new DetectionExecutor.Callback() {
+    	@Override public void onDetected(DetectionResult result) {
+    		if(!result.identified()){
+    			showMessage("Can't identify the image!");
+    		}else{
+    			showMessage("Detected: "+result.match().name());
+    		}
+    		result.release();
+    	}
+    	@Override public void onFailed(Exception e) {
+    		Log.e(ERROR, "Failed to detect frame: "+e);
+    	}
+    };
+    
+    private void showMessage(final String message)
+    {
+    	Log.i(TAG, message);
+		runOnUiThread(new Runnable() { 
+			@Override public void run() { 
+				Toast.makeText(MainActivity.this, message,
+						Toast.LENGTH_SHORT).show(); 
+			}
+		});
+    }
 
     public void savePhoto(Mat rgba, String photoName, String albumPath)
     {
@@ -242,6 +356,10 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
         Log.i(TAG, "called onDestroy");
         if (mOpenCvCameraView != null)
             mOpenCvCameraView.disableView();
+        if (mContinuousRecognizer != null)
+        	mContinuousRecognizer.stop();
+        if (mDetectionExecutor != null)
+        	mDetectionExecutor.shutdown();
     }
 
     public void onCameraViewStarted(int width, int height) {
@@ -250,6 +368,8 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
     public void onCameraViewStopped() {
     }
 
+    // On-device version of the experiment. For parameter sweeps, use the
+    // headless harness in desktop/ (EvaluationMain) instead.
     @SuppressLint({ "SimpleDateFormat", "UseSparseArrays" })
 	public void runExperiment()
     {
@@ -335,30 +455,38 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 
     		writer.append("Additional notes: "+notes+"\n");
     		//	(!) WARNING: 	hard code in ImageDetector class
-    		writer.append("Image scaled down to at most: "+detector.max_side+"x"+detector.max_side+"\n"); //HARD CODE
+    		writer.append("Image scaled down to at most: "+detector.maxSide()+"x"+detector.maxSide()+"\n"); //HARD CODE
     		
     		
 	    	//// Build the library    	
 	    	long start= System.currentTimeMillis();
-	    	// load using image paths from device
-	    	int count_training_images = 0;
-	    	for (int a = 0; a < 1 ; a++) {
-		    	for (int b = 0; b < number_of_buildings ; b++) {
-		    		int d=1;
-					String photoName= b+"_"+a+"_"+d+".jpg";
-					String photoPath = inputFolder +"/"+ photoName;
-					detector.addToLibrary(photoPath, b);
-					Log.i(TAG, "Added 1 new image to the library");
-					count_training_images++;
-				}    	
+	    	// reuse the saved index if it still matches the detector settings,
+	    	// otherwise load using image paths from device and save a new one
+	    	String indexPath = inputFolder + "/library_" + detector_type + ".idx";
+	    	if (!detector.loadLibrary(indexPath)) {
+	    		List<LibraryItem> items = new ArrayList<LibraryItem>();
+		    	for (int a = 0; a < 1 ; a++) {
+			    	for (int b = 0; b < number_of_buildings ; b++) {
+			    		int d=1;
+						String photoName= b+"_"+a+"_"+d+".jpg";
+						String photoPath = inputFolder +"/"+ photoName;
+						items.add(new LibraryItem(photoPath, b));
+					}    	
+		    	}
+		    	IngestStats stats = detector.addAllToLibrary(items);
+		    	writer.append(stats.toString() + "\n");
+		    	detector.saveLibrary(indexPath);
 	    	}
+	    	int count_training_images = detector.librarySize();
 	    	
 	    	long done_building_lib= System.currentTimeMillis();
 
+	    	int features_per_image = count_training_images == 0 ? 0
+	    			: detector.numberOfLibraryDescriptors()/count_training_images;
 	    	Log.i(TAG,"Number of key points for each image: "
-	    			+detector.CURRENT_NUMBER_OF_FEATURES);
+	    			+features_per_image);
             writer.append("Number of key points for each image: "
-	    			+detector.CURRENT_NUMBER_OF_FEATURES+"\n"+ "\n");
+	    			+features_per_image+"\n"+ "\n");
             
 	    	Log.i(TAG, "Runtime to build library: "+ (done_building_lib - start)
 	    			+" for "+count_training_images+ " training images" ); 
@@ -366,6 +494,8 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 	    			+" for "+count_training_images+ " training images" + "\n"+ "\n");
 	    	
 	    	//// Detect photos 
+	    	// per-stage timings of the queries only, not of building the library
+	    	detector.setMetrics(new DetectionMetrics());
     		long startD =0;
 	    	long endD =0;
 	    	long time_to_detect=0;
@@ -383,7 +513,8 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 						String query_path = inputFolder_query +"/"+ photoName;	
 						
 						startD = System.currentTimeMillis();					
-						TrainingImage result = detector.detectPhoto(query_path);
+						DetectionResult detection = detector.detectPhoto(query_path);
+						TrainingImage result = detection.match();
 						endD =System.currentTimeMillis();
 						time_to_detect += (endD-startD);
 						
@@ -403,21 +534,22 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 					    			// save visualized image
 									String image_of_matches_name = System.currentTimeMillis()+ "_"
 											+ b + "_" + a + "_" + d + "_to_" + matchName;
-							    	Mat image_of_matches = detector.drawCurrentMatches(20);
+							    	Mat image_of_matches = detector.drawMatches(detection, 20);
 						    		savePhoto(image_of_matches, image_of_matches_name,
 						    				Environment.getExternalStorageDirectory().toString()+
 						    				"/" + folderName + "/matches");
+						    		image_of_matches.release();
 					    			}
 					    		}
 					    		
 					    		// print frequency
 					    		String frequency = "Matches, ";
-					    		String match_images =photoName+"_"+detector.CURRENT_QUERY_IMAGE.descriptors().size().height+"_Match images, ";
+					    		String match_images =photoName+"_"+detection.query().numberOfDescriptors()+"_Match images, ";
 //					    		String match_distances ="Match distances, ";
-					    		for(TrainingImage trainImg: detector.CURRENT_MATCH_FREQUENCY.keySet()){
-					        		Integer i=detector.CURRENT_MATCH_FREQUENCY.get(trainImg);
+					    		for(TrainingImage trainImg: detection.votes().keySet()){
+					        		Integer i=detection.votes().get(trainImg);
 					        		frequency += i +", ";
-					        		match_images += trainImg.name()+"_"+trainImg.descriptors().size().height+", ";
+					        		match_images += trainImg.name()+"_"+trainImg.numberOfDescriptors()+", ";
 //					        		match_distances += 
 //					        				detector.CURRENT_MATCH_DISTANCES.get(trainImg)+", ";
 					        	}
@@ -439,20 +571,21 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 				    			// save visualized image
 								String image_of_matches_name = System.currentTimeMillis()+ "_"
 										+ b + "_" + a + "_" + d + "_to_" + matchName;
-						    	Mat image_of_matches = detector.drawCurrentMatches(20);
+						    	Mat image_of_matches = detector.drawMatches(detection, 20);
 					    		savePhoto(image_of_matches, image_of_matches_name,
 					    				Environment.getExternalStorageDirectory().toString()+
 					    				"/" + folderName + "/mismatches");
+					    		image_of_matches.release();
 				    			}
 	
 					    		// print frequency
 					    		String frequency = "Mismatches, ";
-					    		String mismatch_images =photoName+"_"+detector.CURRENT_QUERY_IMAGE.descriptors().size().height+"_Mismatch images, ";
+					    		String mismatch_images =photoName+"_"+detection.query().numberOfDescriptors()+"_Mismatch images, ";
 //					    		String mismatch_distances ="Mismatch distances, ";
-					    		for(TrainingImage trainImg: detector.CURRENT_MATCH_FREQUENCY.keySet()){
-					        		Integer i=detector.CURRENT_MATCH_FREQUENCY.get(trainImg);
+					    		for(TrainingImage trainImg: detection.votes().keySet()){
+					        		Integer i=detection.votes().get(trainImg);
 					        		frequency += i +", ";
-					        		mismatch_images += trainImg.name()+"_"+trainImg.descriptors().size().height+", ";
+					        		mismatch_images += trainImg.name()+"_"+trainImg.numberOfDescriptors()+", ";
 //					        		mismatch_distances += 
 //					        				detector.CURRENT_MATCH_DISTANCES.get(trainImg)+", ";
 					    		}
@@ -467,6 +600,7 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 						}
 
 						count_detected_images++;
+						detection.release();
 			    	}
 			    	double matching_rate = (double)countCorrectMatch*100/number_of_buildings ;
 			    	double unidentified_rate = (double)countUnidentified*100/number_of_buildings ;
@@ -479,7 +613,13 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 			}
 	    	Log.i(TAG,"Runtime to detect 1 image: "+time_to_detect/count_detected_images);
 	    	writer.append("Runtime to detect 1 image: "+time_to_detect/count_detected_images +"\n");
+	    	Log.i(TAG, detector.metrics().toString());
+	    	Log.i(TAG, detector.nativeMemory().toString());
+	    	writer.append("\n"+detector.metrics().toString());
 	    	writer.close();
+	    	FileWriter writer_metrics = new FileWriter(new File(root, outputName+".metrics.json"));
+	    	writer_metrics.append(detector.metrics().toJson()+"\n");
+	    	writer_metrics.close();
 			writer_m.close();
 			writer_mm.close();
 			writer_mm_i.close();
@@ -0,0 +1,73 @@
+package com.thanh.photodetector;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+
+// Bounded pool of Mats for images that change hands, such as the scaled
+// down camera frames a DetectionResult keeps until it is released: the
+// released result gives its frame back, and a later frame is scaled into
+// it instead of into a new allocation. Any thread may take and give; Mats
+// given while the pool is full are released.
+public class MatPool {
+	private final ConcurrentLinkedQueue<Mat> free = new ConcurrentLinkedQueue<Mat>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final int capacity;
+	// counts the pooled Mats; may be null
+	private final NativeMemory native_memory;
+
+	public MatPool(int capacity, NativeMemory native_memory)
+	{
+		this.capacity = capacity;
+		this.native_memory = native_memory;
+	}
+
+	// Method that returns a free Mat of the pool, or a new one if there is
+	// none; its contents are undefined
+	public Mat take()
+	{
+		Mat m = free.poll();
+		if (m == null) {
+			return new Mat();
+		}
+		size.decrementAndGet();
+		if (native_memory != null) {
+			native_memory.pooled(-NativeMemory.bytesOf(m));
+		}
+		return m;
+	}
+
+	// Method that gives 'm' back for reuse, or releases it if the pool is full
+	public void give(Mat m)
+	{
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			m.release();
+			return;
+		}
+		if (native_memory != null) {
+			native_memory.pooled(NativeMemory.bytesOf(m));
+		}
+		free.add(m);
+	}
+
+	// Method that frees the image and key points of 'img', giving its image
+	// back to 'pool' if there is one
+	static void releaseImage(TrainingImage img, MatPool pool)
+	{
+		Mat image = img.image();
+		if (pool != null && image != null) {
+			img.setImage(null);
+			pool.give(image);
+		} else {
+			img.releaseImage();
+		}
+		img.releaseKeyPoints();
+	}
+
+	// number of free Mats
+	public int size(){
+		return size.get();
+	}
+}
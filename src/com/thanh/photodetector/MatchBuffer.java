@@ -0,0 +1,233 @@
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+
+import org.opencv.core.MatOfDMatch;
+
+// Reusable, growable list of matches kept in parallel primitive arrays,
+// so matching a query doesn't create a DMatch object per descriptor.
+// Index 'i' describes one match: query descriptor queryIdx(i) is nearest 
+// to descriptor trainIdx(i) of training image imgIdx(i). Matchers that
+// know it also keep the distance to the second nearest training
+// descriptor, for the ratio test; otherwise it is infinite.
+public class MatchBuffer {
+	// floats per match in a MatOfDMatch (CV_32FC4)
+	private static final int DMATCH_FIELDS = 4;
+	
+	private int size = 0;
+	private int[] query_idx;
+	private int[] train_idx;
+	private int[] img_idx;
+	private float[] distance;
+	private float[] second_distance;
+	// scratch space for converting from/to MatOfDMatch
+	private float[] dmatch_fields = new float[0];
+	
+	public MatchBuffer()
+	{
+		this(256);
+	}
+	
+	public MatchBuffer(int capacity)
+	{
+		query_idx = new int[capacity];
+		train_idx = new int[capacity];
+		img_idx = new int[capacity];
+		distance = new float[capacity];
+		second_distance = new float[capacity];
+	}
+	
+	public void clear(){
+		size = 0;
+	}
+	
+	public int size(){
+		return size;
+	}
+	
+	public void ensureCapacity(int capacity)
+	{
+		if (capacity > query_idx.length) {
+			int n = Math.max(capacity, 2 * query_idx.length);
+			query_idx = Arrays.copyOf(query_idx, n);
+			train_idx = Arrays.copyOf(train_idx, n);
+			img_idx = Arrays.copyOf(img_idx, n);
+			distance = Arrays.copyOf(distance, n);
+			second_distance = Arrays.copyOf(second_distance, n);
+		}
+	}
+	
+	public void add(int query, int train, int img, float dist)
+	{
+		add(query, train, img, dist, Float.POSITIVE_INFINITY);
+	}
+	
+	// Method that appends a match whose query descriptor is 'second_dist'
+	// away from its second nearest training descriptor
+	public void add(int query, int train, int img, float dist, float second_dist)
+	{
+		ensureCapacity(size + 1);
+		query_idx[size] = query;
+		train_idx[size] = train;
+		img_idx[size] = img;
+		distance[size] = dist;
+		second_distance[size] = second_dist;
+		size++;
+	}
+	
+	// Method that appends match 'i' of another buffer
+	public void add(MatchBuffer other, int i)
+	{
+		add(other.query_idx[i], other.train_idx[i], other.img_idx[i], other.distance[i],
+				other.second_distance[i]);
+	}
+	
+	public int queryIdx(int i){
+		return query_idx[i];
+	}
+	
+	public int trainIdx(int i){
+		return train_idx[i];
+	}
+	
+	public int imgIdx(int i){
+		return img_idx[i];
+	}
+	
+	public float distance(int i){
+		return distance[i];
+	}
+	
+	// distance to the second nearest training descriptor, infinite if the
+	// matcher doesn't know it
+	public float secondDistance(int i){
+		return second_distance[i];
+	}
+	
+	// Method that replaces the content of 'out' with the 'k' matches of 
+	// this buffer with the smallest distances, closest first. One pass 
+	// keeps the best 'k' in a bounded max-heap of indexes, so it costs 
+	// O(n log k) and leaves this buffer untouched.
+	public void closest(int k, MatchBuffer out)
+	{
+		out.clear();
+		k = Math.min(k, size);
+		if (k <= 0) {
+			return;
+		}
+		// heap[0] is the farthest of the best 'k' so far
+		int[] heap = new int[k];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (n < k) {
+				heap[n] = i;
+				siftUp(heap, n++);
+			} else if (distance[i] < distance[heap[0]]) {
+				heap[0] = i;
+				siftDown(heap, 0, n);
+			}
+		}
+		// pop the farthest first and fill 'out' from the back
+		out.ensureCapacity(k);
+		out.size = k;
+		while (n > 0) {
+			int i = heap[0];
+			n--;
+			heap[0] = heap[n];
+			siftDown(heap, 0, n);
+			out.query_idx[n] = query_idx[i];
+			out.train_idx[n] = train_idx[i];
+			out.img_idx[n] = img_idx[i];
+			out.distance[n] = distance[i];
+			out.second_distance[n] = second_distance[i];
+		}
+	}
+	
+	private void siftUp(int[] heap, int child)
+	{
+		while (child > 0) {
+			int parent = (child - 1) / 2;
+			if (distance[heap[parent]] >= distance[heap[child]]) {
+				return;
+			}
+			int t = heap[parent];
+			heap[parent] = heap[child];
+			heap[child] = t;
+			child = parent;
+		}
+	}
+	
+	private void siftDown(int[] heap, int parent, int n)
+	{
+		while (true) {
+			int child = 2 * parent + 1;
+			if (child >= n) {
+				return;
+			}
+			if (child + 1 < n && distance[heap[child + 1]] > distance[heap[child]]) {
+				child++;
+			}
+			if (distance[heap[parent]] >= distance[heap[child]]) {
+				return;
+			}
+			int t = heap[parent];
+			heap[parent] = heap[child];
+			heap[child] = t;
+			parent = child;
+		}
+	}
+	
+	// Method that replaces the content of this buffer with the matches
+	// in an OpenCV MatOfDMatch, reading them with one bulk transfer
+	public void fromMat(MatOfDMatch matches)
+	{
+		int n = (int) matches.total();
+		clear();
+		ensureCapacity(n);
+		if (n == 0) {
+			return;
+		}
+		if (dmatch_fields.length < n * DMATCH_FIELDS) {
+			dmatch_fields = new float[n * DMATCH_FIELDS];
+		}
+		matches.get(0, 0, dmatch_fields);
+		for (int i = 0; i < n; i++) {
+			int f = i * DMATCH_FIELDS;
+			query_idx[i] = (int) dmatch_fields[f];
+			train_idx[i] = (int) dmatch_fields[f + 1];
+			img_idx[i] = (int) dmatch_fields[f + 2];
+			distance[i] = dmatch_fields[f + 3];
+			second_distance[i] = Float.POSITIVE_INFINITY;
+		}
+		size = n;
+	}
+	
+	// Method that copies the matches into a new MatOfDMatch, 
+	// e.g. for Features2d.drawMatches
+	public MatOfDMatch toMat()
+	{
+		return toMat(0, size);
+	}
+	
+	// Method that copies matches 'from' to 'to' (exclusive) into a new
+	// MatOfDMatch
+	public MatOfDMatch toMat(int from, int to)
+	{
+		MatOfDMatch result = new MatOfDMatch();
+		int n = to - from;
+		if (n <= 0) {
+			return result;
+		}
+		result.alloc(n);
+		float[] fields = new float[n * DMATCH_FIELDS];
+		for (int i = from; i < to; i++) {
+			int f = (i - from) * DMATCH_FIELDS;
+			fields[f] = query_idx[i];
+			fields[f + 1] = train_idx[i];
+			fields[f + 2] = img_idx[i];
+			fields[f + 3] = distance[i];
+		}
+		result.put(0, 0, fields);
+		return result;
+	}
+}
@@ -0,0 +1,36 @@
+package com.thanh.photodetector;
+
+import org.opencv.core.Mat;
+
+// The drawing of the closest matches between a query and the training
+// image it was identified as, rendered only when render() is called.
+// Creating one costs nothing, so a run can keep one for every query and
+// render just those it saves or shows. The result must not be released
+// before rendering.
+public class MatchDrawing {
+	private final ImageDetector detector;
+	private final DetectionResult result;
+	private final int number_of_matches;
+
+	MatchDrawing(ImageDetector detector, DetectionResult result, int number_of_matches)
+	{
+		this.detector = detector;
+		this.result = result;
+		this.number_of_matches = number_of_matches;
+	}
+
+	public DetectionResult result(){
+		return result;
+	}
+
+	// whether there is anything to draw
+	public boolean drawable(){
+		return result.identified() && !result.isReleased();
+	}
+
+	// Method that draws the matches now, as a new Mat owned by the caller
+	public Mat render()
+	{
+		return detector.drawMatches(result, number_of_matches);
+	}
+}
@@ -0,0 +1,129 @@
+package com.thanh.photodetector;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+// Filters the matches of a query before they vote, dropping those likely
+// to be wrong, which only add noise to the votes of every image:
+//  - Lowe's ratio test keeps a match only if its nearest training
+//    descriptor is clearly nearer than the second nearest, i.e. if
+//    distance < ratio * second distance. Descriptors of repeated texture
+//    match many images about equally well and tell none of them apart.
+//  - The cross check keeps a match only if its query descriptor is also
+//    the nearest of the query's to its training descriptor.
+//
+// Matches without a second distance pass the ratio test. For binary
+// descriptors, held in memory or in a descriptor store, the cross check
+// is exact; otherwise it can only keep the nearest of the query
+// descriptors matched to the same training descriptor. One filter serves
+// one thread; for binary descriptors it allocates nothing after warm-up.
+public class MatchFilter {
+	private static final int BYTES = BinaryDescriptors.BYTES_PER_DESCRIPTOR;
+	private static final int LONGS = BinaryDescriptors.LONGS_PER_DESCRIPTOR;
+
+	private final BinaryDescriptors.Packer query_packer = new BinaryDescriptors.Packer();
+	private final byte[] train_row = new byte[BYTES];
+	private final long[] train = new long[LONGS];
+	private final BitSet dropped = new BitSet();
+	// matches that passed the ratio test, before the cross check
+	private final MatchBuffer passed = new MatchBuffer();
+
+	// Method that copies to 'kept' the matches of 'matches' that pass the
+	// ratio test; with 'ratio' <= 0 all of them
+	public static void ratioTest(MatchBuffer matches, double ratio, MatchBuffer kept)
+	{
+		kept.clear();
+		kept.ensureCapacity(matches.size());
+		for (int i = 0; i < matches.size(); i++) {
+			if (ratio <= 0 || matches.distance(i) < ratio * matches.secondDistance(i)) {
+				kept.add(matches, i);
+			}
+		}
+	}
+
+	// Method that copies to 'kept' the matches of 'matches', computed for
+	// 'query_descriptors' against 'snapshot', that pass the ratio test
+	// and, if 'cross_check' is set, the cross check
+	public void filter(LibrarySnapshot snapshot, Mat query_descriptors, MatchBuffer matches,
+			double ratio, boolean cross_check, MatchBuffer kept)
+	{
+		if (!cross_check) {
+			ratioTest(matches, ratio, kept);
+			return;
+		}
+		MatchBuffer candidates = matches;
+		if (ratio > 0) {
+			ratioTest(matches, ratio, passed);
+			candidates = passed;
+		}
+		crossCheck(snapshot, query_descriptors, candidates, kept);
+	}
+
+	private void crossCheck(LibrarySnapshot snapshot, Mat query_descriptors, MatchBuffer matches,
+			MatchBuffer kept)
+	{
+		dropped.clear();
+		boolean binary = query_descriptors.type() == CvType.CV_8UC1
+				&& query_descriptors.cols() == BYTES;
+		long[] query = binary ? query_packer.pack(query_descriptors) : null;
+		int rows = query_descriptors.rows();
+		// for the fallback: the nearest match so far of every training
+		// descriptor, by (image << 32 | row)
+		HashMap<Long, Integer> nearest = null;
+		DescriptorStore store = snapshot.descriptorStore();
+		for (int i = 0; i < matches.size(); i++) {
+			Mat descriptors = binary && store == null 
+					? snapshot.image(matches.imgIdx(i)).descriptors() : null;
+			if (binary && (store != null || (descriptors != null && !descriptors.empty()))) {
+				if (store != null) {
+					store.descriptor(matches.imgIdx(i), matches.trainIdx(i), train);
+				} else {
+					descriptors.get(matches.trainIdx(i), 0, train_row);
+					BinaryDescriptors.pack(train_row, 1, train);
+				}
+				if (!isNearestQuery(query, rows, matches.queryIdx(i))) {
+					dropped.set(i);
+				}
+				continue;
+			}
+			if (nearest == null) {
+				nearest = new HashMap<Long, Integer>();
+			}
+			Long key = ((long) matches.imgIdx(i) << 32) | matches.trainIdx(i);
+			Integer other = nearest.get(key);
+			if (other == null) {
+				nearest.put(key, i);
+			} else if (matches.distance(i) < matches.distance(other)) {
+				dropped.set(other);
+				nearest.put(key, i);
+			} else {
+				dropped.set(i);
+			}
+		}
+		kept.clear();
+		kept.ensureCapacity(matches.size() - dropped.cardinality());
+		for (int i = 0; i < matches.size(); i++) {
+			if (!dropped.get(i)) {
+				kept.add(matches, i);
+			}
+		}
+	}
+
+	// Method that tells whether query descriptor 'q' is the nearest of the
+	// first 'rows' of 'query' to the packed training descriptor; of equally
+	// near ones, the first is, as brute force matching would find it
+	private boolean isNearestQuery(long[] query, int rows, int q)
+	{
+		int distance = BinaryDescriptors.distance(query, q, train, 0);
+		for (int other = 0; other < rows; other++) {
+			int d = BinaryDescriptors.distance(query, other, train, 0);
+			if (d < distance || (d == distance && other < q)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,88 @@
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.opencv.core.Mat;
+
+// Recall and latency of a candidate LibraryMatcher compared with an exact
+// (brute force) one trained on the same library and given the same queries.
+// Recall is the fraction of query descriptors for which the candidate
+// found a training descriptor as close as the true nearest neighbour.
+public class MatcherReport {
+	private final String reference_name;
+	private final String candidate_name;
+	private int number_of_queries;
+	private long number_of_descriptors;
+	private long number_found;
+	private long reference_nanos;
+	private long candidate_nanos;
+	
+	private MatcherReport(String reference_name, String candidate_name)
+	{
+		this.reference_name = reference_name;
+		this.candidate_name = candidate_name;
+	}
+	
+	// Method that matches every query with both matchers, which must
+	// already hold the same training library, and compares the results
+	public static MatcherReport compare(LibraryMatcher reference, 
+			LibraryMatcher candidate, List<Mat> queries)
+	{
+		MatcherReport report = new MatcherReport(reference.toString(), candidate.toString());
+		reference.train();
+		candidate.train();
+		MatchBuffer exact = new MatchBuffer();
+		MatchBuffer approx = new MatchBuffer();
+		for (Mat query: queries) {
+			long t = System.nanoTime();
+			reference.match(query, exact);
+			report.reference_nanos += System.nanoTime() - t;
+			
+			t = System.nanoTime();
+			candidate.match(query, approx);
+			report.candidate_nanos += System.nanoTime() - t;
+			
+			float[] approx_distance = new float[query.rows()];
+			Arrays.fill(approx_distance, Float.MAX_VALUE);
+			for (int i = 0; i < approx.size(); i++) {
+				approx_distance[approx.queryIdx(i)] = approx.distance(i);
+			}
+			for (int i = 0; i < exact.size(); i++) {
+				if (approx_distance[exact.queryIdx(i)] <= exact.distance(i)) {
+					report.number_found++;
+				}
+			}
+			report.number_of_descriptors += exact.size();
+			report.number_of_queries++;
+		}
+		return report;
+	}
+	
+	public double recall(){
+		return number_of_descriptors == 0 ? 0 : (double) number_found / number_of_descriptors;
+	}
+	
+	public double referenceMillisPerQuery(){
+		return number_of_queries == 0 ? 0 : reference_nanos / 1e6 / number_of_queries;
+	}
+	
+	public double candidateMillisPerQuery(){
+		return number_of_queries == 0 ? 0 : candidate_nanos / 1e6 / number_of_queries;
+	}
+	
+	public double speedup(){
+		return candidate_nanos == 0 ? 0 : (double) reference_nanos / candidate_nanos;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.US, 
+				"%s vs %s over %d queries (%d descriptors): recall %.3f, "
+				+ "%.2f ms vs %.2f ms per query (%.1fx)",
+				candidate_name, reference_name, number_of_queries, number_of_descriptors,
+				recall(), candidateMillisPerQuery(), referenceMillisPerQuery(), speedup());
+	}
+}
@@ -0,0 +1,70 @@
+package com.thanh.photodetector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+
+// Count of the native memory an ImageDetector's queries hold in OpenCV
+// Mats. The Java heap doesn't see it: a Mat's pixels stay allocated until
+// release() or its finalizer, however little heap its Java object takes,
+// so a query path that leaves Mats to finalizers grows native memory long
+// before the garbage collector feels any pressure.
+//
+// Two kinds of Mats are counted: the Mats every querying thread reuses
+// from query to query, and the query image and key points each
+// DetectionResult keeps for drawMatches until it is released. Under
+// sustained load both stay flat as long as results are released.
+public class NativeMemory {
+	private final AtomicLong pooled_bytes = new AtomicLong();
+	private final AtomicLong result_bytes = new AtomicLong();
+	private final AtomicLong results = new AtomicLong();
+
+	// Method that returns the bytes of pixels or elements of 'm'
+	static long bytesOf(Mat m)
+	{
+		return m == null ? 0 : m.total() * m.elemSize();
+	}
+
+	void pooled(long delta)
+	{
+		pooled_bytes.addAndGet(delta);
+	}
+
+	void resultCreated(long bytes)
+	{
+		results.incrementAndGet();
+		result_bytes.addAndGet(bytes);
+	}
+
+	void resultReleased(long bytes)
+	{
+		results.decrementAndGet();
+		result_bytes.addAndGet(-bytes);
+	}
+
+	// bytes of the Mats querying threads keep for their next query
+	public long pooledBytes(){
+		return pooled_bytes.get();
+	}
+
+	// bytes kept by DetectionResults that weren't released yet
+	public long resultBytes(){
+		return result_bytes.get();
+	}
+
+	// DetectionResults that weren't released yet
+	public long unreleasedResults(){
+		return results.get();
+	}
+
+	public long totalBytes(){
+		return pooledBytes() + resultBytes();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "NativeMemory(pooled=" + pooledBytes() / 1024 + " KiB, results="
+				+ resultBytes() / 1024 + " KiB in " + unreleasedResults() + ")";
+	}
+}
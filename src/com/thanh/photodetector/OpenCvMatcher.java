@@ -0,0 +1,242 @@
+package com.thanh.photodetector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.opencv.core.DMatch;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+
+// LibraryMatcher backed by one of OpenCV's DescriptorMatchers,
+// e.g. DescriptorMatcher.BRUTEFORCE_HAMMINGLUT for exact ORB matching.
+// Once trained, OpenCV's matchers only read their train collection, so
+// concurrent queries just need their own output Mats.
+//
+// With 'second_neighbours' set, queries run knnMatch with k = 2 so that
+// matches carry their second nearest distance for the ratio test; that
+// costs a MatOfDMatch per query descriptor, so it is off until it is
+// asked for or enableSecondDistance is called.
+//
+// Matching a subset of the images stacks their descriptors into one train
+// Mat. Every thread keeps the last subset it stacked, so the batches of
+// one query, which all match the same subset, stack it only once.
+public class OpenCvMatcher implements LibraryMatcher {
+	private DescriptorMatcher dMatcher;
+	private int matcher_type;
+	private volatile boolean second_neighbours;
+	private final ThreadLocal<MatOfDMatch> dmatches = new ThreadLocal<MatOfDMatch>() {
+		@Override protected MatOfDMatch initialValue() {
+			return new MatOfDMatch();
+		}
+	};
+	// the Mats added so far, to match against a subset of the images
+	private List<Mat> train_descriptors = new ArrayList<Mat>();
+	// counts the changes of train_descriptors, which make stacked
+	// selections stale
+	private int version = 0;
+	
+	// the images a thread last matched a subset of, stacked into one Mat
+	private static class Selection {
+		final BitSet images = new BitSet();
+		// version of train_descriptors 'stacked' was built from; -1 for none
+		int version = -1;
+		final Mat stacked = new Mat();
+		// image and first stacked row of every block of rows
+		int[] image_of_block = new int[0];
+		int[] block_start = new int[1];
+		int blocks = 0;
+		// matches against 'stacked', before mapping them back to images
+		final MatchBuffer raw = new MatchBuffer();
+	}
+	private final ThreadLocal<Selection> selections = new ThreadLocal<Selection>() {
+		@Override protected Selection initialValue() {
+			return new Selection();
+		}
+	};
+	
+	public OpenCvMatcher(int matcher_type)
+	{
+		this(matcher_type, false);
+	}
+	
+	public OpenCvMatcher(int matcher_type, boolean second_neighbours)
+	{
+		this.matcher_type = matcher_type;
+		this.second_neighbours = second_neighbours;
+		dMatcher = DescriptorMatcher.create(matcher_type);
+	}
+
+	@Override
+	public LibraryMatcher emptyCopy() {
+		return new OpenCvMatcher(matcher_type, second_neighbours);
+	}
+
+	// The copy is a new DescriptorMatcher given the same training Mats, 
+	// which OpenCV shares rather than copies; matchers that build an index
+	// in train(), like FLANN, still rebuild all of it there
+	@Override
+	public LibraryMatcher appendableCopy() {
+		OpenCvMatcher copy = new OpenCvMatcher(matcher_type, second_neighbours);
+		if (!train_descriptors.isEmpty()) {
+			copy.dMatcher.add(train_descriptors);
+			copy.train_descriptors.addAll(train_descriptors);
+			copy.version++;
+		}
+		return copy;
+	}
+
+	@Override
+	public void add(Mat descriptors) {
+		dMatcher.add(Arrays.asList(descriptors));
+		train_descriptors.add(descriptors);
+		version++;
+	}
+
+	@Override
+	public void add(TrainingImage img) {
+		add(img.descriptors());
+	}
+
+	@Override
+	public boolean enableSecondDistance() {
+		second_neighbours = true;
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		dMatcher.clear();
+		train_descriptors.clear();
+		version++;
+	}
+
+	// drops the matcher's references to the training descriptors, so
+	// releasing them elsewhere frees them
+	@Override
+	public void release() {
+		clear();
+	}
+
+	@Override
+	public void train() {
+		dMatcher.train();
+	}
+
+	@Override
+	public void match(Mat query_descriptors, MatchBuffer matches) {
+		if (second_neighbours) {
+			List<MatOfDMatch> knn = new ArrayList<MatOfDMatch>(query_descriptors.rows());
+			dMatcher.knnMatch(query_descriptors, knn, 2);
+			fromKnn(knn, matches);
+			return;
+		}
+		MatOfDMatch result = dmatches.get();
+		dMatcher.match(query_descriptors, result);
+		matches.fromMat(result);
+	}
+	
+	// Method that keeps the nearest neighbour of every query descriptor
+	// of 'knn', with the distance of the second one, and releases 'knn'
+	private static void fromKnn(List<MatOfDMatch> knn, MatchBuffer matches)
+	{
+		matches.clear();
+		matches.ensureCapacity(knn.size());
+		for (MatOfDMatch m: knn) {
+			DMatch[] nearest = m.toArray();
+			if (nearest.length > 0) {
+				matches.add(nearest[0].queryIdx, nearest[0].trainIdx, nearest[0].imgIdx, 
+						nearest[0].distance, 
+						nearest.length > 1 ? nearest[1].distance : Float.POSITIVE_INFINITY);
+			}
+			m.release();
+		}
+	}
+
+	@Override
+	public void match(Mat query_descriptors, MatchBuffer matches, BitSet images) {
+		if (images == null) {
+			match(query_descriptors, matches);
+			return;
+		}
+		Selection selection = select(images);
+		matches.clear();
+		int blocks = selection.blocks;
+		if (blocks == 0) {
+			return;
+		}
+		int[] image_of_block = selection.image_of_block;
+		int[] block_start = selection.block_start;
+		MatchBuffer raw = selection.raw;
+		if (second_neighbours) {
+			List<MatOfDMatch> knn = new ArrayList<MatOfDMatch>(query_descriptors.rows());
+			dMatcher.knnMatch(query_descriptors, selection.stacked, knn, 2);
+			fromKnn(knn, raw);
+		} else {
+			MatOfDMatch result = dmatches.get();
+			dMatcher.match(query_descriptors, selection.stacked, result);
+			raw.fromMat(result);
+		}
+		
+		// map rows of the stacked Mat back to (image, row)
+		for (int i = 0; i < raw.size(); i++) {
+			int row = raw.trainIdx(i);
+			int block = Arrays.binarySearch(block_start, 0, blocks + 1, row);
+			if (block < 0) {
+				block = -block - 2;
+			}
+			matches.add(raw.queryIdx(i), row - block_start[block], 
+					image_of_block[block], raw.distance(i), raw.secondDistance(i));
+		}
+	}
+
+	// Method that returns this thread's selection of 'images', stacking
+	// their descriptors into its Mat unless it holds them already
+	private Selection select(BitSet images)
+	{
+		Selection selection = selections.get();
+		if (selection.version == version && selection.images.equals(images)) {
+			return selection;
+		}
+		int n = images.cardinality();
+		if (selection.image_of_block.length < n) {
+			selection.image_of_block = new int[n];
+			selection.block_start = new int[n + 1];
+		}
+		int blocks = 0;
+		for (int img = images.nextSetBit(0); img >= 0 && img < train_descriptors.size(); 
+				img = images.nextSetBit(img + 1)) {
+			int rows = train_descriptors.get(img).rows();
+			if (rows == 0) {
+				continue;
+			}
+			selection.image_of_block[blocks] = img;
+			selection.block_start[blocks + 1] = selection.block_start[blocks] + rows;
+			blocks++;
+		}
+		if (blocks > 0) {
+			// the Mat keeps its memory if it is large enough already
+			Mat first = train_descriptors.get(selection.image_of_block[0]);
+			selection.stacked.create(selection.block_start[blocks], first.cols(), first.type());
+			for (int b = 0; b < blocks; b++) {
+				Mat rows = selection.stacked.rowRange(selection.block_start[b], 
+						selection.block_start[b + 1]);
+				train_descriptors.get(selection.image_of_block[b]).copyTo(rows);
+				rows.release();
+			}
+		}
+		selection.blocks = blocks;
+		selection.images.clear();
+		selection.images.or(images);
+		selection.version = version;
+		return selection;
+	}
+
+	@Override
+	public String toString() {
+		return "OpenCV(matcher_type=" + matcher_type 
+				+ (second_neighbours ? ", k=2" : "") + ")";
+	}
+}
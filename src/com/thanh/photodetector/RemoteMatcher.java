@@ -0,0 +1,281 @@
+package com.thanh.photodetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+
+import org.opencv.core.Mat;
+
+// LibraryMatcher whose training descriptors live in a ShardServer process
+// on this machine, typically as one shard of a ShardedMatcher. Descriptors
+// are packed before they are sent, and matching is exact (Hamming).
+//
+// Every query borrows a connection of its own, so concurrent queries
+// don't wait for each other; connections are kept open and shared with
+// every emptyCopy, which only creates a new matcher on the same server.
+// An appendableCopy is made by the server from the descriptors it holds
+// already, so nothing is sent again.
+// Failures to reach the server surface as IllegalStateExceptions.
+public class RemoteMatcher implements LibraryMatcher {
+	private final Endpoint endpoint;
+	// id of this matcher on the server
+	private final int matcher_id;
+
+	// the server and the idle connections to it
+	private static class Endpoint {
+		final String host;
+		final int port;
+		// guarded by itself
+		final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+		Endpoint(String host, int port)
+		{
+			this.host = host;
+			this.port = port;
+		}
+
+		Connection borrow() throws IOException
+		{
+			synchronized (idle) {
+				if (!idle.isEmpty()) {
+					return idle.pop();
+				}
+			}
+			return new Connection(new Socket(host, port));
+		}
+
+		void giveBack(Connection c)
+		{
+			synchronized (idle) {
+				idle.push(c);
+			}
+		}
+	}
+
+	private static class Connection {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+
+		Connection(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		// Method that flushes the request and reads the status of the reply
+		void send() throws IOException
+		{
+			out.flush();
+			if (in.readInt() != ShardServer.STATUS_OK) {
+				throw new IOException(in.readUTF());
+			}
+		}
+
+		void close()
+		{
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	// A request of this matcher on a borrowed connection
+	private abstract class Request<T> {
+		abstract T run(Connection c) throws IOException;
+
+		T call(String what)
+		{
+			Connection c = null;
+			boolean completed = false;
+			try {
+				c = endpoint.borrow();
+				T result = run(c);
+				completed = true;
+				return result;
+			} catch (IOException e) {
+				throw new IllegalStateException("Shard at " + endpoint.host + ":" + endpoint.port
+						+ " failed to " + what, e);
+			} finally {
+				if (c != null) {
+					if (completed) {
+						endpoint.giveBack(c);
+					} else {
+						// whatever failed, the connection may be half way
+						// through a request or a reply; don't reuse it
+						c.close();
+					}
+				}
+			}
+		}
+	}
+
+	// Constructor that creates an empty matcher on the ShardServer
+	// listening on 'port' of 'host'
+	public RemoteMatcher(String host, int port)
+	{
+		this(new Endpoint(host, port));
+	}
+
+	private RemoteMatcher(Endpoint endpoint)
+	{
+		this.endpoint = endpoint;
+		matcher_id = new Request<Integer>() {
+			@Override Integer run(Connection c) throws IOException {
+				c.out.writeInt(ShardServer.CREATE);
+				c.out.writeInt(0);
+				c.send();
+				return c.in.readInt();
+			}
+		}.call("create a matcher");
+	}
+
+	private RemoteMatcher(Endpoint endpoint, int matcher_id)
+	{
+		this.endpoint = endpoint;
+		this.matcher_id = matcher_id;
+	}
+
+	@Override
+	public LibraryMatcher emptyCopy()
+	{
+		return new RemoteMatcher(endpoint);
+	}
+
+	@Override
+	public LibraryMatcher appendableCopy()
+	{
+		int copy_id = new Request<Integer>() {
+			@Override Integer run(Connection c) throws IOException {
+				c.out.writeInt(ShardServer.COPY);
+				c.out.writeInt(matcher_id);
+				c.send();
+				return c.in.readInt();
+			}
+		}.call("copy a matcher");
+		return new RemoteMatcher(endpoint, copy_id);
+	}
+
+	@Override
+	public void add(final Mat descriptors)
+	{
+		final long[] packed = BinaryDescriptors.pack(descriptors);
+		new Request<Void>() {
+			@Override Void run(Connection c) throws IOException {
+				c.out.writeInt(ShardServer.ADD);
+				c.out.writeInt(matcher_id);
+				c.out.writeInt(descriptors.rows());
+				for (long l: packed) {
+					c.out.writeLong(l);
+				}
+				c.send();
+				return null;
+			}
+		}.call("add descriptors");
+	}
+
+	@Override
+	public void add(TrainingImage img)
+	{
+		add(img.descriptors());
+	}
+
+	// the server's HammingMatcher always reports it
+	@Override
+	public boolean enableSecondDistance()
+	{
+		return true;
+	}
+
+	@Override
+	public void clear()
+	{
+		simple(ShardServer.CLEAR, "clear");
+	}
+
+	@Override
+	public void train()
+	{
+		simple(ShardServer.TRAIN, "train");
+	}
+
+	// Method that frees this matcher on the server; it can't be used afterwards
+	@Override
+	public void release()
+	{
+		simple(ShardServer.RELEASE, "release");
+	}
+
+	private void simple(final int op, String what)
+	{
+		new Request<Void>() {
+			@Override Void run(Connection c) throws IOException {
+				c.out.writeInt(op);
+				c.out.writeInt(matcher_id);
+				c.send();
+				return null;
+			}
+		}.call(what);
+	}
+
+	@Override
+	public void match(Mat query_descriptors, MatchBuffer matches)
+	{
+		match(query_descriptors, matches, null);
+	}
+
+	@Override
+	public void match(Mat query_descriptors, final MatchBuffer matches, final BitSet images)
+	{
+		final int rows = query_descriptors.rows();
+		final long[] packed = BinaryDescriptors.packer().pack(query_descriptors);
+		new Request<Void>() {
+			@Override Void run(Connection c) throws IOException {
+				DataOutputStream out = c.out;
+				out.writeInt(ShardServer.MATCH);
+				out.writeInt(matcher_id);
+				out.writeInt(rows);
+				for (int i = 0; i < rows * BinaryDescriptors.LONGS_PER_DESCRIPTOR; i++) {
+					out.writeLong(packed[i]);
+				}
+				if (images == null) {
+					out.writeInt(-1);
+				} else {
+					out.writeInt(images.cardinality());
+					for (int img = images.nextSetBit(0); img >= 0; img = images.nextSetBit(img + 1)) {
+						out.writeInt(img);
+					}
+				}
+				c.send();
+
+				DataInputStream in = c.in;
+				int n = in.readInt();
+				matches.clear();
+				matches.ensureCapacity(n);
+				for (int i = 0; i < n; i++) {
+					int query = in.readInt();
+					int train = in.readInt();
+					int img = in.readInt();
+					float distance = in.readFloat();
+					matches.add(query, train, img, distance, in.readFloat());
+				}
+				return null;
+			}
+		}.call("match");
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Remote(" + endpoint.host + ":" + endpoint.port + "#" + matcher_id + ")";
+	}
+}
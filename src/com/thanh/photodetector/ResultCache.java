@@ -0,0 +1,247 @@
+package com.thanh.photodetector;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import android.location.Location;
+
+// Bounded cache of DetectionResults in front of ImageDetector's queries,
+// for the same photo, or near-duplicates such as burst shots and still
+// camera frames, being detected over and over. Install one with
+// ImageDetector.setResultCache; a cache serves one detector only.
+//
+// Queries are keyed by the difference hash (dHash) of their scaled down
+// image: 64 bits telling, on a 9x8 thumbnail, whether each pixel is
+// brighter than its right neighbour. Two queries are the same if their
+// hashes differ in at most 'max_distance' bits and they were taken at
+// about the same place. The least recently used result is evicted first.
+//
+// Results are only valid for the library generation they were computed
+// against; the whole cache is dropped as soon as a query sees a newer one.
+// A cached result is returned as it was, with the query image and timings
+// of the query that computed it. The cache holds every result it caches,
+// and each caller it returns one to holds it too and must release() it,
+// like the caller that computed it. The cache releases its hold once it
+// drops a result, by eviction, invalidation or clear(), so a result is
+// freed when neither the cache nor any caller still uses it, and the
+// native memory of results only the cache holds stays bounded by the
+// capacity.
+public class ResultCache {
+	private final int capacity;
+	private final int max_distance;
+	private final double max_meters;
+
+	// guarded by 'this'; in access order, so the eldest is the least recently used
+	private final LinkedHashMap<Long, Entry> entries;
+	private long generation = -1;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	private static class Entry {
+		final long hash;
+		final Location location;
+		final DetectionResult result;
+
+		Entry(long hash, Location location, DetectionResult result)
+		{
+			this.hash = hash;
+			this.location = location;
+			this.result = result;
+		}
+	}
+
+	// Constructor of a cache of at most 'capacity' results that only
+	// returns a result for an identical hash
+	public ResultCache(int capacity)
+	{
+		this(capacity, 0, 10);
+	}
+
+	// Constructor of a cache of at most 'capacity' results that also
+	// returns them for queries whose hash differs in up to 'max_distance'
+	// bits, taken within 'max_meters' of the cached one
+	public ResultCache(final int capacity, int max_distance, double max_meters)
+	{
+		if (capacity < 1) {
+			throw new IllegalArgumentException("A ResultCache needs room for at least one result");
+		}
+		this.capacity = capacity;
+		this.max_distance = max_distance;
+		this.max_meters = max_meters;
+		entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+			@Override protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				if (size() > capacity) {
+					evictions++;
+					eldest.getValue().result.release();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	// Method that returns the dHash of 'img', which may have any number of
+	// channels; computing it costs a resize to 9x8 pixels
+	public static long hash(Mat img)
+	{
+		Mat thumbnail = new Mat();
+		Imgproc.resize(img, thumbnail, new Size(9, 8), 0, 0, Imgproc.INTER_AREA);
+		if (thumbnail.channels() == 3) {
+			Imgproc.cvtColor(thumbnail, thumbnail, Imgproc.COLOR_BGR2GRAY);
+		} else if (thumbnail.channels() == 4) {
+			Imgproc.cvtColor(thumbnail, thumbnail, Imgproc.COLOR_RGBA2GRAY);
+		}
+		byte[] pixels = new byte[9 * 8];
+		thumbnail.get(0, 0, pixels);
+		thumbnail.release();
+
+		long hash = 0;
+		for (int row = 0; row < 8; row++) {
+			for (int col = 0; col < 8; col++) {
+				int left = pixels[row * 9 + col] & 0xFF;
+				int right = pixels[row * 9 + col + 1] & 0xFF;
+				hash = (hash << 1) | (left > right ? 1 : 0);
+			}
+		}
+		return hash;
+	}
+
+	// Method that returns the result cached for a query with 'hash' taken
+	// at 'location' (may be null) against library 'generation', or null.
+	// The caller holds the result returned and must release it.
+	synchronized DetectionResult get(long hash, Location location, long generation)
+	{
+		invalidateOlderThan(generation);
+		if (generation < this.generation) {
+			// a query still running against an older generation
+			misses++;
+			return null;
+		}
+		Entry entry = entries.get(hash);
+		if (entry != null && !sameLocation(entry.location, location)) {
+			entry = null;
+		}
+		if (entry == null && max_distance > 0) {
+			int nearest = max_distance + 1;
+			for (Entry e: entries.values()) {
+				int distance = Long.bitCount(e.hash ^ hash);
+				if (distance < nearest && sameLocation(e.location, location)) {
+					nearest = distance;
+					entry = e;
+				}
+			}
+			if (entry != null) {
+				// mark it as recently used
+				entries.get(entry.hash);
+			}
+		}
+		// the cache's own hold keeps the result from being freed meanwhile
+		if (entry == null || !entry.result.retain()) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.result;
+	}
+
+	// Method that caches 'result' of a query with 'hash' taken at 'location'
+	synchronized void put(long hash, Location location, DetectionResult result)
+	{
+		invalidateOlderThan(result.generation());
+		if (result.generation() < generation) {
+			// computed against a generation that is gone already
+			return;
+		}
+		// the cache holds it until it drops it, whoever else releases it
+		if (!result.retain()) {
+			return;
+		}
+		Entry replaced = entries.put(hash, new Entry(hash, location, result));
+		if (replaced != null) {
+			replaced.result.release();
+		}
+	}
+
+	private void invalidateOlderThan(long current)
+	{
+		if (current > generation) {
+			dropAll();
+			generation = current;
+		}
+	}
+
+	private boolean sameLocation(Location a, Location b)
+	{
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return a.distanceTo(b) <= max_meters;
+	}
+
+	// Method that drops every result, e.g. once the detector's settings
+	// changed what a query would return
+	public synchronized void clear()
+	{
+		dropAll();
+	}
+
+	// Method that drops every result, releasing the cache's hold on it
+	private void dropAll()
+	{
+		if (entries.isEmpty()) {
+			return;
+		}
+		invalidations++;
+		for (Entry e: entries.values()) {
+			e.result.release();
+		}
+		entries.clear();
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public int capacity(){
+		return capacity;
+	}
+
+	public synchronized long hits(){
+		return hits;
+	}
+
+	public synchronized long misses(){
+		return misses;
+	}
+
+	// results dropped to make room for newer ones
+	public synchronized long evictions(){
+		return evictions;
+	}
+
+	// times the whole cache was dropped, for a new generation or by clear()
+	public synchronized long invalidations(){
+		return invalidations;
+	}
+
+	public synchronized double hitRate(){
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format(Locale.US,
+				"ResultCache: %d/%d results, %d hits, %d misses (%.1f%%), %d evictions, %d invalidations",
+				entries.size(), capacity, hits, misses, 100 * hitRate(), evictions, invalidations);
+	}
+}
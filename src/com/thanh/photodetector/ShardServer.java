@@ -0,0 +1,267 @@
+package com.thanh.photodetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.util.Log;
+
+// Process holding one shard of a training library for RemoteMatchers,
+// so a ShardedMatcher can spread a library over several JVMs:
+//
+//   java -cp benchmarks.jar com.thanh.photodetector.ShardServer <port>
+//
+// Descriptors travel packed (see BinaryDescriptors) and are matched
+// exactly with a HammingMatcher, so the server never needs OpenCV's
+// native library. Every RemoteMatcher, i.e. every library generation,
+// gets its own matcher on the server, which keeps it until the client
+// releases it; LibrarySnapshot does so once no query uses the generation
+// anymore. A request that fails, e.g. because the server ran out of
+// memory, gets an error reply and leaves the other matchers as they are.
+// Requests on one matcher from several connections run concurrently as
+// long as they only read it (MATCH, COPY); ADD, CLEAR and TRAIN wait for
+// them and run alone.
+//
+// Protocol: every request is an int opcode and an int matcher id (unused
+// by CREATE) followed by its arguments; every reply starts with an int
+// status, followed by the result if STATUS_OK or a UTF message otherwise.
+public class ShardServer {
+	// tag of messages printed to LogCat
+	protected static final String TAG = "ShardServer";
+
+	// tag of Error messages printed to LogCat
+	protected static final String ERROR = "Error in ShardServer";
+
+	// -> int matcher id
+	static final int CREATE = 1;
+	// int rows, long[rows * LONGS_PER_DESCRIPTOR] descriptors ->
+	static final int ADD = 2;
+	static final int CLEAR = 3;
+	static final int TRAIN = 4;
+	// int rows, long[] descriptors, int allowed images (-1 for all), int[] images
+	// -> int n, n * (int query, int train, int img, float distance, float second distance)
+	static final int MATCH = 5;
+	static final int RELEASE = 6;
+	// -> int id of a new matcher appendable to without changing this one
+	static final int COPY = 7;
+
+	static final int STATUS_OK = 0;
+	static final int STATUS_ERROR = 1;
+
+	private final int port;
+	private int next_id = 1;
+	// guarded by itself
+	private final Map<Integer, Shard> matchers = new HashMap<Integer, Shard>();
+
+	// A matcher of a client and the lock of its requests: reads hold it
+	// shared, changes exclusively
+	private static final class Shard {
+		final HammingMatcher matcher;
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		Shard(HammingMatcher matcher)
+		{
+			this.matcher = matcher;
+		}
+	}
+
+	public ShardServer(int port)
+	{
+		this.port = port;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 1) {
+			System.err.println("usage: ShardServer <port>");
+			return;
+		}
+		new ShardServer(Integer.parseInt(args[0])).serve();
+	}
+
+	// Method that accepts connections on the loopback interface until the
+	// process ends; every connection is served by its own thread
+	public void serve() throws IOException
+	{
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+		Log.i(TAG, "Serving shard on port "+port);
+		try {
+			while (true) {
+				final Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Thread t = new Thread(new Runnable() {
+					@Override public void run() {
+						serve(socket);
+					}
+				}, "ShardServer-" + socket.getPort());
+				t.setDaemon(true);
+				t.start();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	private void serve(Socket socket)
+	{
+		long[] query = new long[0];
+		MatchBuffer matches = new MatchBuffer();
+		BitSet images = new BitSet();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while (true) {
+				int op;
+				try {
+					op = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				int id = in.readInt();
+				// read the whole request before anything can fail
+				int rows = 0;
+				boolean all_images = true;
+				if (op == ADD || op == MATCH) {
+					rows = in.readInt();
+					int longs = rows * BinaryDescriptors.LONGS_PER_DESCRIPTOR;
+					if (op == ADD || query.length < longs) {
+						query = new long[longs];
+					}
+					for (int i = 0; i < longs; i++) {
+						query[i] = in.readLong();
+					}
+				}
+				if (op == MATCH) {
+					int allowed = in.readInt();
+					all_images = allowed < 0;
+					images.clear();
+					for (int i = 0; i < allowed; i++) {
+						images.set(in.readInt());
+					}
+				}
+
+				if (op < CREATE || op > COPY) {
+					throw new IOException("Unknown request "+op);
+				}
+
+				String error = null;
+				try {
+					id = execute(op, id, query, rows, matches, all_images ? null : images);
+				} catch (RuntimeException e) {
+					error = e.toString();
+				} catch (OutOfMemoryError e) {
+					error = "Out of memory with "+numberOfMatchers()+" matchers; release unused ones";
+				}
+				if (error != null) {
+					Log.e(ERROR, "Request "+op+" on matcher "+id+" failed: "+error);
+					out.writeInt(STATUS_ERROR);
+					out.writeUTF(error);
+					out.flush();
+					continue;
+				}
+
+				out.writeInt(STATUS_OK);
+				if (op == CREATE || op == COPY) {
+					out.writeInt(id);
+				} else if (op == MATCH) {
+					out.writeInt(matches.size());
+					for (int i = 0; i < matches.size(); i++) {
+						out.writeInt(matches.queryIdx(i));
+						out.writeInt(matches.trainIdx(i));
+						out.writeInt(matches.imgIdx(i));
+						out.writeFloat(matches.distance(i));
+						out.writeFloat(matches.secondDistance(i));
+					}
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			Log.e(ERROR, "Connection from port "+socket.getPort()+" failed: "+e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	// Method that carries out request 'op' on matcher 'id', leaving the
+	// matches of a MATCH in 'matches'. Returns the id of the matcher, new
+	// for CREATE and COPY.
+	private int execute(int op, int id, long[] query, int rows, MatchBuffer matches, BitSet images)
+	{
+		if (op == CREATE) {
+			return register(new HammingMatcher());
+		}
+		Shard shard;
+		synchronized (matchers) {
+			shard = op == RELEASE ? matchers.remove(id) : matchers.get(id);
+		}
+		if (shard == null) {
+			if (op == RELEASE) {
+				return id;
+			}
+			throw new IllegalStateException("No matcher "+id+"; it was released");
+		}
+		if (op == RELEASE) {
+			// the matcher is only on the heap; requests still running on
+			// it finish normally
+			return id;
+		}
+		boolean reads = op == MATCH || op == COPY;
+		Lock lock = reads ? shard.lock.readLock() : shard.lock.writeLock();
+		lock.lock();
+		try {
+			switch (op) {
+			case ADD:
+				shard.matcher.add(query, rows);
+				break;
+			case CLEAR:
+				shard.matcher.clear();
+				break;
+			case TRAIN:
+				shard.matcher.train();
+				break;
+			case MATCH:
+				shard.matcher.match(query, rows, matches, images);
+				break;
+			case COPY:
+				id = register((HammingMatcher) shard.matcher.appendableCopy());
+				break;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return id;
+	}
+
+	// Method that keeps 'matcher' for later requests and returns its id
+	private int register(HammingMatcher matcher)
+	{
+		synchronized (matchers) {
+			int id = next_id++;
+			matchers.put(id, new Shard(matcher));
+			return id;
+		}
+	}
+
+	private int numberOfMatchers()
+	{
+		synchronized (matchers) {
+			return matchers.size();
+		}
+	}
+}
@@ -0,0 +1,398 @@
+package com.thanh.photodetector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.opencv.core.Mat;
+
+import android.location.Location;
+
+// LibraryMatcher that partitions the training images over several shard
+// matchers and matches a query against all of them at once: the calling
+// thread matches the first shard while a pool matches the others, then
+// the per-shard nearest neighbours are merged into the library-wide
+// nearest one of every query descriptor, along with the library-wide
+// second nearest distance. Votes, and with them the ratio tests of
+// findBestMatch and of the matches themselves, are therefore the same as
+// with a single matcher holding the whole library.
+//
+// Shards can be any LibraryMatcher, including RemoteMatchers whose
+// descriptors live in ShardServer processes, so a library can be larger
+// than one heap. Images are numbered library-wide, in the order they are
+// added, whatever shard they go to.
+public class ShardedMatcher implements LibraryMatcher {
+
+	// Decides the shard of every training image
+	public interface Partitioner {
+		// returns a shard in [0, number_of_shards)
+		int shardOf(TrainingImage img, int number_of_shards);
+	}
+
+	// Keeps all images of a tour item on one shard
+	public static final Partitioner BY_TOUR_ID = new Partitioner() {
+		@Override public int shardOf(TrainingImage img, int number_of_shards) {
+			return hashShard(img.tourID(), number_of_shards);
+		}
+		@Override public String toString() {
+			return "tour_id";
+		}
+	};
+
+	// Keeps the images of every 'cell_meters' square on one shard, so the
+	// location pre-filter often leaves whole shards with nothing to match.
+	// Images without a location are spread by tour id.
+	public static Partitioner byLocation(final double cell_meters)
+	{
+		final double cell_degrees = cell_meters / 111320;
+		return new Partitioner() {
+			@Override public int shardOf(TrainingImage img, int number_of_shards) {
+				Location location = img.location();
+				if (location == null) {
+					return BY_TOUR_ID.shardOf(img, number_of_shards);
+				}
+				long row = (long) Math.floor(location.getLatitude() / cell_degrees);
+				long col = (long) Math.floor(location.getLongitude() / cell_degrees);
+				return hashShard(row * 1000003 + col, number_of_shards);
+			}
+			@Override public String toString() {
+				return "location(" + cell_meters + " m)";
+			}
+		};
+	}
+
+	private static int hashShard(long key, int number_of_shards)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) ((h >>> 33) % number_of_shards);
+	}
+
+	private final LibraryMatcher[] shards;
+	private final Partitioner partitioner;
+	// matches shards 1..n-1 of a query; shared with every emptyCopy
+	private final ExecutorService pool;
+
+	// for every library image, its shard and its number within the shard
+	private int[] shard_of = new int[0];
+	private int[] local_index_of = new int[0];
+	private int number_of_images = 0;
+	// for every shard, the library number of each of its images
+	private int[][] library_index_of;
+	private int[] shard_sizes;
+
+	// matches and allowed images of every shard, one set per querying thread
+	private final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+		@Override protected Scratch initialValue() {
+			return new Scratch(shards.length);
+		}
+	};
+
+	private static class Scratch {
+		final MatchBuffer[] matches;
+		final BitSet[] images;
+		// library-wide nearest neighbour of every query descriptor so far
+		int[] best_shard = new int[0];
+		int[] best_match = new int[0];
+		float[] second_distance = new float[0];
+
+		Scratch(int number_of_shards)
+		{
+			matches = new MatchBuffer[number_of_shards];
+			images = new BitSet[number_of_shards];
+			for (int s = 0; s < number_of_shards; s++) {
+				matches[s] = new MatchBuffer();
+				images[s] = new BitSet();
+			}
+		}
+	}
+
+	// Constructor that spreads the images over 'shards' with 'partitioner'.
+	// The shards must be empty and should all be of the same kind.
+	public ShardedMatcher(List<? extends LibraryMatcher> shards, Partitioner partitioner)
+	{
+		this(shards.toArray(new LibraryMatcher[shards.size()]), partitioner,
+				newPool(shards.size() - 1));
+	}
+
+	private ShardedMatcher(LibraryMatcher[] shards, Partitioner partitioner, ExecutorService pool)
+	{
+		if (shards.length == 0) {
+			throw new IllegalArgumentException("A ShardedMatcher needs at least one shard");
+		}
+		this.shards = shards;
+		this.partitioner = partitioner;
+		this.pool = pool;
+		library_index_of = new int[shards.length][16];
+		shard_sizes = new int[shards.length];
+	}
+
+	private static ExecutorService newPool(int threads)
+	{
+		return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			@Override public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ShardedMatcher");
+				// don't keep the process alive for these
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public int numberOfShards(){
+		return shards.length;
+	}
+
+	// number of training images on shard 's'
+	public int shardSize(int s){
+		return shard_sizes[s];
+	}
+
+	@Override
+	public LibraryMatcher emptyCopy()
+	{
+		LibraryMatcher[] copies = new LibraryMatcher[shards.length];
+		for (int s = 0; s < shards.length; s++) {
+			copies[s] = shards[s].emptyCopy();
+		}
+		return new ShardedMatcher(copies, partitioner, pool);
+	}
+
+	// Every shard is copied the same way, so this returns null unless all
+	// of them can be appended to
+	@Override
+	public LibraryMatcher appendableCopy()
+	{
+		LibraryMatcher[] copies = new LibraryMatcher[shards.length];
+		for (int s = 0; s < shards.length; s++) {
+			copies[s] = shards[s].appendableCopy();
+			if (copies[s] == null) {
+				return null;
+			}
+		}
+		ShardedMatcher copy = new ShardedMatcher(copies, partitioner, pool);
+		copy.shard_of = Arrays.copyOf(shard_of, shard_of.length);
+		copy.local_index_of = Arrays.copyOf(local_index_of, local_index_of.length);
+		for (int s = 0; s < shards.length; s++) {
+			copy.library_index_of[s] = Arrays.copyOf(library_index_of[s], library_index_of[s].length);
+		}
+		copy.shard_sizes = Arrays.copyOf(shard_sizes, shard_sizes.length);
+		copy.number_of_images = number_of_images;
+		return copy;
+	}
+
+	// Method that adds the next training image to the shard chosen by the
+	// partitioner; LibrarySnapshot adds images this way
+	@Override
+	public void add(TrainingImage img)
+	{
+		add(img.descriptors(), partitioner.shardOf(img, shards.length));
+	}
+
+	// Without the image itself, images are dealt round-robin
+	@Override
+	public void add(Mat descriptors)
+	{
+		add(descriptors, number_of_images % shards.length);
+	}
+
+	private void add(Mat descriptors, int s)
+	{
+		shards[s].add(descriptors);
+		if (number_of_images == shard_of.length) {
+			int capacity = Math.max(16, 2 * number_of_images);
+			shard_of = Arrays.copyOf(shard_of, capacity);
+			local_index_of = Arrays.copyOf(local_index_of, capacity);
+		}
+		if (shard_sizes[s] == library_index_of[s].length) {
+			library_index_of[s] = Arrays.copyOf(library_index_of[s], 2 * shard_sizes[s]);
+		}
+		shard_of[number_of_images] = s;
+		local_index_of[number_of_images] = shard_sizes[s];
+		library_index_of[s][shard_sizes[s]] = number_of_images;
+		shard_sizes[s]++;
+		number_of_images++;
+	}
+
+	@Override
+	public void clear()
+	{
+		for (LibraryMatcher shard: shards) {
+			shard.clear();
+		}
+		number_of_images = 0;
+		Arrays.fill(shard_sizes, 0);
+	}
+
+	// The merge keeps the second nearest distance across shards, so every
+	// shard has to report its own
+	@Override
+	public boolean enableSecondDistance()
+	{
+		boolean enabled = true;
+		for (LibraryMatcher shard: shards) {
+			enabled &= shard.enableSecondDistance();
+		}
+		return enabled;
+	}
+
+	// Every shard is released even if one fails; the first failure is
+	// thrown once they all were
+	@Override
+	public void release()
+	{
+		RuntimeException failure = null;
+		for (LibraryMatcher shard: shards) {
+			try {
+				shard.release();
+			} catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// Shards are trained concurrently, like they are matched
+	@Override
+	public void train()
+	{
+		List<Future<?>> pending = new ArrayList<Future<?>>(shards.length);
+		for (int s = 1; s < shards.length; s++) {
+			final LibraryMatcher shard = shards[s];
+			pending.add(pool.submit(new Runnable() {
+				@Override public void run() {
+					shard.train();
+				}
+			}));
+		}
+		shards[0].train();
+		await(pending, "train");
+	}
+
+	@Override
+	public void match(Mat query_descriptors, MatchBuffer matches)
+	{
+		match(query_descriptors, matches, null);
+	}
+
+	@Override
+	public void match(final Mat query_descriptors, MatchBuffer matches, BitSet images)
+	{
+		final Scratch scratch = scratches.get();
+		// which shards have anything to match, and against which of their images
+		boolean[] active = new boolean[shards.length];
+		if (images == null) {
+			Arrays.fill(active, true);
+		} else {
+			for (int s = 0; s < shards.length; s++) {
+				scratch.images[s].clear();
+			}
+			for (int img = images.nextSetBit(0); img >= 0 && img < number_of_images;
+					img = images.nextSetBit(img + 1)) {
+				scratch.images[shard_of[img]].set(local_index_of[img]);
+				active[shard_of[img]] = true;
+			}
+		}
+
+		// scatter: the calling thread takes the first active shard itself
+		List<Future<?>> pending = new ArrayList<Future<?>>(shards.length);
+		int own = -1;
+		for (int s = 0; s < shards.length; s++) {
+			scratch.matches[s].clear();
+			if (!active[s] || shard_sizes[s] == 0) {
+				continue;
+			}
+			final LibraryMatcher shard = shards[s];
+			final MatchBuffer shard_matches = scratch.matches[s];
+			final BitSet shard_images = images == null ? null : scratch.images[s];
+			if (own < 0) {
+				own = s;
+				continue;
+			}
+			pending.add(pool.submit(new Callable<Void>() {
+				@Override public Void call() {
+					shard.match(query_descriptors, shard_matches, shard_images);
+					return null;
+				}
+			}));
+		}
+		if (own >= 0) {
+			shards[own].match(query_descriptors, scratch.matches[own],
+					images == null ? null : scratch.images[own]);
+		}
+		await(pending, "match");
+
+		// gather: keep the nearest neighbour of every query descriptor
+		int rows = query_descriptors.rows();
+		if (scratch.best_shard.length < rows) {
+			scratch.best_shard = new int[rows];
+			scratch.best_match = new int[rows];
+			scratch.second_distance = new float[rows];
+		}
+		Arrays.fill(scratch.best_shard, 0, rows, -1);
+		for (int s = 0; s < shards.length; s++) {
+			MatchBuffer m = scratch.matches[s];
+			for (int i = 0; i < m.size(); i++) {
+				int q = m.queryIdx(i);
+				int best = scratch.best_shard[q];
+				if (best < 0) {
+					scratch.best_shard[q] = s;
+					scratch.best_match[q] = i;
+					scratch.second_distance[q] = m.secondDistance(i);
+					continue;
+				}
+				float best_distance = scratch.matches[best].distance(scratch.best_match[q]);
+				if (m.distance(i) < best_distance) {
+					// the old nearest may be the new second nearest
+					scratch.best_shard[q] = s;
+					scratch.best_match[q] = i;
+					scratch.second_distance[q] = Math.min(best_distance, m.secondDistance(i));
+				} else {
+					scratch.second_distance[q] = Math.min(scratch.second_distance[q], m.distance(i));
+				}
+			}
+		}
+		matches.clear();
+		matches.ensureCapacity(rows);
+		for (int q = 0; q < rows; q++) {
+			int s = scratch.best_shard[q];
+			if (s < 0) {
+				continue;
+			}
+			MatchBuffer m = scratch.matches[s];
+			int i = scratch.best_match[q];
+			matches.add(q, m.trainIdx(i), library_index_of[s][m.imgIdx(i)], m.distance(i),
+					scratch.second_distance[q]);
+		}
+	}
+
+	private static void await(List<Future<?>> pending, String what)
+	{
+		try {
+			for (Future<?> f: pending) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted during sharded " + what, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("A shard failed to " + what, e.getCause());
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Sharded(" + shards.length + " x " + shards[0] + ", by " + partitioner + ")";
+	}
+}
@@ -0,0 +1,189 @@
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import android.location.Location;
+
+// Grid index over the EXIF locations of the training images, so the images
+// within a radius of a query can be found without visiting the whole
+// library. The earth is cut into cells of 'cell_degrees' of latitude and
+// longitude; a lookup visits only the cells overlapping the search circle
+// and then checks the exact distance of the images found there.
+// Images without a location are kept in every result, since they
+// can't be ruled out. append() sorts in only the added images and merges
+// them with the ones indexed already.
+public class SpatialIndex {
+	// meters per degree of latitude
+	private static final double METERS_PER_DEGREE = 111320;
+
+	private final double cell_degrees;
+	private int number_of_images;
+	// images with a location, sorted by cell key
+	private long[] cell_keys;
+	private int[] images;
+	private Location[] locations;
+	// images without a location
+	private int[] unlocated;
+
+	// result of near(), one per querying thread
+	private final ThreadLocal<BitSet> results = new ThreadLocal<BitSet>() {
+		@Override protected BitSet initialValue() {
+			return new BitSet();
+		}
+	};
+
+	// Constructor that indexes 'library'; 'cell_meters' should be about
+	// the radius of typical queries
+	public SpatialIndex(List<TrainingImage> library, double cell_meters)
+	{
+		this(cell_meters / METERS_PER_DEGREE);
+		index(library, 0);
+	}
+
+	private SpatialIndex(double cell_degrees)
+	{
+		this.cell_degrees = cell_degrees;
+	}
+
+	// Method that indexes the images of 'library' from 'first' on
+	private void index(List<TrainingImage> library, int first)
+	{
+		number_of_images = library.size();
+
+		// collect the located images with their cell keys
+		int located = 0;
+		for (int i = first; i < number_of_images; i++) {
+			if (library.get(i).location() != null) {
+				located++;
+			}
+		}
+		final long[] keys = new long[number_of_images];
+		Integer[] order = new Integer[located];
+		unlocated = new int[number_of_images - first - located];
+		int k = 0, u = 0;
+		for (int i = first; i < number_of_images; i++) {
+			Location loc = library.get(i).location();
+			if (loc == null) {
+				unlocated[u++] = i;
+			} else {
+				keys[i] = key(latCell(loc.getLatitude()), lonCell(loc.getLongitude()));
+				order[k++] = i;
+			}
+		}
+
+		// sort them by cell key, so every cell is a contiguous range
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return keys[a] < keys[b] ? -1 : (keys[a] == keys[b] ? 0 : 1);
+			}
+		});
+		cell_keys = new long[located];
+		images = new int[located];
+		locations = new Location[located];
+		for (int i = 0; i < located; i++) {
+			images[i] = order[i];
+			cell_keys[i] = keys[images[i]];
+			locations[i] = library.get(images[i]).location();
+		}
+	}
+
+	// Method that returns an index over 'library', whose first
+	// numberOfImages() images must be the ones of this index; this one is
+	// left as it is
+	public SpatialIndex append(List<TrainingImage> library)
+	{
+		SpatialIndex added = new SpatialIndex(cell_degrees);
+		added.index(library, number_of_images);
+
+		SpatialIndex merged = new SpatialIndex(cell_degrees);
+		merged.number_of_images = library.size();
+		int located = cell_keys.length + added.cell_keys.length;
+		merged.cell_keys = new long[located];
+		merged.images = new int[located];
+		merged.locations = new Location[located];
+		// of images in the same cell, the older ones come first
+		for (int i = 0, a = 0, m = 0; m < located; m++) {
+			if (a == added.cell_keys.length 
+					|| (i < cell_keys.length && cell_keys[i] <= added.cell_keys[a])) {
+				merged.cell_keys[m] = cell_keys[i];
+				merged.images[m] = images[i];
+				merged.locations[m] = locations[i++];
+			} else {
+				merged.cell_keys[m] = added.cell_keys[a];
+				merged.images[m] = added.images[a];
+				merged.locations[m] = added.locations[a++];
+			}
+		}
+		merged.unlocated = Arrays.copyOf(unlocated, unlocated.length + added.unlocated.length);
+		System.arraycopy(added.unlocated, 0, merged.unlocated, unlocated.length, added.unlocated.length);
+		return merged;
+	}
+
+	private int latCell(double latitude){
+		return (int) Math.floor(latitude / cell_degrees);
+	}
+
+	private int lonCell(double longitude){
+		return (int) Math.floor(longitude / cell_degrees);
+	}
+
+	// Key that sorts cells by latitude row, then by longitude; longitude
+	// cells are offset to stay positive so a row never wraps around 0
+	private static long key(int lat_cell, int lon_cell){
+		return ((long) lat_cell << 32) | ((lon_cell + (1L << 30)) & 0xFFFFFFFFL);
+	}
+
+	public int numberOfImages(){
+		return number_of_images;
+	}
+
+	// Method that returns the images closer than 'radius' meters to 'center',
+	// plus every image without a location. The returned BitSet is reused
+	// by the next call from the same thread.
+	public BitSet near(Location center, double radius)
+	{
+		BitSet result = results.get();
+		result.clear();
+		for (int i: unlocated) {
+			result.set(i);
+		}
+		double lat = center.getLatitude();
+		double lon = center.getLongitude();
+		double lat_span = radius / METERS_PER_DEGREE;
+		// a degree of longitude shrinks towards the poles
+		double cos = Math.max(Math.cos(Math.toRadians(lat)), 1e-6);
+		double lon_span = Math.min(radius / (METERS_PER_DEGREE * cos), 180);
+		int lat_from = latCell(lat - lat_span), lat_to = latCell(lat + lat_span);
+		int lon_from = lonCell(lon - lon_span), lon_to = lonCell(lon + lon_span);
+
+		for (int la = lat_from; la <= lat_to; la++) {
+			// cells of one latitude row are contiguous in key order
+			int i = lowerBound(key(la, lon_from));
+			long last = key(la, lon_to);
+			for (; i < cell_keys.length && cell_keys[i] <= last; i++) {
+				if (center.distanceTo(locations[i]) < radius) {
+					result.set(images[i]);
+				}
+			}
+		}
+		return result;
+	}
+
+	private int lowerBound(long key)
+	{
+		int lo = 0, hi = cell_keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (cell_keys[mid] < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -16,7 +16,10 @@ public class TrainingImage {
 	private long tour_id;
 	private Mat image;
 	private MatOfKeyPoint key_points;
+	// x and y of every key point, read from key_points when first asked for
+	private volatile float[] key_point_coordinates;
 	private Mat descriptors;
+	private int number_of_descriptors;
 	private Location location;
 	
 	String TAG = this.getClass().getSimpleName();
@@ -34,7 +37,7 @@ public class TrainingImage {
 		path_id = image_path;
 		tour_id = tour_item_id;
 		image = given_image;
-		descriptors = given_descriptors;
+		setDescriptors(given_descriptors);
 		addLocation(image_path);
 	}
 	
@@ -76,11 +79,79 @@ public class TrainingImage {
 	
 	public void setDescriptors(Mat descrpt){
 		descriptors=descrpt;
+		if(descrpt != null){
+			number_of_descriptors = descrpt.rows();
+		}
+	}
+	
+	// Method that frees the pixels once descriptors exist;
+	// they can be re-read from pathID() when needed again
+	public void releaseImage(){
+		if(image != null){
+			image.release();
+			image = null;
+		}
+	}
+	
+	// Method that drops the descriptor Mat once this image doesn't need
+	// it anymore, e.g. a query whose descriptors are reused by the next one.
+	// numberOfDescriptors() keeps returning the original count.
+	// The Mat isn't released: whoever else refers to it may still use it.
+	// Training images of a published library are never changed this way,
+	// see withoutDescriptors.
+	public void releaseDescriptors(){
+		descriptors = null;
+	}
+	
+	// Method that returns a copy of this image without its pixels, which
+	// stay with this one. A library generation drops pixels this way, 
+	// leaving the images of older generations and results as they are;
+	// the pixels are freed once none of them refers to them anymore.
+	public TrainingImage withoutImage(){
+		TrainingImage copy = copy();
+		copy.image = null;
+		return copy;
+	}
+	
+	// Method that returns a copy of this image without its descriptor
+	// Mat, e.g. once the descriptors are kept in a DescriptorStore; like
+	// withoutImage, it leaves this image as it is
+	public TrainingImage withoutDescriptors(){
+		TrainingImage copy = copy();
+		copy.descriptors = null;
+		return copy;
+	}
+	
+	private TrainingImage copy(){
+		TrainingImage copy = new TrainingImage();
+		copy.path_id = path_id;
+		copy.tour_id = tour_id;
+		copy.image = image;
+		copy.key_points = key_points;
+		copy.key_point_coordinates = key_point_coordinates;
+		copy.descriptors = descriptors;
+		copy.number_of_descriptors = number_of_descriptors;
+		copy.location = location;
+		return copy;
+	}
+	
+	// Method that frees the key points once nothing draws them anymore
+	public void releaseKeyPoints(){
+		if(key_points != null){
+			key_points.release();
+			key_points = null;
+		}
+		key_point_coordinates = null;
 	}
 	
 	public void setKeyPoints(MatOfKeyPoint new_key_points)
 	{
 		key_points = new_key_points;
+		key_point_coordinates = null;
+	}
+	
+	public void setLocation(Location new_location){
+		location = new_location;
 	}
 	
 	public String name(){
@@ -104,10 +175,37 @@ public class TrainingImage {
 		return descriptors;
 	}
 	
+	public int numberOfDescriptors(){
+		return number_of_descriptors;
+	}
+	
 	public MatOfKeyPoint keyPoints(){
 		return key_points;
 	}
 	
+	// Method that returns x and y of every key point, one after the other,
+	// or null without key points. They are read from the Mat once and then
+	// shared with every copy of this image; callers must not change them.
+	public float[] keyPointCoordinates(){
+		float[] coordinates = key_point_coordinates;
+		MatOfKeyPoint kp = key_points;
+		if (coordinates == null && kp != null) {
+			int n = (int) kp.total();
+			// x and y are the first of the 7 floats of a key point
+			float[] fields = new float[n * 7];
+			if (n > 0) {
+				kp.get(0, 0, fields);
+			}
+			coordinates = new float[2 * n];
+			for (int i = 0; i < n; i++) {
+				coordinates[2 * i] = fields[7 * i];
+				coordinates[2 * i + 1] = fields[7 * i + 1];
+			}
+			key_point_coordinates = coordinates;
+		}
+		return coordinates;
+	}
+	
 	public Location location(){
 		return location;
 	}
@@ -0,0 +1,304 @@
+package com.thanh.photodetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.opencv.core.Mat;
+
+// Hierarchical vocabulary of visual words for binary (ORB) descriptors.
+//
+// The tree is trained offline by k-majority clustering: descriptors are
+// split into 'branching' clusters by Hamming distance, each cluster center
+// is the per-bit majority of its members, and every cluster is split again
+// until 'depth' levels are built. The leaves are the visual words.
+// A descriptor is quantized by walking down to the nearest child at every
+// level, so it costs branching * depth distance computations.
+public class VocabularyTree {
+	public static final int MAGIC = 0x42524C56; // "BRLV"
+	public static final int VERSION = 1;
+
+	private static final int LONGS = BinaryDescriptors.LONGS_PER_DESCRIPTOR;
+	private static final int BITS = BinaryDescriptors.BITS_PER_DESCRIPTOR;
+
+	private final int branching;
+	private final int depth;
+	// node 0 is the root; the children of a node are stored contiguously
+	private long[] centers;
+	private int[] first_child;  // -1 for leaves
+	private int[] word_of;      // visual word of a leaf, -1 for inner nodes
+	private int number_of_nodes;
+	private int number_of_words;
+
+	private VocabularyTree(int branching, int depth)
+	{
+		this.branching = branching;
+		this.depth = depth;
+		centers = new long[64 * LONGS];
+		first_child = new int[64];
+		word_of = new int[64];
+	}
+
+	// Method that trains a tree on the given descriptor Mats (one per image)
+	public static VocabularyTree train(List<Mat> training_descriptors,
+			int branching, int depth, int iterations, long seed)
+	{
+		int n = 0;
+		for (Mat d: training_descriptors) {
+			n += d.rows();
+		}
+		long[] data = new long[n * LONGS];
+		int offset = 0;
+		for (Mat d: training_descriptors) {
+			long[] packed = BinaryDescriptors.pack(d);
+			System.arraycopy(packed, 0, data, offset, packed.length);
+			offset += packed.length;
+		}
+		int[] members = new int[n];
+		for (int i = 0; i < n; i++) {
+			members[i] = i;
+		}
+
+		VocabularyTree tree = new VocabularyTree(branching, depth);
+		int root = tree.newNodes(1);
+		tree.setCenter(root, majority(data, members, 0, n));
+		tree.split(root, data, members, 0, n, 0, iterations, new Random(seed));
+		return tree;
+	}
+
+	// Method that clusters members[from..to) into the children of 'node'
+	// and recurses, or makes 'node' a leaf
+	private void split(int node, long[] data, int[] members, int from, int to,
+			int level, int iterations, Random random)
+	{
+		int count = to - from;
+		if (level == depth || count <= branching) {
+			word_of[node] = number_of_words++;
+			return;
+		}
+
+		// k-majority: start from random members as centers
+		long[] cluster_centers = new long[branching * LONGS];
+		for (int c = 0; c < branching; c++) {
+			int pick = from + c + random.nextInt(count - c);
+			int tmp = members[from + c]; members[from + c] = members[pick]; members[pick] = tmp;
+			System.arraycopy(data, members[from + c] * LONGS, cluster_centers, c * LONGS, LONGS);
+		}
+		int[] assignment = new int[count];
+		Arrays.fill(assignment, -1);
+		int[][] bit_counts = new int[branching][BITS];
+		int[] sizes = new int[branching];
+		for (int it = 0; it < iterations; it++) {
+			boolean changed = false;
+			for (int i = 0; i < count; i++) {
+				int c = nearest(cluster_centers, branching, data, members[from + i]);
+				if (c != assignment[i]) {
+					assignment[i] = c;
+					changed = true;
+				}
+			}
+			if (!changed) {
+				break;
+			}
+			// move every center to the per-bit majority of its members
+			for (int c = 0; c < branching; c++) {
+				Arrays.fill(bit_counts[c], 0);
+			}
+			Arrays.fill(sizes, 0);
+			for (int i = 0; i < count; i++) {
+				int c = assignment[i];
+				addBits(data, members[from + i], bit_counts[c]);
+				sizes[c]++;
+			}
+			for (int c = 0; c < branching; c++) {
+				if (sizes[c] > 0) {
+					setBits(cluster_centers, c, bit_counts[c], sizes[c]);
+				}
+			}
+		}
+
+		// group the members by cluster, in place
+		int[] sorted = new int[count];
+		int[] start = new int[branching + 1];
+		for (int i = 0; i < count; i++) {
+			start[assignment[i] + 1]++;
+		}
+		for (int c = 0; c < branching; c++) {
+			start[c + 1] += start[c];
+		}
+		int[] fill = Arrays.copyOf(start, branching);
+		for (int i = 0; i < count; i++) {
+			sorted[fill[assignment[i]]++] = members[from + i];
+		}
+		System.arraycopy(sorted, 0, members, from, count);
+
+		int children = newNodes(branching);
+		first_child[node] = children;
+		for (int c = 0; c < branching; c++) {
+			System.arraycopy(cluster_centers, c * LONGS, centers, (children + c) * LONGS, LONGS);
+		}
+		for (int c = 0; c < branching; c++) {
+			split(children + c, data, members, from + start[c], from + start[c + 1],
+					level + 1, iterations, random);
+		}
+	}
+
+	private int newNodes(int n)
+	{
+		int first = number_of_nodes;
+		number_of_nodes += n;
+		if (number_of_nodes > first_child.length) {
+			int capacity = Math.max(number_of_nodes, 2 * first_child.length);
+			centers = Arrays.copyOf(centers, capacity * LONGS);
+			first_child = Arrays.copyOf(first_child, capacity);
+			word_of = Arrays.copyOf(word_of, capacity);
+		}
+		for (int i = first; i < number_of_nodes; i++) {
+			first_child[i] = -1;
+			word_of[i] = -1;
+		}
+		return first;
+	}
+
+	private void setCenter(int node, long[] center)
+	{
+		System.arraycopy(center, 0, centers, node * LONGS, LONGS);
+	}
+
+	private static int nearest(long[] cluster_centers, int k, long[] data, int i)
+	{
+		int best = 0;
+		int best_distance = Integer.MAX_VALUE;
+		for (int c = 0; c < k; c++) {
+			int distance = BinaryDescriptors.distance(data, i, cluster_centers, c);
+			if (distance < best_distance) {
+				best_distance = distance;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	private static long[] majority(long[] data, int[] members, int from, int to)
+	{
+		int[] bit_counts = new int[BITS];
+		for (int i = from; i < to; i++) {
+			addBits(data, members[i], bit_counts);
+		}
+		long[] center = new long[LONGS];
+		setBits(center, 0, bit_counts, to - from);
+		return center;
+	}
+
+	private static void addBits(long[] data, int i, int[] bit_counts)
+	{
+		for (int w = 0; w < LONGS; w++) {
+			long word = data[i * LONGS + w];
+			while (word != 0) {
+				bit_counts[w * 64 + Long.numberOfTrailingZeros(word)]++;
+				word &= word - 1;
+			}
+		}
+	}
+
+	private static void setBits(long[] target, int c, int[] bit_counts, int size)
+	{
+		for (int w = 0; w < LONGS; w++) {
+			long word = 0;
+			for (int b = 0; b < 64; b++) {
+				if (2 * bit_counts[w * 64 + b] > size) {
+					word |= 1L << b;
+				}
+			}
+			target[c * LONGS + w] = word;
+		}
+	}
+
+	// Method that returns the visual word of descriptor 'i' of 'packed'
+	public int quantize(long[] packed, int i)
+	{
+		int node = 0;
+		while (first_child[node] >= 0) {
+			int children = first_child[node];
+			int best = children;
+			int best_distance = Integer.MAX_VALUE;
+			for (int c = children; c < children + branching; c++) {
+				int distance = BinaryDescriptors.distance(packed, i, centers, c);
+				if (distance < best_distance) {
+					best_distance = distance;
+					best = c;
+				}
+			}
+			node = best;
+		}
+		return word_of[node];
+	}
+
+	public int numberOfWords(){
+		return number_of_words;
+	}
+
+	public int branching(){
+		return branching;
+	}
+
+	public int depth(){
+		return depth;
+	}
+
+	public void save(File file) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(branching);
+			out.writeInt(depth);
+			out.writeInt(number_of_nodes);
+			out.writeInt(number_of_words);
+			for (int node = 0; node < number_of_nodes; node++) {
+				for (int w = 0; w < LONGS; w++) {
+					out.writeLong(centers[node * LONGS + w]);
+				}
+				out.writeInt(first_child[node]);
+				out.writeInt(word_of[node]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static VocabularyTree load(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a vocabulary tree");
+			}
+			VocabularyTree tree = new VocabularyTree(in.readInt(), in.readInt());
+			int n = in.readInt();
+			tree.newNodes(n);
+			tree.number_of_words = in.readInt();
+			for (int node = 0; node < n; node++) {
+				for (int w = 0; w < LONGS; w++) {
+					tree.centers[node * LONGS + w] = in.readLong();
+				}
+				tree.first_child[node] = in.readInt();
+				tree.word_of[node] = in.readInt();
+			}
+			return tree;
+		} finally {
+			in.close();
+		}
+	}
+}
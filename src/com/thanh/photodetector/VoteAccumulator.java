@@ -0,0 +1,104 @@
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import android.location.Location;
+
+// Reusable tally of the votes a query gives the images of a library: an
+// int per library position, the list of positions voted for, so starting
+// over costs as much as the last query voted, and the image with the
+// most votes, kept up to date with every vote. The location
+// filter is applied while voting: whether an image is near the query is
+// worked out once per query and kept in a bit set.
+//
+// Counting allocates nothing once the arrays have grown to the library
+// size; one accumulator serves one thread.
+public class VoteAccumulator {
+	private int[] votes = new int[0];
+	// library positions with at least one vote, in the order of their first
+	private int[] voted = new int[16];
+	private int number_voted = 0;
+
+	// library positions checked against the query location, and those of
+	// them near enough to get votes
+	private final BitSet checked = new BitSet();
+	private final BitSet near = new BitSet();
+
+	// the image with the most votes; -1 if none
+	private int leader = -1;
+
+	// Method that starts over for a query against a library of 'size' images
+	public void reset(int size)
+	{
+		for (int i = 0; i < number_voted; i++) {
+			votes[voted[i]] = 0;
+		}
+		number_voted = 0;
+		if (votes.length < size) {
+			votes = new int[size];
+		}
+		checked.clear();
+		near.clear();
+		leader = -1;
+	}
+
+	// Method that gives a vote to the training image of every match of
+	// 'matches' within 'radius' meters of 'query_location', or without a
+	// location; with no query location every image gets its votes
+	public void count(MatchBuffer matches, LibrarySnapshot snapshot,
+			Location query_location, double radius)
+	{
+		for (int i = 0; i < matches.size(); i++) {
+			int img = matches.imgIdx(i);
+			if (query_location == null || isNear(snapshot, img, query_location, radius)) {
+				vote(img);
+			}
+		}
+	}
+
+	private boolean isNear(LibrarySnapshot snapshot, int img, Location query_location, double radius)
+	{
+		if (!checked.get(img)) {
+			checked.set(img);
+			Location location = snapshot.image(img).location();
+			// can't rule out images without a location
+			if (location == null || query_location.distanceTo(location) < radius) {
+				near.set(img);
+			}
+		}
+		return near.get(img);
+	}
+
+	private void vote(int img)
+	{
+		if (votes[img]++ == 0) {
+			if (number_voted == voted.length) {
+				voted = Arrays.copyOf(voted, 2 * number_voted);
+			}
+			voted[number_voted++] = img;
+		}
+		if (leader < 0 || votes[img] > votes[leader]) {
+			leader = img;
+		}
+	}
+
+	// library position of the image with the most votes, or -1
+	public int leader(){
+		return leader;
+	}
+
+	public int votes(int img){
+		return votes[img];
+	}
+
+	// number of images with at least one vote
+	public int numberVoted(){
+		return number_voted;
+	}
+
+	// library position of the i-th image voted for
+	public int voted(int i){
+		return voted[i];
+	}
+}